@@ -0,0 +1,245 @@
+package com.visioncameraplugininatvision;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.os.SystemClock;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import timber.log.Timber;
+
+/**
+ * Classifies camera frames on a dedicated thread, so the frame processor thread only converts the
+ * frame into a model input. Only the most recent frame is kept: a frame that is still waiting when a
+ * newer one arrives is dropped. The result of the last classified frame is available right away.
+ * The worker thread exits when it has been idle for a while and for good once the worker is closed.
+ */
+public class AsyncInferenceWorker {
+    private static final String TAG = "AsyncInferenceWorker";
+
+    /** One input being written by the frame processor, one waiting and one being classified */
+    private static final int INPUT_COUNT = 3;
+    /** Seconds the worker thread waits for frames before it exits, it is started again for the next frame */
+    private static final long IDLE_THREAD_SECONDS = 10;
+
+    /** A converted frame and everything needed to classify it */
+    private static class FrameInput {
+        final FloatBuffer pixels;
+        long frameTimestamp;
+        long submitTime;
+        ImageClassifier classifier;
+        float[][] geomodelScores;
+        TaxonFilter taxonFilter;
+        ScoreSmoother scoreSmoother;
+        Double taxonomyRollupCutoff;
+
+        FrameInput(int size) {
+            ByteBuffer bytes = ByteBuffer.allocateDirect(4 * size);
+            bytes.order(ByteOrder.nativeOrder());
+            pixels = bytes.asFloatBuffer();
+        }
+    }
+
+    private final CropScaleKernel mCropScaleKernel;
+    private final BitmapArgbSource mBitmapSource = new BitmapArgbSource();
+    private final ArrayBlockingQueue<FrameInput> mFreeInputs = new ArrayBlockingQueue<>(INPUT_COUNT);
+    private final AtomicReference<FrameInput> mPendingInput = new AtomicReference<>();
+    private final AtomicBoolean mIsScheduled = new AtomicBoolean(false);
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(1, 1, IDLE_THREAD_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private volatile boolean mIsClosed = false;
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private volatile Map<String, Object> mLatestResult = null;
+    private volatile InferenceScheduler mScheduler = null;
+    private final AtomicLong mSubmittedFrames = new AtomicLong();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private final AtomicLong mClassifiedFrames = new AtomicLong();
+
+    public AsyncInferenceWorker(int inputWidth, int inputHeight) {
+        mCropScaleKernel = new CropScaleKernel(inputWidth, inputHeight);
+        mExecutor.allowCoreThreadTimeOut(true);
+        for (int i = 0; i < INPUT_COUNT; i++) {
+            mFreeInputs.add(new FrameInput(mCropScaleKernel.getOutputSize()));
+        }
+    }
+
+    /** Sets the scheduler the latency of every classification is reported to */
+    public void setScheduler(InferenceScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Converts the frame into a model input and queues it for classification, replacing a frame that
+     * is still waiting. Returns false if the frame was skipped because the worker is closed, no input
+     * buffer was free or the frame could not be converted. Call from one thread only.
+     */
+    public boolean submit(Image image, long frameTimestamp, double cropRatio, float pixelDivisor, ImageClassifier classifier, float[][] geomodelScores, TaxonFilter taxonFilter, ScoreSmoother scoreSmoother, Double taxonomyRollupCutoff) {
+        if (mIsClosed) {
+            return false;
+        }
+        FrameInput input = mFreeInputs.poll();
+        if (input == null) {
+            mDroppedFrames.incrementAndGet();
+            return false;
+        }
+        if (image.getFormat() == ImageFormat.YUV_420_888) {
+            Image.Plane[] planes = image.getPlanes();
+            mCropScaleKernel.yuvToTensor(
+                    image.getWidth(), image.getHeight(),
+                    planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                    planes[1].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                    planes[2].getBuffer(), planes[2].getRowStride(), planes[2].getPixelStride(),
+                    cropRatio, input.pixels, pixelDivisor);
+        } else {
+            Bitmap bmp = BitmapUtils.getBitmap(image);
+            if (bmp == null) {
+                Timber.tag(TAG).w("Could not convert frame with format #" + image.getFormat());
+                mDroppedFrames.incrementAndGet();
+                mFreeInputs.offer(input);
+                return false;
+            }
+            mCropScaleKernel.argbToTensor(mBitmapSource.setBitmap(bmp), cropRatio, input.pixels, pixelDivisor);
+            mBitmapSource.setBitmap(null);
+            bmp.recycle();
+        }
+        input.frameTimestamp = frameTimestamp;
+        input.submitTime = SystemClock.uptimeMillis();
+        input.classifier = classifier;
+        input.geomodelScores = geomodelScores;
+        input.taxonFilter = taxonFilter;
+        input.scoreSmoother = scoreSmoother;
+        input.taxonomyRollupCutoff = taxonomyRollupCutoff;
+        mSubmittedFrames.incrementAndGet();
+
+        FrameInput dropped = mPendingInput.getAndSet(input);
+        if (dropped != null) {
+            mDroppedFrames.incrementAndGet();
+            recycle(dropped);
+        }
+        if (mIsScheduled.compareAndSet(false, true)) {
+            mExecutor.execute(mDrain);
+        }
+        return true;
+    }
+
+    /**
+     * The result of the most recently classified frame, with its frame timestamp and its staleness, i.e.
+     * the seconds since the frame was submitted. Null until the first frame is classified.
+     */
+    public Map<String, Object> getLatestResult() {
+        Map<String, Object> latestResult = mLatestResult;
+        if (latestResult == null) {
+            return null;
+        }
+        Map<String, Object> result = new HashMap<>(latestResult);
+        long submitTime = (Long) result.remove("submitTime");
+        result.put("staleness", (SystemClock.uptimeMillis() - submitTime) / 1000.0);
+        return result;
+    }
+
+    /**
+     * Drops the waiting frame and stops the worker thread once the frame being classified is done. Frames
+     * submitted afterwards are dropped. Call from the thread frames are submitted from.
+     */
+    public void close() {
+        mIsClosed = true;
+        mExecutor.shutdown();
+        FrameInput dropped = mPendingInput.getAndSet(null);
+        if (dropped != null) {
+            mDroppedFrames.incrementAndGet();
+            recycle(dropped);
+        }
+    }
+
+    /** Submitted, dropped and classified frame counts */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("submittedFrames", (double) mSubmittedFrames.get());
+        stats.put("droppedFrames", (double) mDroppedFrames.get());
+        stats.put("classifiedFrames", (double) mClassifiedFrames.get());
+        return stats;
+    }
+
+    /** Classifies waiting frames until there are none, on the worker thread */
+    private void drain() {
+        while (true) {
+            FrameInput input = mPendingInput.getAndSet(null);
+            if (input == null) {
+                mIsScheduled.set(false);
+                // A frame submitted after the check but before the flag was cleared did not schedule a drain
+                if (mPendingInput.get() == null || !mIsScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                classify(input);
+            } catch (Exception e) {
+                Timber.tag(TAG).w("Classification failed: " + e);
+            } finally {
+                recycle(input);
+            }
+        }
+    }
+
+    private void classify(FrameInput input) {
+        long startTime = SystemClock.uptimeMillis();
+        List<Prediction> predictions;
+        synchronized (input.classifier) {
+            input.classifier.setTaxonFilter(input.taxonFilter);
+            input.classifier.setGeomodelScores(input.geomodelScores);
+            input.classifier.setScoreSmoother(input.scoreSmoother);
+            predictions = input.classifier.classifyInput(input.pixels, input.taxonomyRollupCutoff, false);
+        }
+        if (predictions == null) {
+            return;
+        }
+
+        List<Map> cleanedPredictions = new ArrayList<>();
+        for (Prediction prediction : predictions) {
+            Map map = Taxonomy.nodeToMap(prediction);
+            if (map == null) continue;
+            cleanedPredictions.add(map);
+        }
+        long endTime = SystemClock.uptimeMillis();
+        InferenceScheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            scheduler.recordLatency(endTime - startTime);
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("predictions", cleanedPredictions);
+        result.put("frameTimestamp", (double) input.frameTimestamp);
+        result.put("submitTime", input.submitTime);
+        result.put("smoothed", input.scoreSmoother != null);
+        // Time the classification took on the worker thread; in seconds
+        result.put("inferenceTime", (endTime - startTime) / 1000.0);
+        mLatestResult = result;
+        mClassifiedFrames.incrementAndGet();
+    }
+
+    private void recycle(FrameInput input) {
+        input.classifier = null;
+        input.geomodelScores = null;
+        input.scoreSmoother = null;
+        mFreeInputs.offer(input);
+    }
+}
@@ -0,0 +1,32 @@
+package com.visioncameraplugininatvision;
+
+import android.graphics.Bitmap;
+
+/**
+ * Reads the pixel rows of a bitmap for the {@link CropScaleKernel}. One instance is kept per kernel and
+ * pointed at each bitmap, so that converting a bitmap does not allocate. Not thread-safe.
+ */
+class BitmapArgbSource implements CropScaleKernel.ArgbSource {
+    private Bitmap mBitmap;
+
+    /** Sets the bitmap to read, null to drop the reference once the bitmap is converted */
+    BitmapArgbSource setBitmap(Bitmap bitmap) {
+        mBitmap = bitmap;
+        return this;
+    }
+
+    @Override
+    public int getWidth() {
+        return mBitmap.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mBitmap.getHeight();
+    }
+
+    @Override
+    public void getRow(int y, int x, int width, int[] row) {
+        mBitmap.getPixels(row, 0, width, x, y, width, 1);
+    }
+}
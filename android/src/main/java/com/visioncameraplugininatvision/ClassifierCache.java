@@ -0,0 +1,323 @@
+package com.visioncameraplugininatvision;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Process-wide cache of loaded classifiers, so that repeated calls with the same model do not map the
+ * model, create an interpreter and load the taxonomy again. Classifiers are keyed by kind, model file
+ * and its size and modification time, taxonomy file, model version and interpreter options, so a model
+ * file replaced at the same path is loaded again. Acquired classifiers are reference counted;
+ * once released they stay loaded until they are evicted, least recently used first, when the cache
+ * holds more classifiers or more estimated bytes than its limits.
+ *
+ * Cached classifiers are shared, callers synchronize on a classifier while they set its filter and
+ * geomodel scores and classify with it.
+ */
+public class ClassifierCache {
+    private static final String TAG = "ClassifierCache";
+
+    public static final int DEFAULT_MAX_ENTRIES = 4;
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final String KIND_IMAGE = "image";
+    private static final String KIND_GEO = "geo";
+
+    private static class Key {
+        final String kind;
+        final String modelPath;
+        final long modelSize;
+        final long modelLastModified;
+        final String taxonomyPath;
+        final String version;
+        final InterpreterConfig interpreterConfig;
+
+        Key(String kind, String modelPath, String taxonomyPath, String version, InterpreterConfig interpreterConfig) throws IOException {
+            this.kind = kind;
+            File modelFile = new File(modelPath);
+            this.modelPath = modelFile.getCanonicalPath();
+            this.modelSize = modelFile.length();
+            this.modelLastModified = modelFile.lastModified();
+            this.taxonomyPath = new File(taxonomyPath).getCanonicalPath();
+            this.version = version;
+            this.interpreterConfig = interpreterConfig;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return kind.equals(key.kind) &&
+                modelPath.equals(key.modelPath) &&
+                modelSize == key.modelSize &&
+                modelLastModified == key.modelLastModified &&
+                taxonomyPath.equals(key.taxonomyPath) &&
+                (version != null ? version.equals(key.version) : key.version == null) &&
+                interpreterConfig.equals(key.interpreterConfig);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = kind.hashCode();
+            result = 31 * result + modelPath.hashCode();
+            result = 31 * result + (int) (modelSize ^ (modelSize >>> 32));
+            result = 31 * result + (int) (modelLastModified ^ (modelLastModified >>> 32));
+            result = 31 * result + taxonomyPath.hashCode();
+            result = 31 * result + (version != null ? version.hashCode() : 0);
+            result = 31 * result + interpreterConfig.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + modelPath + " / " + taxonomyPath + " (" + version + ", " + interpreterConfig + ")";
+        }
+    }
+
+    private static class Entry {
+        final Key key;
+        final Object classifier;
+        final long bytes;
+        int refCount = 0;
+
+        Entry(Key key, Object classifier, long bytes) {
+            this.key = key;
+            this.classifier = classifier;
+            this.bytes = bytes;
+        }
+
+        void close() {
+            Timber.tag(TAG).d("Closing classifier: " + key);
+            if (classifier instanceof ImageClassifier) {
+                ((ImageClassifier) classifier).close();
+            } else if (classifier instanceof GeoClassifier) {
+                ((GeoClassifier) classifier).close();
+            }
+        }
+    }
+
+    // In access order, the least recently used entry first
+    private static final LinkedHashMap<Key, Entry> sEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private static int sMaxEntries = DEFAULT_MAX_ENTRIES;
+    private static long sMaxBytes = DEFAULT_MAX_BYTES;
+    private static long sBytes = 0;
+    private static long sHits = 0;
+    private static long sMisses = 0;
+    private static long sEvictions = 0;
+    // Entries unloaded while in use, closed on their last release
+    private static final List<Entry> sRemovedEntries = new ArrayList<>();
+
+    private ClassifierCache() {
+    }
+
+    /**
+     * Returns the cached image classifier for the model, taxonomy, version and interpreter options,
+     * creating it on a miss. Every call has to be balanced by a call to {@link #release(ImageClassifier)}.
+     */
+    public static ImageClassifier acquireImageClassifier(String modelPath, String taxonomyPath, String version, InterpreterConfig interpreterConfig) throws IOException {
+        Key key = new Key(KIND_IMAGE, modelPath, taxonomyPath, version, interpreterConfig);
+        ImageClassifier classifier = (ImageClassifier) acquireCached(key);
+        if (classifier != null) {
+            return classifier;
+        }
+        classifier = new ImageClassifier(modelPath, taxonomyPath, version, interpreterConfig);
+        return (ImageClassifier) add(key, classifier, classifier.getEstimatedBytes());
+    }
+
+    /**
+     * Returns the cached geomodel classifier for the model, taxonomy, version and interpreter options,
+     * creating it on a miss. Every call has to be balanced by a call to {@link #release(GeoClassifier)}.
+     */
+    public static GeoClassifier acquireGeoClassifier(String modelPath, String taxonomyPath, String version, InterpreterConfig interpreterConfig) throws IOException {
+        Key key = new Key(KIND_GEO, modelPath, taxonomyPath, version, interpreterConfig);
+        GeoClassifier classifier = (GeoClassifier) acquireCached(key);
+        if (classifier != null) {
+            return classifier;
+        }
+        classifier = new GeoClassifier(modelPath, taxonomyPath, version, interpreterConfig);
+        return (GeoClassifier) add(key, classifier, classifier.getEstimatedBytes());
+    }
+
+    public static void release(ImageClassifier classifier) {
+        releaseClassifier(classifier);
+    }
+
+    public static void release(GeoClassifier classifier) {
+        releaseClassifier(classifier);
+    }
+
+    public static int getMaxEntries() {
+        synchronized (sEntries) {
+            return sMaxEntries;
+        }
+    }
+
+    public static long getMaxBytes() {
+        synchronized (sEntries) {
+            return sMaxBytes;
+        }
+    }
+
+    /** Sets the maximum number of classifiers and estimated bytes the cache keeps loaded */
+    public static void setLimits(int maxEntries, long maxBytes) {
+        List<Entry> evicted;
+        synchronized (sEntries) {
+            sMaxEntries = Math.max(0, maxEntries);
+            sMaxBytes = Math.max(0, maxBytes);
+            evicted = evict();
+        }
+        closeAll(evicted);
+    }
+
+    /**
+     * Unloads the cached classifiers of a model file, or all classifiers if the path is null.
+     * Classifiers that are in use are closed when they are released.
+     */
+    public static void unload(String modelPath) throws IOException {
+        String canonicalPath = modelPath != null ? new File(modelPath).getCanonicalPath() : null;
+        List<Entry> unloaded = new ArrayList<>();
+        synchronized (sEntries) {
+            Iterator<Entry> iterator = sEntries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (canonicalPath != null && !canonicalPath.equals(entry.key.modelPath)) continue;
+                iterator.remove();
+                sBytes -= entry.bytes;
+                if (entry.refCount > 0) {
+                    sRemovedEntries.add(entry);
+                } else {
+                    unloaded.add(entry);
+                }
+            }
+        }
+        closeAll(unloaded);
+    }
+
+    /** Hit, miss and eviction counts and the current size of the cache */
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        synchronized (sEntries) {
+            stats.put("hits", (double) sHits);
+            stats.put("misses", (double) sMisses);
+            stats.put("evictions", (double) sEvictions);
+            stats.put("entries", (double) sEntries.size());
+            stats.put("bytes", (double) sBytes);
+            stats.put("maxEntries", (double) sMaxEntries);
+            stats.put("maxBytes", (double) sMaxBytes);
+        }
+        return stats;
+    }
+
+    private static Object acquireCached(Key key) {
+        synchronized (sEntries) {
+            Entry entry = sEntries.get(key);
+            if (entry == null) {
+                sMisses++;
+                return null;
+            }
+            sHits++;
+            entry.refCount++;
+            return entry.classifier;
+        }
+    }
+
+    /**
+     * Adds a classifier created after a miss and returns the classifier to use. If another thread added
+     * the same classifier in the meantime, the new one is closed and the cached one returned.
+     */
+    private static Object add(Key key, Object classifier, long bytes) {
+        Entry entry = new Entry(key, classifier, bytes);
+        Entry existing;
+        List<Entry> evicted = null;
+        synchronized (sEntries) {
+            existing = sEntries.get(key);
+            if (existing != null) {
+                existing.refCount++;
+            } else {
+                Timber.tag(TAG).d("Caching classifier: " + key + ", " + bytes + " bytes");
+                entry.refCount++;
+                sEntries.put(key, entry);
+                sBytes += bytes;
+                evicted = evict();
+            }
+        }
+        if (existing != null) {
+            entry.close();
+            return existing.classifier;
+        }
+        closeAll(evicted);
+        return classifier;
+    }
+
+    private static void releaseClassifier(Object classifier) {
+        if (classifier == null) return;
+        Entry closed = null;
+        List<Entry> evicted = null;
+        synchronized (sEntries) {
+            Entry entry = findEntry(classifier);
+            if (entry == null) return;
+            entry.refCount--;
+            if (entry.refCount <= 0) {
+                if (sRemovedEntries.remove(entry)) {
+                    closed = entry;
+                } else {
+                    evicted = evict();
+                }
+            }
+        }
+        if (closed != null) {
+            closed.close();
+        }
+        closeAll(evicted);
+    }
+
+    /** Finds the entry of a classifier, including entries unloaded while in use. Call with the lock held. */
+    private static Entry findEntry(Object classifier) {
+        for (Entry entry : sEntries.values()) {
+            if (entry.classifier == classifier) {
+                return entry;
+            }
+        }
+        for (Entry entry : sRemovedEntries) {
+            if (entry.classifier == classifier) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes unused entries, least recently used first, until the cache is within its limits.
+     * Returns the removed entries, to be closed outside of the lock. Call with the lock held.
+     */
+    private static List<Entry> evict() {
+        List<Entry> evicted = new ArrayList<>();
+        Iterator<Entry> iterator = sEntries.values().iterator();
+        while (iterator.hasNext() && (sEntries.size() > sMaxEntries || sBytes > sMaxBytes)) {
+            Entry entry = iterator.next();
+            if (entry.refCount > 0) continue;
+            Timber.tag(TAG).d("Evicting classifier: " + entry.key);
+            iterator.remove();
+            sBytes -= entry.bytes;
+            sEvictions++;
+            evicted.add(entry);
+        }
+        return evicted;
+    }
+
+    private static void closeAll(List<Entry> entries) {
+        if (entries == null) return;
+        for (Entry entry : entries) {
+            entry.close();
+        }
+    }
+}
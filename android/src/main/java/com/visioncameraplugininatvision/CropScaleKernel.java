@@ -0,0 +1,209 @@
+package com.visioncameraplugininatvision;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Crops the center square of an image, scales it to the model input size and writes it as RGB floats
+ * in [x][y][channel] order, in a single pass without intermediate bitmaps. Scaling is bilinear with
+ * pixel centers aligned, like {@code Bitmap.createScaledBitmap} with filtering, and channel values are
+ * rounded to 8 bit like those of a scaled bitmap before they are divided by the divisor.
+ *
+ * Sources are either ARGB pixel rows or the planes of a YUV 4:2:0 image. The kernel only depends on
+ * java.nio, so it also runs on the JVM. It keeps its sampling tables and row buffers between calls
+ * and is not thread-safe.
+ */
+public class CropScaleKernel {
+
+    /** Source of ARGB pixels, e.g. a bitmap */
+    public interface ArgbSource {
+        int getWidth();
+
+        int getHeight();
+
+        /** Reads {@code width} pixels of row {@code y}, starting at column {@code x}, into {@code row} */
+        void getRow(int y, int x, int width, int[] row);
+    }
+
+    private final int mOutWidth;
+    private final int mOutHeight;
+
+    // Sampling tables of the last source geometry: for every output column the two neighboring source
+    // columns, the weight of the second one and the nearest chroma column, same for rows
+    private int mSourceWidth = -1;
+    private int mSourceHeight = -1;
+    private double mCropRatio = Double.NaN;
+    private int mCropX;
+    private int mCropY;
+    private int mCropSize;
+    private final int[] mX0;
+    private final int[] mX1;
+    private final float[] mXWeight;
+    private final int[] mXChroma;
+    private final int[] mY0;
+    private final int[] mY1;
+    private final float[] mYWeight;
+    private final int[] mYChroma;
+
+    // The two source rows the current output row is interpolated from, relative to the crop
+    private int[] mRow0 = new int[0];
+    private int[] mRow1 = new int[0];
+    private int mRow0Index;
+    private int mRow1Index;
+
+    public CropScaleKernel(int outWidth, int outHeight) {
+        mOutWidth = outWidth;
+        mOutHeight = outHeight;
+        mX0 = new int[outWidth];
+        mX1 = new int[outWidth];
+        mXWeight = new float[outWidth];
+        mXChroma = new int[outWidth];
+        mY0 = new int[outHeight];
+        mY1 = new int[outHeight];
+        mYWeight = new float[outHeight];
+        mYChroma = new int[outHeight];
+    }
+
+    /** Number of floats written by one call, i.e. the capacity the destination needs */
+    public int getOutputSize() {
+        return mOutWidth * mOutHeight * 3;
+    }
+
+    /** Writes the center square of an ARGB source with the given crop ratio into {@code out} */
+    public void argbToTensor(ArgbSource source, double cropRatio, FloatBuffer out, float divisor) {
+        prepare(source.getWidth(), source.getHeight(), cropRatio);
+        if (mRow0.length < mCropSize) {
+            mRow0 = new int[mCropSize];
+            mRow1 = new int[mCropSize];
+        }
+        mRow0Index = -1;
+        mRow1Index = -1;
+
+        for (int y = 0; y < mOutHeight; y++) {
+            loadRows(source, mY0[y], mY1[y]);
+            float fy = mYWeight[y];
+            for (int x = 0; x < mOutWidth; x++) {
+                int left = mX0[x] - mCropX;
+                int right = mX1[x] - mCropX;
+                float fx = mXWeight[x];
+                int topLeft = mRow0[left];
+                int topRight = mRow0[right];
+                int bottomLeft = mRow1[left];
+                int bottomRight = mRow1[right];
+
+                int index = (x * mOutHeight + y) * 3;
+                for (int channel = 0; channel < 3; channel++) {
+                    int shift = 16 - 8 * channel;
+                    float top = lerp((topLeft >> shift) & 0xFF, (topRight >> shift) & 0xFF, fx);
+                    float bottom = lerp((bottomLeft >> shift) & 0xFF, (bottomRight >> shift) & 0xFF, fx);
+                    out.put(index + channel, toChannel(lerp(top, bottom, fy)) / divisor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the center square of a YUV 4:2:0 image with the given crop ratio into {@code out}. The Y plane
+     * is sampled bilinearly and the U and V planes at the nearest sample, honoring the row and pixel
+     * strides of each plane. Colors are converted with the full range BT.601 matrix used by JPEG.
+     */
+    public void yuvToTensor(
+            int width, int height,
+            ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+            ByteBuffer uBuffer, int uRowStride, int uPixelStride,
+            ByteBuffer vBuffer, int vRowStride, int vPixelStride,
+            double cropRatio, FloatBuffer out, float divisor) {
+        prepare(width, height, cropRatio);
+
+        for (int y = 0; y < mOutHeight; y++) {
+            int yRow0 = mY0[y] * yRowStride;
+            int yRow1 = mY1[y] * yRowStride;
+            int uRow = mYChroma[y] * uRowStride;
+            int vRow = mYChroma[y] * vRowStride;
+            float fy = mYWeight[y];
+            for (int x = 0; x < mOutWidth; x++) {
+                int col0 = mX0[x] * yPixelStride;
+                int col1 = mX1[x] * yPixelStride;
+                float fx = mXWeight[x];
+                float top = lerp(yBuffer.get(yRow0 + col0) & 0xFF, yBuffer.get(yRow0 + col1) & 0xFF, fx);
+                float bottom = lerp(yBuffer.get(yRow1 + col0) & 0xFF, yBuffer.get(yRow1 + col1) & 0xFF, fx);
+                float luma = lerp(top, bottom, fy);
+                int u = (uBuffer.get(uRow + mXChroma[x] * uPixelStride) & 0xFF) - 128;
+                int v = (vBuffer.get(vRow + mXChroma[x] * vPixelStride) & 0xFF) - 128;
+
+                int index = (x * mOutHeight + y) * 3;
+                out.put(index, toChannel(luma + 1.402f * v) / divisor);
+                out.put(index + 1, toChannel(luma - 0.344136f * u - 0.714136f * v) / divisor);
+                out.put(index + 2, toChannel(luma + 1.772f * u) / divisor);
+            }
+        }
+    }
+
+    /** Computes the crop and the sampling tables, unless the source geometry did not change */
+    private void prepare(int width, int height, double cropRatio) {
+        if (width == mSourceWidth && height == mSourceHeight && cropRatio == mCropRatio) {
+            return;
+        }
+        mSourceWidth = width;
+        mSourceHeight = height;
+        mCropRatio = cropRatio;
+        mCropSize = Math.max(1, (int) Math.round(Math.min(width, height) * cropRatio));
+        mCropX = (width - mCropSize) / 2;
+        mCropY = (height - mCropSize) / 2;
+        sampleCoordinates(mCropX, mCropSize, mOutWidth, mX0, mX1, mXWeight, mXChroma);
+        sampleCoordinates(mCropY, mCropSize, mOutHeight, mY0, mY1, mYWeight, mYChroma);
+    }
+
+    /** Maps output pixel centers onto the source range of {@code size} pixels starting at {@code offset} */
+    private static void sampleCoordinates(
+            int offset, int size, int outSize, int[] first, int[] second, float[] weight, int[] chroma) {
+        float scale = (float) size / outSize;
+        for (int i = 0; i < outSize; i++) {
+            float source = Math.min(Math.max((i + 0.5f) * scale - 0.5f, 0), size - 1);
+            int floor = (int) source;
+            first[i] = offset + floor;
+            second[i] = offset + Math.min(floor + 1, size - 1);
+            weight[i] = source - floor;
+            chroma[i] = (offset + Math.round(source)) / 2;
+        }
+    }
+
+    /** Makes mRow0 and mRow1 hold the source rows y0 and y1, reusing rows read for the previous output row */
+    private void loadRows(ArgbSource source, int y0, int y1) {
+        if (mRow0Index != y0) {
+            if (mRow1Index == y0) {
+                int[] row = mRow0;
+                mRow0 = mRow1;
+                mRow1 = row;
+                mRow0Index = y0;
+                mRow1Index = -1;
+            } else {
+                source.getRow(y0, mCropX, mCropSize, mRow0);
+                mRow0Index = y0;
+            }
+        }
+        if (mRow1Index != y1) {
+            if (y1 == y0) {
+                System.arraycopy(mRow0, 0, mRow1, 0, mCropSize);
+            } else {
+                source.getRow(y1, mCropX, mCropSize, mRow1);
+            }
+            mRow1Index = y1;
+        }
+    }
+
+    private static float lerp(float a, float b, float weight) {
+        return a + (b - a) * weight;
+    }
+
+    /** Clamps a color value to [0, 255] and rounds it like a decoded 8 bit channel */
+    private static float toChannel(float value) {
+        if (value <= 0) {
+            return 0;
+        }
+        if (value >= 255) {
+            return 255;
+        }
+        return (int) (value + 0.5f);
+    }
+}
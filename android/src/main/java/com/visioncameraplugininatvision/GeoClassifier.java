@@ -8,11 +8,15 @@ import android.util.Log;
 
 import org.tensorflow.lite.Interpreter;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import timber.log.Timber;
 
@@ -21,6 +25,15 @@ public class GeoClassifier {
 
     /** Tag for the {@link Log}. */
     private static final String TAG = "GeoClassifier";
+    private static final long IDLE_THREAD_SECONDS = 10;
+
+    /** Checksums model and taxonomy files for region pack keys, so that predictions never wait for it */
+    private static final ThreadPoolExecutor sRegionPackKeyExecutor =
+        new ThreadPoolExecutor(1, 1, IDLE_THREAD_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sRegionPackKeyExecutor.allowCoreThreadTimeOut(true);
+    }
 
     private final Taxonomy mTaxonomy;
     private final String mModelFilename;
@@ -30,23 +43,44 @@ public class GeoClassifier {
 
     /** An instance of the driver class to run model inference with Tensorflow Lite. */
     private Interpreter mTFlite;
+    private final InterpreterConfig mInterpreterConfig;
+    /** Number of locations the interpreter input is currently sized for */
+    private int mInputBatchSize = 1;
+
+    public InterpreterConfig getInterpreterConfig() {
+        return mInterpreterConfig;
+    }
+
+    public int getModelSize() {
+        return mModelSize;
+    }
 
-    /** Instance variables to cache the geomodel results */
-    private final float mLocationChangeThreshold = 0.001f;
+    /**
+     * The results of the last location. More results are cached by cell in the {@link GeoScoreCache}
+     * and, if enabled, on disk in the {@link GeoScoreStore}, or precomputed in a {@link GeoRegionPack}.
+     */
     private float[][] mCachedGeoResult;
-    private double mCachedLatitude;
-    private double mCachedLongitude;
-    private double mCachedElevation;
+    private long mCachedCell;
+    /** Identifies the model and taxonomy in region packs, computed when first needed */
+    private volatile GeoRegionPack.ModelKey mRegionPackKey;
+    private final Object mRegionPackKeyLock = new Object();
+    private boolean mRegionPackKeyRequested;
 
-    /** Initializes a {@code GeoClassifier}. */
+    /** Initializes a {@code GeoClassifier} with the default interpreter options. */
     public GeoClassifier(String modelPath, String taxonomyPath, String version) throws IOException {
+        this(modelPath, taxonomyPath, version, InterpreterConfig.DEFAULT);
+    }
+
+    /** Initializes a {@code GeoClassifier}. */
+    public GeoClassifier(String modelPath, String taxonomyPath, String version, InterpreterConfig interpreterConfig) throws IOException {
         mModelFilename = modelPath;
         mTaxonomyFilename = taxonomyPath;
         mModelVersion = version;
-        mTFlite = new Interpreter(loadModelFile());
+        mInterpreterConfig = interpreterConfig;
+        mTFlite = new Interpreter(loadModelFile(), mInterpreterConfig.toInterpreterOptions());
         Timber.tag(TAG).d("Created a Tensorflow Lite Geomodel Classifier.");
 
-        mTaxonomy = new Taxonomy(new FileInputStream(mTaxonomyFilename), mModelVersion);
+        mTaxonomy = TaxonomyRegistry.acquire(mTaxonomyFilename, mModelVersion);
         mModelSize = mTaxonomy.getModelSize();
     }
 
@@ -70,23 +104,158 @@ public class GeoClassifier {
         return new float[] { (float) a, (float) b, (float) c, (float) d, (float) normElev };
     }
 
+    /**
+     * Identifies the model and taxonomy files in region packs. Reads both files on the first call, so
+     * call it off the frame path. Does not hold the classifier lock while reading.
+     */
+    public GeoRegionPack.ModelKey getRegionPackKey() throws IOException {
+        synchronized (mRegionPackKeyLock) {
+            if (mRegionPackKey == null) {
+                mRegionPackKey = GeoRegionPack.ModelKey.of(new File(mModelFilename), new File(mTaxonomyFilename), mModelVersion);
+            }
+            return mRegionPackKey;
+        }
+    }
+
+    /** Computes the region pack key in the background, once */
+    private void requestRegionPackKey() {
+        synchronized (mRegionPackKeyLock) {
+            if (mRegionPackKeyRequested) return;
+            mRegionPackKeyRequested = true;
+        }
+        sRegionPackKeyExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getRegionPackKey();
+                } catch (IOException e) {
+                    Timber.tag(TAG).w("Failed to identify the model for region packs: " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the scores of the cell from a loaded region pack of this model and taxonomy. Until the key
+     * of the model is computed, packs are skipped and the geomodel runs instead.
+     */
+    private boolean readRegionPack(long cell, float[] scores) {
+        if (!GeoRegionPack.hasLoadedPacks()) {
+            return false;
+        }
+        GeoRegionPack.ModelKey key = mRegionPackKey;
+        if (key == null) {
+            requestRegionPackKey();
+            return false;
+        }
+        return GeoRegionPack.read(key, cell, scores);
+    }
+
     public float[][] predictionsForLocation(double latitude, double longitude, double elevation) {
-        if (mCachedGeoResult == null ||
-            Math.abs(latitude - mCachedLatitude) > mLocationChangeThreshold ||
-            Math.abs(longitude - mCachedLongitude) > mLocationChangeThreshold ||
-            Math.abs(elevation - mCachedElevation) > mLocationChangeThreshold)
-        {
-            float[][] results = classify(latitude, longitude, elevation);
-            if (results != null && results.length > 0) {
-                mCachedGeoResult = results;
-                mCachedLatitude = latitude;
-                mCachedLongitude = longitude;
-                mCachedElevation = elevation;
+        long cell = GeoScoreCache.cellFor(latitude, longitude, elevation);
+        if (mCachedGeoResult != null && cell == mCachedCell) {
+            return mCachedGeoResult;
+        }
+
+        float[] cachedScores = GeoScoreCache.get(this, cell);
+        if (cachedScores != null) {
+            mCachedGeoResult = new float[][] { cachedScores };
+            mCachedCell = cell;
+            return mCachedGeoResult;
+        }
+
+        float[] scores = new float[mModelSize];
+        if (readRegionPack(cell, scores)) {
+            mCachedGeoResult = new float[][] { scores };
+            mCachedCell = cell;
+            return mCachedGeoResult;
+        }
+
+        GeoScoreStore store = GeoScoreStore.forModel(mModelFilename, mModelVersion, mModelSize);
+        if (store != null && store.read(cell, scores)) {
+            GeoScoreCache.put(this, cell, scores);
+            mCachedGeoResult = new float[][] { scores };
+            mCachedCell = cell;
+            return mCachedGeoResult;
+        }
+
+        float[][] results = classify(latitude, longitude, elevation);
+        if (results != null && results.length > 0 && results[0] != null) {
+            GeoScoreCache.put(this, cell, results[0]);
+            if (store != null) {
+                store.write(cell, results[0]);
             }
-            return results;
+            mCachedGeoResult = results;
+            mCachedCell = cell;
         }
+        return results;
+    }
+
+    /** Receives the scores of each location of {@link #predictionsForLocations} */
+    public interface LocationScoresListener {
+        /**
+         * Called with the scores of location {@code index}, in the order of the locations, or null if its
+         * batch failed. The array is reused for the following locations.
+         */
+        void onScores(int index, float[] scores);
+    }
 
-        return mCachedGeoResult;
+    /** Maximum number of locations classified with one interpreter run */
+    public static final int MAX_BATCH_SIZE = 256;
+    /** Memory the output of one batch may take */
+    private static final long MAX_BATCH_OUTPUT_BYTES = 8L * 1024 * 1024;
+
+    /** Number of locations per interpreter run, bounded by {@link #MAX_BATCH_SIZE} and the output memory */
+    public int getBatchSize() {
+        return (int) Math.max(1, Math.min(MAX_BATCH_SIZE, MAX_BATCH_OUTPUT_BYTES / (4L * mModelSize)));
+    }
+
+    /**
+     * Classifies many locations ({latitude, longitude, elevation} each) with one interpreter run per
+     * batch of {@link #getBatchSize} locations and passes the scores of each location to the listener,
+     * so only one batch of scores is held at a time. Bypasses the location caches.
+     * Returns false if the classifier is closed.
+     */
+    public boolean predictionsForLocations(double[][] locations, LocationScoresListener listener) {
+        if (mTFlite == null) {
+            Timber.tag(TAG).e("Geomodel classifier has not been initialized; Skipped.");
+            return false;
+        }
+        int batchSize = Math.min(getBatchSize(), Math.max(1, locations.length));
+        float[][] outputArray = new float[batchSize][mModelSize];
+        for (int start = 0; start < locations.length; start += batchSize) {
+            int count = Math.min(batchSize, locations.length - start);
+            float[][] inputArray = new float[count][];
+            for (int i = 0; i < count; i++) {
+                double[] location = locations[start + i];
+                inputArray[i] = normAndEncodeLocation(location[0], location[1], location[2]);
+            }
+            // The output of a smaller last batch is the first rows of the output array
+            float[][] batchOutput = count == batchSize ? outputArray : new float[count][];
+            if (batchOutput != outputArray) {
+                System.arraycopy(outputArray, 0, batchOutput, 0, count);
+            }
+            boolean succeeded;
+            try {
+                resizeInput(count);
+                mTFlite.run(inputArray, batchOutput);
+                succeeded = true;
+            } catch (Exception exc) {
+                exc.printStackTrace();
+                succeeded = false;
+            } catch (OutOfMemoryError exc) {
+                exc.printStackTrace();
+                succeeded = false;
+            }
+            for (int i = 0; i < count; i++) {
+                listener.onScores(start + i, succeeded ? batchOutput[i] : null);
+            }
+        }
+        return true;
+    }
+
+    public List<Prediction> expectedNearbyFromScores(float[] scores) {
+        return mTaxonomy.expectedNearbyFromClassification(new float[][] { scores });
     }
 
     public List<Prediction> expectedNearby(double latitude, double longitude, double elevation) {
@@ -112,6 +281,7 @@ public class GeoClassifier {
 
         // Run inference
         try {
+            resizeInput(1);
             mTFlite.run(inputArray, outputArray);
             return outputArray;
         } catch (Exception exc) {
@@ -123,10 +293,36 @@ public class GeoClassifier {
         }
     }
 
-    /** Closes tflite to release resources. */
-    public void close() {
+    /**
+     * Runs the model {@code runs} times on a fixed location, so the runtime sets up its kernels before
+     * the first real location. The results are not cached.
+     */
+    public void warmUp(int runs) {
+        for (int i = 0; i < runs; i++) {
+            classify(0, 0, 0);
+        }
+    }
+
+    /** Estimated memory held by this classifier: the mapped model and the cached scores. */
+    public long getEstimatedBytes() {
+        return new File(mModelFilename).length() + 4L * mModelSize;
+    }
+
+    /** Closes tflite and releases the shared taxonomy. Waits for a classification holding the lock. */
+    public synchronized void close() {
+        if (mTFlite == null) return;
         mTFlite.close();
         mTFlite = null;
+        mCachedGeoResult = null;
+        GeoScoreCache.remove(this);
+        TaxonomyRegistry.release(mTaxonomy);
+    }
+
+    private void resizeInput(int batchSize) {
+        if (batchSize == mInputBatchSize) return;
+        mTFlite.resizeInput(0, new int[] { batchSize, 5 });
+        mTFlite.allocateTensors();
+        mInputBatchSize = batchSize;
     }
 
     /** Memory-map the model file in Assets. */
@@ -0,0 +1,369 @@
+package com.visioncameraplugininatvision;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import timber.log.Timber;
+
+/**
+ * Precomputed geomodel scores of the location cells of a region, so that geomodel predictions work
+ * offline without running the interpreter. A pack file has a header with the {@link ModelKey} of the
+ * geomodel and taxonomy it was scored with and the number of scores per cell, the sorted cell ids (see
+ * {@link GeoScoreCache#cellFor}) and one record per cell of a scale and 8-bit scores (see
+ * {@link GeoScoreCache#toByte}). Packs are read through a memory mapping, cells are found by binary
+ * search. Loaded packs are used by every {@link GeoClassifier} with the same key. Thread-safe.
+ */
+public class GeoRegionPack {
+    private static final String TAG = "GeoRegionPack";
+
+    private static final int MAGIC = 0x47525032; // "GRP2"
+    private static final int HEADER_BYTES = 64;
+    private static final int MAX_VERSION_BYTES = 32;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** Largest pack that can be read, a memory mapping holds at most this many bytes */
+    static final long MAX_PACK_BYTES = Integer.MAX_VALUE;
+
+    private static final List<GeoRegionPack> sPacks = new ArrayList<>();
+
+    private final File mFile;
+    private final ModelKey mKey;
+    private final int mSize;
+    private final int mCellCount;
+    private final int mRecordBytes;
+    private final MappedByteBuffer mMapped;
+
+    /**
+     * Identifies the geomodel and taxonomy a pack was scored with: CRC32 checksums of the contents of
+     * both files and the model version.
+     */
+    public static final class ModelKey {
+        final long modelChecksum;
+        final long taxonomyChecksum;
+        final String version;
+
+        ModelKey(long modelChecksum, long taxonomyChecksum, String version) {
+            this.modelChecksum = modelChecksum;
+            this.taxonomyChecksum = taxonomyChecksum;
+            this.version = version;
+        }
+
+        /** Reads both files to checksum them */
+        public static ModelKey of(File modelFile, File taxonomyFile, String version) throws IOException {
+            return new ModelKey(checksum(modelFile), checksum(taxonomyFile), version);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ModelKey)) return false;
+            ModelKey key = (ModelKey) o;
+            return modelChecksum == key.modelChecksum &&
+                taxonomyChecksum == key.taxonomyChecksum &&
+                version.equals(key.version);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Long.hashCode(modelChecksum);
+            result = 31 * result + Long.hashCode(taxonomyChecksum);
+            result = 31 * result + version.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "ModelKey(" + Long.toHexString(modelChecksum) + ", " + Long.toHexString(taxonomyChecksum) + ", " + version + ")";
+        }
+    }
+
+    /** Thrown for a pack larger than can be mapped, see {@link #MAX_PACK_BYTES} */
+    public static class PackTooLargeException extends IOException {
+        PackTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /** Scores and writes the cells of a pack, see {@link #write} */
+    public interface CellScorer {
+        /**
+         * Passes the scores of the locations ({latitude, longitude, elevation} each) to the listener,
+         * in order.
+         */
+        void score(double[][] locations, GeoClassifier.LocationScoresListener listener) throws IOException;
+    }
+
+    /**
+     * Writes a pack of the given locations, scored by the scorer in batches of {@code batchSize}, for the
+     * geomodel and taxonomy of the key with {@code size} scores per location. Locations in the same cell
+     * are scored once. The pack is written to a temporary file first and replaces the file only once it
+     * is complete. Returns the number of cells in the pack. Throws a {@link PackTooLargeException} before
+     * scoring if the pack would be larger than {@link #MAX_PACK_BYTES}.
+     */
+    public static int write(File file, ModelKey key, int size, double[][] locations, int batchSize, CellScorer scorer) throws IOException {
+        byte[] version = key.version.getBytes(UTF_8);
+        if (version.length > MAX_VERSION_BYTES) {
+            throw new IOException("Model version too long for a region pack: " + key.version);
+        }
+
+        // Sorted by cell id, so the cells can be written as they are scored
+        long[] cells = new long[locations.length];
+        Map<Long, double[]> locationsByCell = new HashMap<>();
+        for (double[] location : locations) {
+            locationsByCell.put(GeoScoreCache.cellFor(location[0], location[1], location[2]), location);
+        }
+        int cellCount = 0;
+        for (Long cell : locationsByCell.keySet()) {
+            cells[cellCount++] = cell;
+        }
+        cells = Arrays.copyOf(cells, cellCount);
+        Arrays.sort(cells);
+        long packBytes = packBytes(size, cellCount);
+        if (packBytes > MAX_PACK_BYTES) {
+            throw new PackTooLargeException("Region pack of " + cellCount + " cells would have " + packBytes +
+                " bytes, more than " + MAX_PACK_BYTES + ", prepare a smaller region");
+        }
+
+        // Unique, so concurrent writers of the same pack do not write into each other's file
+        File partialFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        RandomAccessFile randomAccessFile = new RandomAccessFile(partialFile, "rw");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + 8 * cellCount).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putLong(key.modelChecksum);
+            header.putLong(key.taxonomyChecksum);
+            header.putInt(size);
+            header.putInt(cellCount);
+            header.putInt(version.length);
+            header.put(version);
+            header.position(HEADER_BYTES);
+            for (long cell : cells) {
+                header.putLong(cell);
+            }
+            header.flip();
+            writeFully(channel, header, 0);
+
+            final ByteBuffer record = ByteBuffer.allocate(4 + size).order(ByteOrder.LITTLE_ENDIAN);
+            final long recordsStart = HEADER_BYTES + 8L * cellCount;
+            final IOException[] writeError = new IOException[1];
+            for (int start = 0; start < cellCount; start += batchSize) {
+                final int batchStart = start;
+                double[][] batch = new double[Math.min(batchSize, cellCount - start)][];
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = locationsByCell.get(cells[start + i]);
+                }
+                scorer.score(batch, new GeoClassifier.LocationScoresListener() {
+                    @Override
+                    public void onScores(int index, float[] scores) {
+                        if (writeError[0] != null) return;
+                        record.clear();
+                        if (scores == null) {
+                            // Failed cells are written without scores, with a scale of 0, and read as missing
+                            record.putFloat(0);
+                            record.put(new byte[record.remaining()]);
+                        } else {
+                            float scale = GeoScoreCache.byteScale(scores);
+                            record.putFloat(scale);
+                            for (float score : scores) {
+                                record.put(GeoScoreCache.toByte(score, scale));
+                            }
+                        }
+                        record.flip();
+                        try {
+                            writeFully(channel, record, recordsStart + (long) (batchStart + index) * record.capacity());
+                        } catch (IOException e) {
+                            writeError[0] = e;
+                        }
+                    }
+                });
+                if (writeError[0] != null) {
+                    throw writeError[0];
+                }
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            partialFile.delete();
+            throw e;
+        }
+        randomAccessFile.close();
+        if (!partialFile.renameTo(file)) {
+            partialFile.delete();
+            throw new IOException("Failed to write " + file);
+        }
+        Timber.tag(TAG).d("Wrote " + file + " with " + cellCount + " cells");
+        return cellCount;
+    }
+
+    /** Loads a pack so that geomodel classifiers use it, replacing a loaded pack of the same file */
+    public static GeoRegionPack load(File file) throws IOException {
+        GeoRegionPack pack = new GeoRegionPack(file.getCanonicalFile());
+        synchronized (sPacks) {
+            removeLoaded(pack.mFile);
+            sPacks.add(pack);
+        }
+        Timber.tag(TAG).d("Loaded " + pack.mFile + " with " + pack.mCellCount + " cells");
+        return pack;
+    }
+
+    /** Unloads the pack of a file, or all packs if the file is null */
+    public static void unload(File file) throws IOException {
+        File canonicalFile = file != null ? file.getCanonicalFile() : null;
+        synchronized (sPacks) {
+            if (canonicalFile == null) {
+                sPacks.clear();
+            } else {
+                removeLoaded(canonicalFile);
+            }
+        }
+    }
+
+    /** Whether any pack is loaded, so that callers can skip computing their key otherwise */
+    public static boolean hasLoadedPacks() {
+        synchronized (sPacks) {
+            return !sPacks.isEmpty();
+        }
+    }
+
+    /**
+     * Reads the scores of the cell from a loaded pack with the key and {@code out.length} scores, returns
+     * false if no such pack has the cell.
+     */
+    public static boolean read(ModelKey key, long cell, float[] out) {
+        synchronized (sPacks) {
+            for (GeoRegionPack pack : sPacks) {
+                if (pack.mKey.equals(key) && pack.mSize == out.length && pack.readCell(cell, out)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Number of loaded packs, their cells and their size */
+    public static Map<String, Object> getStats() {
+        long cells = 0;
+        long bytes = 0;
+        int packs;
+        synchronized (sPacks) {
+            packs = sPacks.size();
+            for (GeoRegionPack pack : sPacks) {
+                cells += pack.mCellCount;
+                bytes += pack.mMapped.capacity();
+            }
+        }
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("packs", (double) packs);
+        stats.put("entries", (double) cells);
+        stats.put("bytes", (double) bytes);
+        return stats;
+    }
+
+    private static void removeLoaded(File file) {
+        Iterator<GeoRegionPack> iterator = sPacks.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().mFile.equals(file)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /** CRC32 of the contents of a file */
+    static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                crc.update(buffer, 0, count);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /** Bytes of a pack with the number of scores per cell and cells */
+    static long packBytes(int size, int cellCount) {
+        return HEADER_BYTES + 8L * cellCount + (long) cellCount * (4 + size);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private GeoRegionPack(File file) throws IOException {
+        mFile = file;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            if (randomAccessFile.length() > MAX_PACK_BYTES) {
+                throw new PackTooLargeException("Region pack too large to load: " + file);
+            }
+            // The mapping stays valid after the file is closed
+            mMapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+        mMapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (mMapped.capacity() < HEADER_BYTES || mMapped.getInt(0) != MAGIC) {
+            throw new IOException("Not a region pack: " + file);
+        }
+        int versionLength = mMapped.getInt(28);
+        if (versionLength < 0 || versionLength > MAX_VERSION_BYTES) {
+            throw new IOException("Not a region pack: " + file);
+        }
+        byte[] version = new byte[versionLength];
+        mMapped.position(32);
+        mMapped.get(version);
+        mKey = new ModelKey(mMapped.getLong(4), mMapped.getLong(12), new String(version, UTF_8));
+        mSize = mMapped.getInt(20);
+        mCellCount = mMapped.getInt(24);
+        mRecordBytes = 4 + mSize;
+        if (mCellCount < 0 || mSize < 0 || mMapped.capacity() != packBytes(mSize, mCellCount)) {
+            throw new IOException("Incomplete region pack: " + file);
+        }
+    }
+
+    /** Finds the cell by binary search over the sorted cell ids and decodes its scores */
+    private boolean readCell(long cell, float[] out) {
+        int low = 0;
+        int high = mCellCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleCell = mMapped.getLong(HEADER_BYTES + 8 * middle);
+            if (middleCell < cell) {
+                low = middle + 1;
+            } else if (middleCell > cell) {
+                high = middle - 1;
+            } else {
+                int position = HEADER_BYTES + 8 * mCellCount + middle * mRecordBytes;
+                float scale = mMapped.getFloat(position);
+                if (scale <= 0) {
+                    return false;
+                }
+                position += 4;
+                for (int i = 0; i < mSize; i++) {
+                    out[i] = GeoScoreCache.fromByte(mMapped.get(position + i), scale);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,259 @@
+package com.visioncameraplugininatvision;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of geomodel scores by location cell, so that moving between a few locations does
+ * not run the geomodel again for every move. Scores are keyed by the geomodel classifier and a cell
+ * id, see {@link #cellFor}. Entries are evicted least recently used first when the cache holds more
+ * than its byte budget. Scores can be stored as floats, half precision floats or 8-bit values on a log
+ * scale below the largest score of the vector; the compact formats trade precision for more cached
+ * locations.
+ * Thread-safe.
+ */
+public class GeoScoreCache {
+    public static final String PRECISION_FLOAT = "float";
+    public static final String PRECISION_HALF = "half";
+    public static final String PRECISION_BYTE = "byte";
+
+    public static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+
+    /** Coordinates closer than this, in degrees, share a cell */
+    private static final double DEGREES_PER_CELL = 0.001;
+    /** Elevations closer than this, in meters, share a cell */
+    private static final double METERS_PER_CELL = 1.0;
+    /** Estimated bytes of an entry besides its scores */
+    private static final long ENTRY_OVERHEAD_BYTES = 64;
+    /** 8-bit scores cover scores down to this fraction of the largest score, smaller ones are 0 */
+    private static final double BYTE_MIN_RATIO = 1e-6;
+    /** Score of each 8-bit value as a fraction of the largest score */
+    private static final float[] BYTE_RATIOS = new float[256];
+
+    static {
+        for (int i = 1; i < 256; i++) {
+            BYTE_RATIOS[i] = (float) Math.pow(BYTE_MIN_RATIO, (255 - i) / 254.0);
+        }
+    }
+
+    private static class Key {
+        final Object owner;
+        final long cell;
+
+        Key(Object owner, long cell) {
+            this.owner = owner;
+            this.cell = cell;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return owner == key.owner && cell == key.cell;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(owner) + Long.hashCode(cell);
+        }
+    }
+
+    private static class Entry {
+        final int size;
+        float[] floats;
+        short[] halfs;
+        byte[] bytes;
+        float scale;
+
+        Entry(float[] scores, String precision) {
+            size = scores.length;
+            if (PRECISION_HALF.equals(precision)) {
+                halfs = new short[size];
+                for (int i = 0; i < size; i++) {
+                    halfs[i] = ScoreSmoother.toHalf(scores[i]);
+                }
+            } else if (PRECISION_BYTE.equals(precision)) {
+                scale = byteScale(scores);
+                bytes = new byte[size];
+                for (int i = 0; i < size; i++) {
+                    bytes[i] = toByte(scores[i], scale);
+                }
+            } else {
+                floats = scores.clone();
+            }
+        }
+
+        long getEstimatedBytes() {
+            if (halfs != null) return ENTRY_OVERHEAD_BYTES + 2L * size;
+            if (bytes != null) return ENTRY_OVERHEAD_BYTES + size;
+            return ENTRY_OVERHEAD_BYTES + 4L * size;
+        }
+
+        float[] decode() {
+            if (floats != null) {
+                return floats.clone();
+            }
+            float[] scores = new float[size];
+            if (halfs != null) {
+                for (int i = 0; i < size; i++) {
+                    scores[i] = ScoreSmoother.toFloat(halfs[i]);
+                }
+            } else {
+                for (int i = 0; i < size; i++) {
+                    scores[i] = fromByte(bytes[i], scale);
+                }
+            }
+            return scores;
+        }
+    }
+
+    // In access order, the least recently used entry first
+    private static final LinkedHashMap<Key, Entry> sEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private static long sMaxBytes = DEFAULT_MAX_BYTES;
+    private static String sPrecision = PRECISION_FLOAT;
+    private static long sBytes = 0;
+    private static long sHits = 0;
+    private static long sMisses = 0;
+    private static long sEvictions = 0;
+
+    private GeoScoreCache() {
+    }
+
+    /**
+     * Id of the cell a location falls in: latitude and longitude in steps of {@link #DEGREES_PER_CELL}
+     * and elevation in steps of {@link #METERS_PER_CELL}. Locations snapped to the same H3 cell centroid
+     * by the JS side always get the same id.
+     */
+    public static long cellFor(double latitude, double longitude, double elevation) {
+        long latitudeIndex = Math.round((latitude + 90) / DEGREES_PER_CELL); // < 2^18
+        long longitudeIndex = Math.round((longitude + 180) / DEGREES_PER_CELL); // < 2^19
+        long elevationIndex = Math.round(elevation / METERS_PER_CELL) + (1L << 16); // < 2^17 for -65536 to 65535 m
+        return (latitudeIndex << 36) | (longitudeIndex << 17) | (elevationIndex & 0x1FFFF);
+    }
+
+    /** Scale of the 8-bit scores of a vector: its largest score, which maps to 255 */
+    static float byteScale(float[] scores) {
+        float max = 0;
+        for (float score : scores) {
+            max = Math.max(max, score);
+        }
+        return max;
+    }
+
+    /**
+     * A score as an 8-bit value on a log scale: 255 is the scale, 1 is {@link #BYTE_MIN_RATIO} times the
+     * scale, and every step in between is the same factor of about 1.056. Scores below that range are 0.
+     * Small scores keep their relative precision, within about 3%, instead of rounding to 0.
+     */
+    static byte toByte(float score, float scale) {
+        if (!(scale > 0) || !(score > 0)) {
+            return 0;
+        }
+        long value = 255 + Math.round(254 * Math.log(score / scale) / -Math.log(BYTE_MIN_RATIO));
+        return (byte) Math.max(0, Math.min(255, value));
+    }
+
+    /** The score of an 8-bit value, see {@link #toByte} */
+    static float fromByte(byte value, float scale) {
+        return BYTE_RATIOS[value & 0xFF] * scale;
+    }
+
+    /** The cached scores of the owner for the cell, as a new array, or null on a miss */
+    public static float[] get(Object owner, long cell) {
+        Entry entry;
+        synchronized (sEntries) {
+            entry = sEntries.get(new Key(owner, cell));
+            if (entry == null) {
+                sMisses++;
+                return null;
+            }
+            sHits++;
+        }
+        // Entries are immutable once added
+        return entry.decode();
+    }
+
+    /** Caches the scores of the owner for the cell in the current precision */
+    public static void put(Object owner, long cell, float[] scores) {
+        Entry entry;
+        synchronized (sEntries) {
+            if (sMaxBytes <= 0) return;
+            entry = new Entry(scores, sPrecision);
+            Entry previous = sEntries.put(new Key(owner, cell), entry);
+            if (previous != null) {
+                sBytes -= previous.getEstimatedBytes();
+            }
+            sBytes += entry.getEstimatedBytes();
+            evict();
+        }
+    }
+
+    /** Removes all scores of the owner, e.g. when its model is closed */
+    public static void remove(Object owner) {
+        synchronized (sEntries) {
+            Iterator<Map.Entry<Key, Entry>> iterator = sEntries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Key, Entry> entry = iterator.next();
+                if (entry.getKey().owner != owner) continue;
+                iterator.remove();
+                sBytes -= entry.getValue().getEstimatedBytes();
+            }
+        }
+    }
+
+    public static long getMaxBytes() {
+        synchronized (sEntries) {
+            return sMaxBytes;
+        }
+    }
+
+    public static String getPrecision() {
+        synchronized (sEntries) {
+            return sPrecision;
+        }
+    }
+
+    /**
+     * Sets the byte budget, 0 to disable the cache, and the precision newly cached scores are stored
+     * in: {@link #PRECISION_FLOAT}, {@link #PRECISION_HALF} or {@link #PRECISION_BYTE}.
+     */
+    public static void setOptions(long maxBytes, String precision) {
+        if (!PRECISION_FLOAT.equals(precision) && !PRECISION_HALF.equals(precision) && !PRECISION_BYTE.equals(precision)) {
+            throw new IllegalArgumentException("Unknown location cache precision: " + precision);
+        }
+        synchronized (sEntries) {
+            sMaxBytes = Math.max(0, maxBytes);
+            sPrecision = precision;
+            evict();
+        }
+    }
+
+    /** Hit, miss and eviction counts and the current size of the cache */
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        synchronized (sEntries) {
+            stats.put("hits", (double) sHits);
+            stats.put("misses", (double) sMisses);
+            stats.put("evictions", (double) sEvictions);
+            stats.put("entries", (double) sEntries.size());
+            stats.put("bytes", (double) sBytes);
+            stats.put("maxBytes", (double) sMaxBytes);
+            stats.put("precision", sPrecision);
+        }
+        return stats;
+    }
+
+    /** Removes entries, least recently used first, until the cache is within its budget. Call with the lock held. */
+    private static void evict() {
+        Iterator<Entry> iterator = sEntries.values().iterator();
+        while (iterator.hasNext() && sBytes > sMaxBytes) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            sBytes -= entry.getEstimatedBytes();
+            sEvictions++;
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package com.visioncameraplugininatvision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Disk-backed store of geomodel scores by location cell, so that scores of places visited in earlier
+ * app sessions don't need an inference. There is one file per geomodel file and model version: a header
+ * with the size and modification time of the geomodel file, followed by fixed-width records of a cell
+ * id and its scores, appended as new cells are classified. Records are read through a memory mapping.
+ * The index from cell id to record is built from the record cell ids when the file is opened.
+ *
+ * The file is discarded when the geomodel file changes. When it would grow beyond the size limit it is
+ * compacted to the most recently used records. Disabled until a size limit and directory are set.
+ * Thread-safe.
+ */
+public class GeoScoreStore {
+    private static final String TAG = "GeoScoreStore";
+
+    private static final int MAGIC = 0x47535332; // "GSS2"
+    private static final int HEADER_BYTES = 32;
+    /** Cell id and the scale of 8-bit scores */
+    private static final int RECORD_HEADER_BYTES = 12;
+    /** Fraction of the size limit kept by a compaction, so that it is not needed again right away */
+    private static final double COMPACTION_FILL = 0.75;
+
+    private static final int PRECISION_FLOAT = 0;
+    private static final int PRECISION_HALF = 1;
+    private static final int PRECISION_BYTE = 2;
+
+    private static final Map<String, GeoScoreStore> sStores = new HashMap<>();
+    private static File sDirectory = null;
+    private static long sMaxBytes = 0; // 0 -> disabled
+
+    private final File mFile;
+    private final int mSize;
+    private final long mMaxBytes;
+    private int mPrecision;
+    private int mRecordBytes;
+    private final long mModelLength;
+    private final long mModelLastModified;
+
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mMapped;
+    private int mMappedRecords = 0;
+    private int mRecordCount = 0;
+    // Record number by cell id, in access order, the least recently used cell first
+    private final LinkedHashMap<Long, Integer> mIndex = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mCompactions = 0;
+
+    /**
+     * Sets the directory of the store files and the size limit of each file, 0 to disable the store.
+     * Open stores are closed, their files are kept.
+     */
+    public static void setOptions(File directory, long maxBytes) {
+        synchronized (sStores) {
+            closeAll();
+            sDirectory = directory;
+            // Records are addressed by int offsets into one mapping
+            sMaxBytes = Math.min(Integer.MAX_VALUE, Math.max(0, maxBytes));
+        }
+    }
+
+    public static long getMaxBytes() {
+        synchronized (sStores) {
+            return sMaxBytes;
+        }
+    }
+
+    /**
+     * The store of a geomodel file and version with {@code size} scores per location, or null if the
+     * store is disabled or can't be opened. New files store scores in the precision of the
+     * {@link GeoScoreCache}. A store whose geomodel file changed since it was opened starts over. A size
+     * limit too small to keep a record after a compaction disables the store of the geomodel.
+     */
+    public static GeoScoreStore forModel(String modelPath, String version, int size) {
+        synchronized (sStores) {
+            if (sMaxBytes <= 0 || sDirectory == null) {
+                return null;
+            }
+            if (compactedRecords(sMaxBytes, recordBytes(size, precisionCode(GeoScoreCache.getPrecision()))) <= 0) {
+                return null;
+            }
+            try {
+                File modelFile = new File(modelPath).getCanonicalFile();
+                String key = modelFile.getPath() + "|" + version;
+                GeoScoreStore store = sStores.get(key);
+                if (store != null && store.isValidFor(modelFile, size)) {
+                    return store;
+                }
+                if (store != null) {
+                    Timber.tag(TAG).d("Geomodel changed, discarding stored scores: " + store.mFile);
+                    store.close();
+                    store.mFile.delete();
+                    sStores.remove(key);
+                }
+                if (!sDirectory.isDirectory() && !sDirectory.mkdirs()) {
+                    throw new IOException("Can't create " + sDirectory);
+                }
+                String fileName = modelFile.getName().replaceAll("[^A-Za-z0-9._-]", "_") + "-" + version +
+                    "-" + Integer.toHexString(modelFile.getPath().hashCode()) + ".scores";
+                store = new GeoScoreStore(new File(sDirectory, fileName), modelFile, size, sMaxBytes, precisionCode(GeoScoreCache.getPrecision()));
+                sStores.put(key, store);
+                return store;
+            } catch (IOException e) {
+                Timber.tag(TAG).w("Failed to open the geomodel score store: " + e);
+                return null;
+            }
+        }
+    }
+
+    /** Hit, miss and compaction counts and the size of all open stores */
+    public static Map<String, Object> getStats() {
+        long hits = 0;
+        long misses = 0;
+        long compactions = 0;
+        long records = 0;
+        long bytes = 0;
+        long maxBytes;
+        synchronized (sStores) {
+            maxBytes = sMaxBytes;
+            for (GeoScoreStore store : sStores.values()) {
+                synchronized (store) {
+                    hits += store.mHits;
+                    misses += store.mMisses;
+                    compactions += store.mCompactions;
+                    records += store.mRecordCount;
+                    bytes += HEADER_BYTES + (long) store.mRecordCount * store.mRecordBytes;
+                }
+            }
+        }
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("hits", (double) hits);
+        stats.put("misses", (double) misses);
+        stats.put("compactions", (double) compactions);
+        stats.put("entries", (double) records);
+        stats.put("bytes", (double) bytes);
+        stats.put("maxBytes", (double) maxBytes);
+        return stats;
+    }
+
+    private static void closeAll() {
+        for (GeoScoreStore store : sStores.values()) {
+            store.close();
+        }
+        sStores.clear();
+    }
+
+    private GeoScoreStore(File file, File modelFile, int size, long maxBytes, int precision) throws IOException {
+        mFile = file;
+        mSize = size;
+        mMaxBytes = maxBytes;
+        mModelLength = modelFile.length();
+        mModelLastModified = modelFile.lastModified();
+        open(precision);
+    }
+
+    private boolean isValidFor(File modelFile, int size) {
+        return size == mSize && modelFile.length() == mModelLength && modelFile.lastModified() == mModelLastModified;
+    }
+
+    /**
+     * Reads the stored scores of the cell into {@code out}, returns false if the cell is not stored.
+     * The scores are decoded straight from the mapped file.
+     */
+    public synchronized boolean read(long cell, float[] out) {
+        Integer record = mIndex.get(cell);
+        if (record == null || mChannel == null) {
+            mMisses++;
+            return false;
+        }
+        try {
+            ensureMapped(record + 1);
+        } catch (IOException e) {
+            Timber.tag(TAG).w("Failed to map " + mFile + ": " + e);
+            mMisses++;
+            return false;
+        }
+        int position = HEADER_BYTES + record * mRecordBytes;
+        float scale = mMapped.getFloat(position + 8);
+        position += RECORD_HEADER_BYTES;
+        if (mPrecision == PRECISION_FLOAT) {
+            for (int i = 0; i < mSize; i++, position += 4) {
+                out[i] = mMapped.getFloat(position);
+            }
+        } else if (mPrecision == PRECISION_HALF) {
+            for (int i = 0; i < mSize; i++, position += 2) {
+                out[i] = ScoreSmoother.toFloat(mMapped.getShort(position));
+            }
+        } else {
+            for (int i = 0; i < mSize; i++, position++) {
+                out[i] = GeoScoreCache.fromByte(mMapped.get(position), scale);
+            }
+        }
+        mHits++;
+        return true;
+    }
+
+    /** Appends the scores of a cell that is not stored yet, compacting the file first if it would grow too large */
+    public synchronized void write(long cell, float[] scores) {
+        if (mChannel == null || scores.length != mSize || mIndex.containsKey(cell)) {
+            return;
+        }
+        try {
+            if (HEADER_BYTES + (long) (mRecordCount + 1) * mRecordBytes > mMaxBytes) {
+                int keep = compactedRecords(mMaxBytes, mRecordBytes);
+                if (keep <= 0) {
+                    // A compaction would keep nothing and the record would not fit either
+                    return;
+                }
+                compact(keep);
+            }
+            if (HEADER_BYTES + (long) (mRecordCount + 1) * mRecordBytes > mMaxBytes) {
+                return;
+            }
+            ByteBuffer record = ByteBuffer.allocate(mRecordBytes).order(ByteOrder.LITTLE_ENDIAN);
+            record.putLong(cell);
+            encode(scores, record);
+            record.flip();
+            long position = HEADER_BYTES + (long) mRecordCount * mRecordBytes;
+            while (record.hasRemaining()) {
+                position += mChannel.write(record, position);
+            }
+            mIndex.put(cell, mRecordCount++);
+        } catch (IOException e) {
+            Timber.tag(TAG).w("Failed to store geomodel scores in " + mFile + ": " + e);
+        }
+    }
+
+    /** Writes the scale and the scores in the precision of the file */
+    private void encode(float[] scores, ByteBuffer record) {
+        if (mPrecision == PRECISION_FLOAT) {
+            record.putFloat(0);
+            for (float score : scores) {
+                record.putFloat(score);
+            }
+        } else if (mPrecision == PRECISION_HALF) {
+            record.putFloat(0);
+            for (float score : scores) {
+                record.putShort(ScoreSmoother.toHalf(score));
+            }
+        } else {
+            float scale = GeoScoreCache.byteScale(scores);
+            record.putFloat(scale);
+            for (float score : scores) {
+                record.put(GeoScoreCache.toByte(score, scale));
+            }
+        }
+    }
+
+    /**
+     * Opens the file, or creates it if it is missing or does not match the geomodel, and builds the index.
+     * A partly written last record is cut off.
+     */
+    private void open(int precision) throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        if (!readHeader()) {
+            mPrecision = precision;
+            mRecordBytes = recordBytes(mSize, precision);
+            writeHeader();
+        }
+        long size = mChannel.size();
+        mRecordCount = (int) ((size - HEADER_BYTES) / mRecordBytes);
+        if (HEADER_BYTES + (long) mRecordCount * mRecordBytes != size) {
+            mChannel.truncate(HEADER_BYTES + (long) mRecordCount * mRecordBytes);
+        }
+        mIndex.clear();
+        mMapped = null;
+        mMappedRecords = 0;
+        ensureMapped(mRecordCount);
+        for (int record = 0; record < mRecordCount; record++) {
+            mIndex.put(mMapped.getLong(HEADER_BYTES + record * mRecordBytes), record);
+        }
+        Timber.tag(TAG).d("Opened " + mFile + " with " + mRecordCount + " locations");
+    }
+
+    /** Reads the header, returns false if the file is new or was written for another geomodel */
+    private boolean readHeader() throws IOException {
+        if (mChannel.size() < HEADER_BYTES) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        mChannel.read(header, 0);
+        header.flip();
+        int magic = header.getInt();
+        long modelLength = header.getLong();
+        long modelLastModified = header.getLong();
+        int size = header.getInt();
+        int precision = header.getInt();
+        if (magic != MAGIC || modelLength != mModelLength || modelLastModified != mModelLastModified ||
+            size != mSize || precision < PRECISION_FLOAT || precision > PRECISION_BYTE) {
+            Timber.tag(TAG).d("Discarding stored scores of another geomodel: " + mFile);
+            return false;
+        }
+        mPrecision = precision;
+        mRecordBytes = recordBytes(mSize, precision);
+        return true;
+    }
+
+    private void writeHeader() throws IOException {
+        mChannel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putLong(mModelLength);
+        header.putLong(mModelLastModified);
+        header.putInt(mSize);
+        header.putInt(mPrecision);
+        header.rewind();
+        mChannel.write(header, 0);
+    }
+
+    /** Maps the file again if records were appended after the current mapping was made */
+    private void ensureMapped(int records) throws IOException {
+        if (mMapped != null && records <= mMappedRecords) {
+            return;
+        }
+        mMapped = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES + (long) mRecordCount * mRecordBytes);
+        mMapped.order(ByteOrder.LITTLE_ENDIAN);
+        mMappedRecords = mRecordCount;
+    }
+
+    /**
+     * Rewrites the file with the {@code keep} most recently used records, least recently used first, so
+     * that the record order approximates the use order in the next session.
+     */
+    private void compact(int keep) throws IOException {
+        ensureMapped(mRecordCount);
+        List<Integer> kept = new ArrayList<>();
+        Iterator<Integer> iterator = mIndex.values().iterator();
+        for (int skip = mIndex.size() - Math.max(0, keep); iterator.hasNext(); skip--) {
+            Integer record = iterator.next();
+            if (skip <= 0) {
+                kept.add(record);
+            }
+        }
+        Timber.tag(TAG).d("Compacting " + mFile + " from " + mRecordCount + " to " + kept.size() + " locations");
+
+        File compacted = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile compactedFile = new RandomAccessFile(compacted, "rw");
+        try {
+            FileChannel channel = compactedFile.getChannel();
+            channel.truncate(0);
+            ByteBuffer header = mMapped.duplicate();
+            header.position(0).limit(HEADER_BYTES);
+            channel.write(header, 0);
+            long position = HEADER_BYTES;
+            for (Integer record : kept) {
+                ByteBuffer bytes = mMapped.duplicate();
+                bytes.position(HEADER_BYTES + record * mRecordBytes).limit(HEADER_BYTES + (record + 1) * mRecordBytes);
+                while (bytes.hasRemaining()) {
+                    position += channel.write(bytes, position);
+                }
+            }
+            channel.force(false);
+        } finally {
+            compactedFile.close();
+        }
+        close();
+        if (!compacted.renameTo(mFile)) {
+            compacted.delete();
+            throw new IOException("Failed to replace " + mFile);
+        }
+        open(mPrecision);
+        mCompactions++;
+    }
+
+    private synchronized void close() {
+        mMapped = null;
+        mMappedRecords = 0;
+        if (mRandomAccessFile == null) return;
+        try {
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            Timber.tag(TAG).w("Failed to close " + mFile + ": " + e);
+        }
+        mRandomAccessFile = null;
+        mChannel = null;
+    }
+
+    /** Records kept by a compaction, leaving room for the record that triggered it */
+    private static int compactedRecords(long maxBytes, int recordBytes) {
+        return (int) ((maxBytes * COMPACTION_FILL - HEADER_BYTES) / recordBytes) - 1;
+    }
+
+    private static int recordBytes(int size, int precision) {
+        int bytesPerScore = precision == PRECISION_FLOAT ? 4 : precision == PRECISION_HALF ? 2 : 1;
+        return RECORD_HEADER_BYTES + size * bytesPerScore;
+    }
+
+    private static int precisionCode(String precision) {
+        if (GeoScoreCache.PRECISION_HALF.equals(precision)) return PRECISION_HALF;
+        if (GeoScoreCache.PRECISION_BYTE.equals(precision)) return PRECISION_BYTE;
+        return PRECISION_FLOAT;
+    }
+}
@@ -1,16 +1,17 @@
 package com.visioncameraplugininatvision;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
+import android.media.Image;
 import android.util.Log;
 
 import org.tensorflow.lite.Interpreter;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
@@ -29,6 +30,11 @@ public class ImageClassifier {
     /** Dimensions of inputs. */
     private static final int DIM_BATCH_SIZE = 1;
 
+    /** Maximum number of images classified in one interpreter run. */
+    public static final int MAX_BATCH_SIZE = 16;
+    /** Estimated memory the interpreter needs per image of a batch, besides the input and output tensors. */
+    private static final long INTERPRETER_BYTES_PER_IMAGE = 24L * 1024 * 1024;
+
     private static final int DIM_PIXEL_SIZE = 3;
 
     public static final int DIM_IMG_SIZE_X = 299;
@@ -37,61 +43,144 @@ public class ImageClassifier {
     private static final int IMAGE_MEAN = 128;
     private static final float IMAGE_STD = 128.0f;
 
+    /** Number of top leaves the common ancestor is looked up among on the JS side */
+    private static final int COMMON_ANCESTOR_LEAF_COUNT = 100;
+
     private final Taxonomy mTaxonomy;
     private final String mModelFilename;
     private final String mTaxonomyFilename;
     private final String mModelVersion;
     private int mModelSize;
 
-    /* Preallocated buffers for storing image data in. */
-    private int[] intValues = new int[DIM_IMG_SIZE_X * DIM_IMG_SIZE_Y];
+    /** Crops, scales and normalizes the input images into {@link #imgData}. */
+    private final CropScaleKernel mCropScaleKernel = new CropScaleKernel(DIM_IMG_SIZE_X, DIM_IMG_SIZE_Y);
+    private final BitmapArgbSource mBitmapSource = new BitmapArgbSource();
 
     /** An instance of the driver class to run model inference with Tensorflow Lite. */
     private Interpreter mTFlite;
+    private final InterpreterConfig mInterpreterConfig;
+
+    public InterpreterConfig getInterpreterConfig() {
+        return mInterpreterConfig;
+    }
 
     /** A ByteBuffer to hold image data, to be feed into Tensorflow Lite as inputs. */
     private ByteBuffer imgData;
+    /** Float view of {@link #imgData} the pixels are written through. */
+    private FloatBuffer imgFloatData;
+
+    /** Channel values are divided by this: model version 1.0 expects [0.0, 1.0], later versions [0, 255]. */
+    private final float mPixelDivisor;
+
+    /** Model inputs and outputs, allocated once and reused for every image. */
+    private final Object[] mInputs;
+    private final ByteBuffer mOutputBuffer;
+    private final FloatBuffer mOutputFloats;
+    private final Map<Integer, Object> mOutputs;
+    private final float[] mVisionScores;
+    private final float[] mCombinedScores;
+
+    /** Input and outputs of batched runs, allocated for the largest batch so far. */
+    private int mInputBatchSize = DIM_BATCH_SIZE;
+    private ByteBuffer mBatchInput;
+    private FloatBuffer mBatchInputFloats;
+    private ByteBuffer mBatchOutput;
+    private FloatBuffer mBatchOutputFloats;
 
     private float[][] mGeomodelScores;
 
+    /** Averages the combined scores across calls before they are aggregated, if set. */
+    private ScoreSmoother mScoreSmoother;
+    private float[] mSmoothedScores;
+
+    /** Loads the images of a batch, see {@link #classifyBitmaps}. */
+    public interface BitmapLoader {
+        /** Returns image {@code index} of the batch, or null if it could not be read */
+        Bitmap load(int index);
+    }
+
+    /** Filter, cutoff and score buffers of this classifier's predictions, the taxonomy itself is shared. */
+    private final ScoringContext mScoringContext;
+
     public void setFilterByTaxonId(Integer taxonId) {
-        mTaxonomy.setFilterByTaxonId(taxonId);
+        mScoringContext.setFilterByTaxonId(taxonId);
     }
 
     public Integer getFilterByTaxonId() {
-        return mTaxonomy.getFilterByTaxonId();
+        return mScoringContext.getFilterByTaxonId();
     }
 
     public void setNegativeFilter(boolean negative) {
-        mTaxonomy.setNegativeFilter(negative);
+        mScoringContext.setNegativeFilter(negative);
     }
 
     public boolean getNegativeFilter() {
-        return mTaxonomy.getNegativeFilter();
+        return mScoringContext.getNegativeFilter();
+    }
+
+    /** Sets the taxa to include and exclude, replacing the filter by taxon ID */
+    public void setTaxonFilter(TaxonFilter filter) {
+        mScoringContext.setTaxonFilter(filter);
+    }
+
+    public TaxonFilter getTaxonFilter() {
+        return mScoringContext.getTaxonFilter();
     }
 
     public void setGeomodelScores(float[][] scores) {
         mGeomodelScores = scores;
     }
 
-    /** Initializes an {@code ImageClassifier}. */
+    /** Sets the smoother of the combined scores, e.g. of a frame processor, null to not smooth */
+    public void setScoreSmoother(ScoreSmoother scoreSmoother) {
+        mScoreSmoother = scoreSmoother;
+    }
+
+    /** Initializes an {@code ImageClassifier} with the default interpreter options. */
     public ImageClassifier(String modelPath, String taxonomyPath, String version) throws IOException {
+        this(modelPath, taxonomyPath, version, InterpreterConfig.DEFAULT);
+    }
+
+    /** Initializes an {@code ImageClassifier}. */
+    public ImageClassifier(String modelPath, String taxonomyPath, String version, InterpreterConfig interpreterConfig) throws IOException {
         mModelFilename = modelPath;
         mTaxonomyFilename = taxonomyPath;
         mModelVersion = version;
-        mTFlite = new Interpreter(loadModelFile());
+        mInterpreterConfig = interpreterConfig;
+        mTFlite = new Interpreter(loadModelFile(), mInterpreterConfig.toInterpreterOptions());
         imgData =
                 ByteBuffer.allocateDirect(
                         4 * DIM_BATCH_SIZE * DIM_IMG_SIZE_X * DIM_IMG_SIZE_Y * DIM_PIXEL_SIZE);
         imgData.order(ByteOrder.nativeOrder());
+        imgFloatData = imgData.asFloatBuffer();
+        mPixelDivisor = pixelDivisorFor(mModelVersion);
         Timber.tag(TAG).d("Created a Tensorflow Lite Image Classifier.");
 
-        mTaxonomy = new Taxonomy(new FileInputStream(mTaxonomyFilename), mModelVersion);
+        mTaxonomy = TaxonomyRegistry.acquire(mTaxonomyFilename, mModelVersion);
         mModelSize = mTaxonomy.getModelSize();
+        mScoringContext = mTaxonomy.newScoringContext();
+
+        mInputs = new Object[] { imgData };
+        // The interpreter writes the scores straight into this buffer
+        mOutputBuffer = ByteBuffer.allocateDirect(4 * DIM_BATCH_SIZE * mModelSize);
+        mOutputBuffer.order(ByteOrder.nativeOrder());
+        mOutputFloats = mOutputBuffer.asFloatBuffer();
+        mOutputs = new HashMap<>();
+        mOutputs.put(0, mOutputBuffer);
+        mVisionScores = new float[mModelSize];
+        mCombinedScores = new float[mModelSize];
     }
 
-    /** Classifies a frame from the preview stream. */
+    /** Classifies a bitmap of the model input size. */
     public List<Prediction> classifyBitmap(Bitmap bitmap, Double taxonomyRollupCutoff, Boolean commonAncestorMode) {
+        return classifyBitmap(bitmap, 1.0, taxonomyRollupCutoff, commonAncestorMode);
+    }
+
+    /**
+     * Classifies the center square of a bitmap with the given crop ratio. The square is scaled and
+     * converted straight into the model input, without creating intermediate bitmaps.
+     */
+    public List<Prediction> classifyBitmap(Bitmap bitmap, double cropRatio, Double taxonomyRollupCutoff, Boolean commonAncestorMode) {
         if (mTFlite == null) {
             Timber.tag(TAG).e("Image classifier has not been initialized; Skipped.");
             return null;
@@ -100,33 +189,171 @@ public class ImageClassifier {
             Timber.tag(TAG).e("Null input bitmap");
             return null;
         }
-        convertBitmapToByteBuffer(bitmap);
+        imgData.rewind();
+        mCropScaleKernel.argbToTensor(mBitmapSource.setBitmap(bitmap), cropRatio, imgFloatData, mPixelDivisor);
+        mBitmapSource.setBitmap(null);
+        return runInference(taxonomyRollupCutoff, commonAncestorMode);
+    }
 
-        byte[] arr = new byte[imgData.remaining()];
-        imgData.get(arr);
+    /** The divisor of channel values in the model input of a model version */
+    public static float pixelDivisorFor(String version) {
+        return version.equals("1.0") ? 255.0f : 1.0f;
+    }
 
-        Map<Integer, Object> expectedOutputs = new HashMap<>();
-        for (int i = 0; i < 1; i++) {
-            expectedOutputs.put(i, new float[1][mModelSize]);
+    /**
+     * Classifies a YUV_420_888 frame from the preview stream. The center square with the given crop
+     * ratio is scaled and converted straight into the model input, without creating a bitmap.
+     */
+    public List<Prediction> classifyImage(Image image, double cropRatio, Double taxonomyRollupCutoff, Boolean commonAncestorMode) {
+        if (mTFlite == null) {
+            Timber.tag(TAG).e("Image classifier has not been initialized; Skipped.");
+            return null;
+        }
+        if (image == null) {
+            Timber.tag(TAG).e("Null input image");
+            return null;
+        }
+        imgData.rewind();
+        Image.Plane[] planes = image.getPlanes();
+        mCropScaleKernel.yuvToTensor(
+                image.getWidth(), image.getHeight(),
+                planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                planes[1].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                planes[2].getBuffer(), planes[2].getRowStride(), planes[2].getPixelStride(),
+                cropRatio, imgFloatData, mPixelDivisor);
+        return runInference(taxonomyRollupCutoff, commonAncestorMode);
+    }
+
+    /**
+     * Classifies a model input prepared elsewhere, e.g. by a {@link CropScaleKernel} of the model input
+     * size with the divisor from {@link #pixelDivisorFor(String)}.
+     */
+    public List<Prediction> classifyInput(FloatBuffer input, Double taxonomyRollupCutoff, Boolean commonAncestorMode) {
+        if (mTFlite == null) {
+            Timber.tag(TAG).e("Image classifier has not been initialized; Skipped.");
+            return null;
+        }
+        imgFloatData.clear();
+        input.rewind();
+        imgFloatData.put(input);
+        imgData.rewind();
+        return runInference(taxonomyRollupCutoff, commonAncestorMode);
+    }
+
+    /**
+     * Number of images to classify in one interpreter run so that it uses at most a quarter of the
+     * available memory, between 1 and {@link #MAX_BATCH_SIZE}.
+     */
+    public static int batchSizeFor(long availableBytes, int modelSize) {
+        long bytesPerImage = 4L * DIM_IMG_SIZE_X * DIM_IMG_SIZE_Y * DIM_PIXEL_SIZE + 4L * modelSize + INTERPRETER_BYTES_PER_IMAGE;
+        long batchSize = (availableBytes / 4) / bytesPerImage;
+        return (int) Math.max(1, Math.min(MAX_BATCH_SIZE, batchSize));
+    }
+
+    public int getModelSize() {
+        return mModelSize;
+    }
+
+    /** Estimated memory held by this classifier: the mapped model and the input and output buffers. */
+    public long getEstimatedBytes() {
+        long bytes = new File(mModelFilename).length() + imgData.capacity() + mOutputBuffer.capacity() + 8L * mModelSize;
+        if (mBatchInput != null) {
+            bytes += mBatchInput.capacity() + mBatchOutput.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Classifies {@code count} images in a single interpreter run. Each image is loaded, its center
+     * square with the given crop ratio is written into the batch input and the bitmap is recycled
+     * right away, so only one decoded image is held at a time. Returns the predictions per image,
+     * null for images the loader could not read.
+     */
+    public List<List<Prediction>> classifyBitmaps(int count, BitmapLoader loader, double cropRatio, Double taxonomyRollupCutoff, Boolean commonAncestorMode) {
+        if (mTFlite == null) {
+            Timber.tag(TAG).e("Image classifier has not been initialized; Skipped.");
+            return null;
+        }
+        if (count == 0) {
+            return new ArrayList<>();
+        }
+        int imageSize = DIM_IMG_SIZE_X * DIM_IMG_SIZE_Y * DIM_PIXEL_SIZE;
+        if (mBatchInput == null || mBatchInputFloats.capacity() < count * imageSize) {
+            mBatchInput = ByteBuffer.allocateDirect(4 * count * imageSize);
+            mBatchInput.order(ByteOrder.nativeOrder());
+            mBatchInputFloats = mBatchInput.asFloatBuffer();
+            mBatchOutput = ByteBuffer.allocateDirect(4 * count * mModelSize);
+            mBatchOutput.order(ByteOrder.nativeOrder());
+            mBatchOutputFloats = mBatchOutput.asFloatBuffer();
         }
 
-        Object[] input = { imgData };
+        boolean[] isLoaded = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            Bitmap bitmap = loader.load(i);
+            if (bitmap == null) continue;
+            mBatchInputFloats.clear();
+            mBatchInputFloats.position(i * imageSize);
+            mCropScaleKernel.argbToTensor(mBitmapSource.setBitmap(bitmap), cropRatio, mBatchInputFloats.slice(), mPixelDivisor);
+            mBitmapSource.setBitmap(null);
+            bitmap.recycle();
+            isLoaded[i] = true;
+        }
+
+        List<List<Prediction>> results = new ArrayList<>(count);
+        try {
+            resizeInput(count);
+            // Only the first count images of the buffers are part of this batch
+            mBatchInput.clear();
+            mBatchInput.limit(4 * count * imageSize);
+            mBatchOutput.clear();
+            mBatchOutput.limit(4 * count * mModelSize);
+            Map<Integer, Object> outputs = new HashMap<>();
+            outputs.put(0, mBatchOutput);
+            mTFlite.runForMultipleInputsOutputs(new Object[] { mBatchInput.slice().order(ByteOrder.nativeOrder()) }, outputs);
+
+            for (int i = 0; i < count; i++) {
+                if (!isLoaded[i]) {
+                    results.add(null);
+                    continue;
+                }
+                mBatchOutputFloats.clear();
+                mBatchOutputFloats.position(i * mModelSize);
+                mBatchOutputFloats.get(mVisionScores);
+                results.add(aggregate(taxonomyRollupCutoff, commonAncestorMode));
+            }
+        } catch (Exception exc) {
+            exc.printStackTrace();
+            while (results.size() < count) {
+                results.add(isLoaded[results.size()] ? new ArrayList<Prediction>() : null);
+            }
+        } catch (OutOfMemoryError exc) {
+            exc.printStackTrace();
+            while (results.size() < count) {
+                results.add(isLoaded[results.size()] ? new ArrayList<Prediction>() : null);
+            }
+        }
+        return results;
+    }
+
+    /** Resizes the input tensor to a batch of the given number of images */
+    private void resizeInput(int batchSize) {
+        if (batchSize == mInputBatchSize) return;
+        mTFlite.resizeInput(0, new int[] { batchSize, DIM_IMG_SIZE_X, DIM_IMG_SIZE_Y, DIM_PIXEL_SIZE });
+        mTFlite.allocateTensors();
+        mInputBatchSize = batchSize;
+    }
+
+    /** Runs the model on the input in {@link #imgData} and aggregates the scores up the taxonomy. */
+    private List<Prediction> runInference(Double taxonomyRollupCutoff, Boolean commonAncestorMode) {
         List<Prediction> predictions = null;
         try {
-            mTFlite.runForMultipleInputsOutputs(input, expectedOutputs);
+            resizeInput(DIM_BATCH_SIZE);
+            mOutputBuffer.rewind();
+            mTFlite.runForMultipleInputsOutputs(mInputs, mOutputs);
             // Get raw vision scores
-            float[] visionScores = ((float[][]) expectedOutputs.get(0))[0];
-            float[] combinedScores = new float[visionScores.length];
-            float[] geoScores;
-            if (mGeomodelScores != null) {
-              // Combine vision and geo scores
-              geoScores = mGeomodelScores[0];
-              combinedScores = combineVisionScores(visionScores, geoScores);
-            } else {
-              geoScores = null;
-              combinedScores = visionScores;
-            }
-            predictions = mTaxonomy.predict(combinedScores, visionScores, geoScores, taxonomyRollupCutoff, commonAncestorMode);
+            mOutputFloats.rewind();
+            mOutputFloats.get(mVisionScores);
+            predictions = aggregate(taxonomyRollupCutoff, commonAncestorMode);
         } catch (Exception exc) {
             exc.printStackTrace();
             return new ArrayList<Prediction>();
@@ -138,10 +365,75 @@ public class ImageClassifier {
         return predictions;
     }
 
-    /** Closes tflite to release resources. */
-    public void close() {
+    /**
+     * Runs the model on a blank image {@code runs} times, so the runtime sets up its kernels before
+     * the first real image, and aggregates the last scores once. The taxon filter and geomodel scores
+     * are left as they are.
+     */
+    public void warmUp(int runs) {
+        if (mTFlite == null) {
+            Timber.tag(TAG).e("Image classifier has not been initialized; Skipped.");
+            return;
+        }
+        imgFloatData.clear();
+        float gray = 128 / mPixelDivisor;
+        while (imgFloatData.hasRemaining()) {
+            imgFloatData.put(gray);
+        }
+        imgData.rewind();
+        try {
+            resizeInput(DIM_BATCH_SIZE);
+            for (int i = 0; i < runs; i++) {
+                mOutputBuffer.rewind();
+                mTFlite.runForMultipleInputsOutputs(mInputs, mOutputs);
+            }
+            mOutputFloats.rewind();
+            mOutputFloats.get(mVisionScores);
+            float[][] geomodelScores = mGeomodelScores;
+            ScoreSmoother scoreSmoother = mScoreSmoother;
+            mGeomodelScores = null;
+            mScoreSmoother = null;
+            aggregate(null, false);
+            mGeomodelScores = geomodelScores;
+            mScoreSmoother = scoreSmoother;
+        } catch (Exception exc) {
+            exc.printStackTrace();
+        } catch (OutOfMemoryError exc) {
+            exc.printStackTrace();
+        }
+    }
+
+    /** Combines the vision scores in {@link #mVisionScores} with the geomodel scores and aggregates them. */
+    private List<Prediction> aggregate(Double taxonomyRollupCutoff, Boolean commonAncestorMode) {
+        float[] visionScores = mVisionScores;
+        float[] combinedScores;
+        float[] geoScores;
+        if (mGeomodelScores != null) {
+          // Combine vision and geo scores
+          geoScores = mGeomodelScores[0];
+          combineVisionScores(visionScores, geoScores, mCombinedScores);
+          combinedScores = mCombinedScores;
+        } else {
+          geoScores = null;
+          combinedScores = visionScores;
+        }
+        if (mScoreSmoother != null) {
+          if (mSmoothedScores == null) {
+            mSmoothedScores = new float[mModelSize];
+          }
+          mScoreSmoother.smooth(combinedScores, mSmoothedScores);
+          combinedScores = mSmoothedScores;
+        }
+        mScoringContext.setTopLeafCount(commonAncestorMode ? COMMON_ANCESTOR_LEAF_COUNT : 0);
+        return mTaxonomy.predict(mScoringContext, combinedScores, visionScores, geoScores, taxonomyRollupCutoff, commonAncestorMode);
+    }
+
+    /** Closes tflite and releases the shared taxonomy. Waits for a classification holding the lock. */
+    public synchronized void close() {
+        if (mTFlite == null) return;
         mTFlite.close();
         mTFlite = null;
+        TaxonomyRegistry.release(mTaxonomy);
     }
 
     /** Memory-map the model file in Assets. */
@@ -151,53 +443,8 @@ public class ImageClassifier {
         return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, inputStream.available());
     }
 
-    /** Writes Image data into a {@code ByteBuffer}. */
-    private void convertBitmapToByteBuffer(Bitmap bitmap) {
-        if (imgData == null) {
-            return;
-        }
-        imgData.rewind();
-
-        // Convert pixel values to be float from 0 to 1
-        float[][][][] input = new float[1][ImageClassifier.DIM_IMG_SIZE_X][ImageClassifier.DIM_IMG_SIZE_Y][3];
-        for (int x = 0; x < ImageClassifier.DIM_IMG_SIZE_X; x++) {
-            for (int y = 0; y < ImageClassifier.DIM_IMG_SIZE_Y; y++) {
-                int pixel = bitmap.getPixel(x, y);
-                if (mModelVersion.equals("1.0")) {
-                  // Normalize channel values to [0.0, 1.0] for version 1.0
-                  input[0][x][y][0] = Color.red(pixel) / 255.0f;
-                  input[0][x][y][1] = Color.green(pixel) / 255.0f;
-                  input[0][x][y][2] = Color.blue(pixel) / 255.0f;
-                } else {
-                  input[0][x][y][0] = Color.red(pixel);
-                  input[0][x][y][1] = Color.green(pixel);
-                  input[0][x][y][2] = Color.blue(pixel);
-                }
-            }
-        }
-        // Convert to ByteBuffer
-        try {
-            ByteBuffer byteBuffer = ByteBuffer.allocateDirect(4 * input.length * input[0].length * input[0][0].length * input[0][0][0].length);
-            byteBuffer.order(ByteOrder.nativeOrder());
-            for (int i = 0; i < input.length; i++) {
-                for (int j = 0; j < input[0].length; j++) {
-                    for (int k = 0; k < input[0][0].length; k++) {
-                        for (int l = 0; l < input[0][0][0].length; l++) {
-                            byteBuffer.putFloat(input[i][j][k][l]);
-                        }
-                    }
-                }
-            }
-            byteBuffer.rewind();
-            imgData.put(byteBuffer);
-        } catch (BufferOverflowException exc) {
-            Timber.tag(TAG).w("Exception while converting to byte buffer: " + exc);
-        }
-    }
-
-    /** Combines vision and geo model scores */
-    private float[] combineVisionScores(float[] visionScores, float[] geoScores) {
-        float[] combinedScores = new float[visionScores.length];
+    /** Combines vision and geo model scores into combinedScores */
+    private static void combineVisionScores(float[] visionScores, float[] geoScores, float[] combinedScores) {
         float sum = 0.0f;
 
         // First multiply the scores
@@ -214,8 +461,6 @@ public class ImageClassifier {
                 combinedScores[i] = combinedScores[i] / sum;
             }
         }
-
-        return combinedScores;
     }
 
 }
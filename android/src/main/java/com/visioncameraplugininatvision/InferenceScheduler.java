@@ -0,0 +1,112 @@
+package com.visioncameraplugininatvision;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides which camera frames to classify so that classifications stay within a budget: at most a
+ * fraction of one CPU core, given the rolling average inference latency, and/or at most a number of
+ * classifications per second. Frames in between are skipped and get the previous result.
+ * Without a budget every frame is classified. Thread-safe, latencies may be recorded from a worker thread.
+ */
+public class InferenceScheduler {
+    /** Weight of the newest latency in the rolling average */
+    private static final double LATENCY_SMOOTHING = 0.2;
+    /** Time span the effective rate is measured over */
+    private static final long RATE_WINDOW_MS = 2000;
+    private static final int MAX_RECENT_STARTS = 128;
+
+    private double mMaxCpuFraction = 0; // 0 -> no CPU budget
+    private double mMaxRate = 0; // 0 -> no rate budget
+
+    private double mAverageLatencyMs = -1;
+    // Earliest start of the next classification. Frames arrive at discrete times, so a late start
+    // moves the next one up, by at most one interval, to keep the average rate on target
+    private double mNextStartTime = Double.NEGATIVE_INFINITY;
+    private long mClassifiedFrames = 0;
+    private long mSkippedFrames = 0;
+
+    // Ring buffer of the start times of recent classifications
+    private final long[] mRecentStarts = new long[MAX_RECENT_STARTS];
+    private int mRecentStartsEnd = 0;
+    private int mRecentStartsCount = 0;
+
+    /**
+     * Sets the budget. {@code maxCpuFraction} is the fraction of one core to spend on classifications,
+     * {@code maxRate} the maximum classifications per second, null or 0 for no limit.
+     */
+    public synchronized void setBudget(Double maxCpuFraction, Double maxRate) {
+        mMaxCpuFraction = maxCpuFraction != null && maxCpuFraction > 0 ? Math.min(1.0, maxCpuFraction) : 0;
+        mMaxRate = maxRate != null && maxRate > 0 ? maxRate : 0;
+    }
+
+    /** Minimum time between the starts of two classifications within the budget */
+    private double minIntervalMs() {
+        double interval = 0;
+        if (mMaxRate > 0) {
+            interval = 1000.0 / mMaxRate;
+        }
+        if (mMaxCpuFraction > 0 && mAverageLatencyMs > 0) {
+            interval = Math.max(interval, mAverageLatencyMs / mMaxCpuFraction);
+        }
+        return interval;
+    }
+
+    /**
+     * Returns whether to classify a frame arriving at {@code now} (uptime milliseconds) and counts it as
+     * classified or skipped. Frames are always classified while there is no previous result to return.
+     */
+    public synchronized boolean shouldClassify(long now, boolean hasResult) {
+        if (hasResult && now < mNextStartTime) {
+            mSkippedFrames++;
+            return false;
+        }
+        double interval = minIntervalMs();
+        mNextStartTime = Math.max(mNextStartTime, now - interval) + interval;
+        mClassifiedFrames++;
+        mRecentStarts[mRecentStartsEnd] = now;
+        mRecentStartsEnd = (mRecentStartsEnd + 1) % MAX_RECENT_STARTS;
+        mRecentStartsCount = Math.min(mRecentStartsCount + 1, MAX_RECENT_STARTS);
+        return true;
+    }
+
+    /**
+     * Forgets the average latency and the start time of the last classification, e.g. when the model
+     * changed, so the next frame is classified. The frame counts are kept.
+     */
+    public synchronized void reset() {
+        mAverageLatencyMs = -1;
+        mNextStartTime = Double.NEGATIVE_INFINITY;
+    }
+
+    /** Adds the duration of a classification to the rolling average latency */
+    public synchronized void recordLatency(long latencyMs) {
+        if (mAverageLatencyMs < 0) {
+            mAverageLatencyMs = latencyMs;
+        } else {
+            mAverageLatencyMs += LATENCY_SMOOTHING * (latencyMs - mAverageLatencyMs);
+        }
+    }
+
+    /** Classifications per second over the last {@link #RATE_WINDOW_MS} */
+    private double effectiveRate(long now) {
+        int count = 0;
+        for (int i = 1; i <= mRecentStartsCount; i++) {
+            long start = mRecentStarts[(mRecentStartsEnd - i + MAX_RECENT_STARTS) % MAX_RECENT_STARTS];
+            if (now - start > RATE_WINDOW_MS) break;
+            count++;
+        }
+        return count * 1000.0 / RATE_WINDOW_MS;
+    }
+
+    /** Effective rate, frame counts and average latency (seconds), as reported in results */
+    public synchronized Map<String, Object> getStats(long now) {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("effectiveRate", effectiveRate(now));
+        stats.put("classifiedFrames", (double) mClassifiedFrames);
+        stats.put("skippedFrames", (double) mSkippedFrames);
+        stats.put("averageLatency", mAverageLatencyMs >= 0 ? mAverageLatencyMs / 1000.0 : null);
+        stats.put("minInterval", minIntervalMs() / 1000.0);
+        return stats;
+    }
+}
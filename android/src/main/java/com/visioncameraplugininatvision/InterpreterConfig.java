@@ -0,0 +1,129 @@
+package com.visioncameraplugininatvision;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Options of a LiteRT interpreter: the number of CPU threads and whether to use the XNNPACK delegate.
+ * Unset options keep the runtime defaults.
+ */
+public final class InterpreterConfig {
+    private static final String TAG = "InterpreterConfig";
+
+    public static final String OPTION_NUM_THREADS = "numThreads";
+    public static final String OPTION_USE_XNNPACK = "useXNNPACK";
+    // Only honored by the NNAPI and GPU delegates, the models run on the CPU so it is ignored
+    public static final String OPTION_ALLOW_FP16 = "allowFp16";
+
+    /** Runtime defaults for all options */
+    public static final InterpreterConfig DEFAULT = new Builder().build();
+
+    private final int numThreads;
+    private final Boolean useXNNPACK;
+
+    /** Number of CPU threads, -1 for the runtime default */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /** Whether to use the XNNPACK delegate, null for the runtime default */
+    public Boolean getUseXNNPACK() {
+        return useXNNPACK;
+    }
+
+    private InterpreterConfig(int numThreads, Boolean useXNNPACK) {
+        this.numThreads = numThreads;
+        this.useXNNPACK = useXNNPACK;
+    }
+
+    /** Builder of {@link InterpreterConfig}. */
+    public static class Builder {
+        private int numThreads = -1;
+        private Boolean useXNNPACK = null;
+
+        public Builder setNumThreads(int numThreads) {
+            this.numThreads = numThreads;
+            return this;
+        }
+
+        public Builder setUseXNNPACK(Boolean useXNNPACK) {
+            this.useXNNPACK = useXNNPACK;
+            return this;
+        }
+
+        public InterpreterConfig build() {
+            return new InterpreterConfig(numThreads, useXNNPACK);
+        }
+    }
+
+    /**
+     * Parses the options from a JS object, e.g. the frame processor arguments or a converted
+     * {@code ReadableMap}. Returns the defaults if the object is null.
+     */
+    public static InterpreterConfig fromMap(Map<String, Object> map) {
+        if (map == null) {
+            return DEFAULT;
+        }
+        Builder builder = new Builder();
+        Object numThreads = map.get(OPTION_NUM_THREADS);
+        if (numThreads instanceof Number) {
+            int threads = ((Number) numThreads).intValue();
+            if (threads < 1) {
+                throw new IllegalArgumentException(OPTION_NUM_THREADS + " must be at least 1");
+            }
+            builder.setNumThreads(threads);
+        }
+        Object useXNNPACK = map.get(OPTION_USE_XNNPACK);
+        if (useXNNPACK instanceof Boolean) {
+            builder.setUseXNNPACK((Boolean) useXNNPACK);
+        }
+        if (Boolean.TRUE.equals(map.get(OPTION_ALLOW_FP16))) {
+            Timber.tag(TAG).w(OPTION_ALLOW_FP16 + " is ignored, it has no effect on the CPU");
+        }
+        return builder.build();
+    }
+
+    /** The options as reported in results, unset options are null */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+        map.put(OPTION_NUM_THREADS, numThreads > 0 ? (double) numThreads : null);
+        map.put(OPTION_USE_XNNPACK, useXNNPACK);
+        return map;
+    }
+
+    public Interpreter.Options toInterpreterOptions() {
+        Interpreter.Options options = new Interpreter.Options();
+        if (numThreads > 0) {
+            options.setNumThreads(numThreads);
+        }
+        if (useXNNPACK != null) {
+            options.setUseXNNPACK(useXNNPACK);
+        }
+        return options;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof InterpreterConfig)) return false;
+        InterpreterConfig config = (InterpreterConfig) o;
+        return numThreads == config.numThreads &&
+            (useXNNPACK != null ? useXNNPACK.equals(config.useXNNPACK) : config.useXNNPACK == null);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = numThreads;
+        result = 31 * result + (useXNNPACK != null ? useXNNPACK.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "InterpreterConfig(numThreads=" + numThreads + ", useXNNPACK=" + useXNNPACK + ")";
+    }
+}
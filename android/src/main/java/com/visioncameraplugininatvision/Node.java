@@ -17,54 +17,80 @@ public class Node {
 
     public Double geoThreshold;
 
+    /** Position of this node in the compiled taxonomy arrays */
+    public transient int index = -1;
+
     public transient Node parent;
 
+    /** Result fields, precomputed when the taxonomy is loaded. Null if the key or leaf ID is not numeric. */
+    public transient Integer taxonId;
+    /** Leaf ID as reported in results, null if the node is no leaf or the model version does not report it */
+    public transient Integer resultLeafId;
+    public transient String rankName;
+    /** Numeric ancestor taxon IDs from life down to the parent, shared between siblings and not to be modified */
+    public transient int[] ancestorIds;
+
     public transient List<Node> children = new ArrayList<>();
 
     public String toString() {
         return String.format("%s: %s (rank = %s; parent = %s)", key, name, rank, parent != null ? parent.key : "N/A");
     }
 
+    /** Positions of the known columns in a taxonomy CSV header, -1 if a column is not present */
+    public static class CsvColumns {
+        final int count;
+        final int parentTaxonId;
+        final int taxonId;
+        final int rankLevel;
+        final int leafClassId;
+        final int geoThreshold;
+        final int name;
+
+        public CsvColumns(String[] headers) {
+            List<String> headerList = Arrays.asList(headers);
+            count = headers.length;
+            parentTaxonId = headerList.indexOf("parent_taxon_id");
+            taxonId = headerList.indexOf("taxon_id");
+            rankLevel = headerList.indexOf("rank_level");
+            leafClassId = headerList.indexOf("leaf_class_id");
+            geoThreshold = headerList.indexOf("geo_threshold");
+            name = headerList.indexOf("name");
+        }
+    }
+
     // Initialize the node from a CSV line
     // Seek model 2.3, 2.4:
     // parent_taxon_id,taxon_id,rank_level,leaf_class_id,iconic_class_id,spatial_class_id,name
     // Seek model 1.0:
     // parent_taxon_id,taxon_id,rank_level,leaf_class_id,name
-    public Node(String[] headers, String line) {
-        String[] parts = line.trim().split(",", headers.length);
-        List<String> headerList = new ArrayList<>(Arrays.asList(headers));
+    public Node(CsvColumns columns, String line) {
+        String[] parts = line.trim().split(",", columns.count);
 
-        if (headerList.contains("parent_taxon_id")) {
-          int parentTaxonIdIndex = headerList.indexOf("parent_taxon_id");
-          this.parentKey = parts[parentTaxonIdIndex];
+        if (columns.parentTaxonId >= 0) {
+          this.parentKey = parts[columns.parentTaxonId];
         }
 
-        if (headerList.contains("taxon_id")) {
-          int taxonIdIndex = headerList.indexOf("taxon_id");
-          this.key = parts[taxonIdIndex];
+        if (columns.taxonId >= 0) {
+          this.key = parts[columns.taxonId];
         }
 
-        if (headerList.contains("rank_level")) {
-          int rankLevelIndex = headerList.indexOf("rank_level");
-          this.rank = Float.parseFloat(parts[rankLevelIndex]);
+        if (columns.rankLevel >= 0) {
+          this.rank = Float.parseFloat(parts[columns.rankLevel]);
         }
 
-        if (headerList.contains("leaf_class_id")) {
-          int leafClassIdIndex = headerList.indexOf("leaf_class_id");
-          this.leafId = parts[leafClassIdIndex];
+        if (columns.leafClassId >= 0) {
+          this.leafId = parts[columns.leafClassId];
         }
 
-        if (headerList.contains("geo_threshold")) {
-          int spatialThresholdIndex = headerList.indexOf("geo_threshold");
-          String spatialThreshold = parts[spatialThresholdIndex];
+        if (columns.geoThreshold >= 0) {
+          String spatialThreshold = parts[columns.geoThreshold];
           if (spatialThreshold.length() > 0) {
-            this.geoThreshold = Double.valueOf(parts[spatialThresholdIndex]);
+            this.geoThreshold = Double.valueOf(spatialThreshold);
           }
         }
 
-        if (headerList.contains("name")) {
-          int nameIndex = headerList.indexOf("name");
-          this.name = parts[nameIndex];
+        if (columns.name >= 0) {
+          this.name = parts[columns.name];
         }
     }
 
@@ -5,10 +5,16 @@ public class Prediction {
     public Double score;
     public Double visionScore;
     public Double geoScore;
+    public Double geoThreshold;
     public Float rank;
 
     public Prediction(Node n, float p, float vS, Float gS) {
+        this(n, p, vS, gS, n.geoThreshold);
+    }
+
+    public Prediction(Node n, float p, float vS, Float gS, Double gT) {
         node = n;
+        geoThreshold = gT;
         score = (double) p;
         visionScore = (double) vS;
         if (gS != null) {
@@ -0,0 +1,132 @@
+package com.visioncameraplugininatvision;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tells whether a camera frame differs enough from the last classified frame to classify it again.
+ * Frames are compared by a small luma thumbnail of the center square, sampled from the Y plane, as the
+ * mean absolute difference in [0, 1]. A result is reused for at most a maximum age. Only YUV_420_888
+ * frames are compared, others always count as changed. Not thread-safe.
+ */
+public class SceneChangeDetector {
+    private static final int THUMBNAIL_SIZE = 16;
+    /** Luma samples per thumbnail cell in each direction */
+    private static final int SAMPLES_PER_CELL = 4;
+
+    private double mThreshold = 0; // 0 -> disabled
+    private long mMaxReuseAgeMs = 0; // 0 -> no maximum age
+
+    private float[] mReference = new float[THUMBNAIL_SIZE * THUMBNAIL_SIZE];
+    private float[] mCurrent = new float[THUMBNAIL_SIZE * THUMBNAIL_SIZE];
+    private boolean mHasCurrent = false;
+    private boolean mHasReference = false;
+    private long mReferenceTime = 0;
+
+    private long mReusedFrames = 0;
+    private long mChangedFrames = 0;
+    private double mLastDifference = -1;
+
+    /**
+     * Sets the difference from which a frame counts as changed, null or 0 to disable the detector, and
+     * the maximum age in seconds of a reused result, null or 0 for no maximum.
+     */
+    public void setOptions(Double threshold, Double maxReuseAgeSeconds) {
+        mThreshold = threshold != null && threshold > 0 ? threshold : 0;
+        mMaxReuseAgeMs = maxReuseAgeSeconds != null && maxReuseAgeSeconds > 0 ? (long) (maxReuseAgeSeconds * 1000) : 0;
+    }
+
+    public boolean isEnabled() {
+        return mThreshold > 0;
+    }
+
+    /**
+     * Computes the thumbnail of the frame and returns whether the result of the last classified frame
+     * can be reused for it, i.e. the frame did not change and the result is not too old.
+     */
+    public boolean canReuse(Image image, double cropRatio, long now) {
+        mHasCurrent = image.getFormat() == ImageFormat.YUV_420_888;
+        if (!mHasCurrent) {
+            mChangedFrames++;
+            return false;
+        }
+        Image.Plane plane = image.getPlanes()[0];
+        thumbnail(image.getWidth(), image.getHeight(), plane.getBuffer(), plane.getRowStride(), plane.getPixelStride(), cropRatio, mCurrent);
+        if (!mHasReference || (mMaxReuseAgeMs > 0 && now - mReferenceTime > mMaxReuseAgeMs)) {
+            mChangedFrames++;
+            return false;
+        }
+        mLastDifference = difference(mReference, mCurrent);
+        if (mLastDifference >= mThreshold) {
+            mChangedFrames++;
+            return false;
+        }
+        mReusedFrames++;
+        return true;
+    }
+
+    /** Makes the frame last passed to {@link #canReuse} the reference for the following frames */
+    public void markClassified(long now) {
+        if (!mHasCurrent) {
+            // The classified frame was not compared, e.g. not a YUV frame
+            mHasReference = false;
+            return;
+        }
+        float[] reference = mReference;
+        mReference = mCurrent;
+        mCurrent = reference;
+        mHasCurrent = false;
+        mHasReference = true;
+        mReferenceTime = now;
+    }
+
+    /** Forgets the reference frame, e.g. when its result is no longer valid, so the next frame counts as changed */
+    public void reset() {
+        mHasCurrent = false;
+        mHasReference = false;
+    }
+
+    /** Reused and changed frame counts and the last measured difference */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("reusedFrames", (double) mReusedFrames);
+        stats.put("changedFrames", (double) mChangedFrames);
+        stats.put("lastDifference", mLastDifference >= 0 ? mLastDifference : null);
+        return stats;
+    }
+
+    /** Averages a grid of luma samples per cell of the center square into a thumbnail, in [0, 1] */
+    static void thumbnail(int width, int height, ByteBuffer yBuffer, int rowStride, int pixelStride, double cropRatio, float[] out) {
+        int cropSize = Math.max(1, (int) Math.round(Math.min(width, height) * cropRatio));
+        int cropX = (width - cropSize) / 2;
+        int cropY = (height - cropSize) / 2;
+        int samples = THUMBNAIL_SIZE * SAMPLES_PER_CELL;
+        for (int cellY = 0; cellY < THUMBNAIL_SIZE; cellY++) {
+            for (int cellX = 0; cellX < THUMBNAIL_SIZE; cellX++) {
+                int sum = 0;
+                for (int sy = 0; sy < SAMPLES_PER_CELL; sy++) {
+                    int y = cropY + (int) ((cellY * SAMPLES_PER_CELL + sy + 0.5) * cropSize / samples);
+                    int row = y * rowStride;
+                    for (int sx = 0; sx < SAMPLES_PER_CELL; sx++) {
+                        int x = cropX + (int) ((cellX * SAMPLES_PER_CELL + sx + 0.5) * cropSize / samples);
+                        sum += yBuffer.get(row + x * pixelStride) & 0xFF;
+                    }
+                }
+                out[cellY * THUMBNAIL_SIZE + cellX] = sum / (255f * SAMPLES_PER_CELL * SAMPLES_PER_CELL);
+            }
+        }
+    }
+
+    /** Mean absolute difference of two thumbnails */
+    static double difference(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return sum / a.length;
+    }
+}
@@ -0,0 +1,99 @@
+package com.visioncameraplugininatvision;
+
+/**
+ * Exponential moving average of leaf score vectors across camera frames, so that predictions are
+ * aggregated from scores that do not jump from frame to frame. The average is kept in preallocated
+ * storage, optionally as half precision floats to halve its memory; half precision keeps about three
+ * significant digits and flushes scores below 6e-8 to zero, which does not matter for ranking.
+ * Thread-safe.
+ */
+public class ScoreSmoother {
+    private final boolean mHalfPrecision;
+    private float[] mAverage;
+    private short[] mHalfAverage;
+    private int mSize = 0;
+    private boolean mHasAverage = false;
+    private float mFactor = 1f;
+
+    public ScoreSmoother(boolean halfPrecision) {
+        mHalfPrecision = halfPrecision;
+    }
+
+    public boolean isHalfPrecision() {
+        return mHalfPrecision;
+    }
+
+    /** Sets the weight of the newest scores in (0, 1], 1 returns the newest scores unchanged */
+    public synchronized void setFactor(double factor) {
+        mFactor = (float) Math.min(1.0, Math.max(Float.MIN_NORMAL, factor));
+    }
+
+    /** Forgets the average, the next scores start a new one */
+    public synchronized void reset() {
+        mHasAverage = false;
+    }
+
+    /**
+     * Adds the scores to the average and writes the average into {@code out}. The average starts over
+     * if the number of scores changed, e.g. with another model.
+     */
+    public synchronized void smooth(float[] scores, float[] out) {
+        if (scores.length != mSize) {
+            mSize = scores.length;
+            mAverage = mHalfPrecision ? null : new float[mSize];
+            mHalfAverage = mHalfPrecision ? new short[mSize] : null;
+            mHasAverage = false;
+        }
+        float factor = mHasAverage ? mFactor : 1f;
+        if (mHalfPrecision) {
+            for (int i = 0; i < mSize; i++) {
+                float average = toFloat(mHalfAverage[i]);
+                average += factor * (scores[i] - average);
+                short half = toHalf(average);
+                mHalfAverage[i] = half;
+                out[i] = toFloat(half);
+            }
+        } else {
+            for (int i = 0; i < mSize; i++) {
+                float average = mAverage[i];
+                average += factor * (scores[i] - average);
+                mAverage[i] = average;
+                out[i] = average;
+            }
+        }
+        mHasAverage = true;
+    }
+
+    /** Converts a float to the bits of the nearest half precision float, saturating at infinity */
+    static short toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int magnitude = bits & 0x7fffffff;
+        if (magnitude >= 0x477ff000) {
+            // Rounds to a value beyond the largest half, or is infinite or NaN
+            return (short) (sign | (magnitude > 0x7f800000 ? 0x7e00 : 0x7c00));
+        }
+        if (magnitude < 0x38800000) {
+            // Below the smallest normal half: in units of the smallest subnormal half, 2^-24
+            return (short) (sign | Math.round(Float.intBitsToFloat(magnitude) * 16777216f));
+        }
+        // Rebias the exponent from 127 to 15 and round the mantissa from 23 to 10 bits
+        return (short) (sign | ((magnitude - 0x38000000 + 0x0fff + ((magnitude >>> 13) & 1)) >>> 13));
+    }
+
+    /** Converts the bits of a half precision float to a float */
+    static float toFloat(short half) {
+        int bits = half & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+        if (exponent == 0) {
+            float value = mantissa / 16777216f;
+            return sign != 0 ? -value : value;
+        }
+        if (exponent == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+}
@@ -0,0 +1,132 @@
+package com.visioncameraplugininatvision;
+
+/**
+ * Statistics of a leaf score vector, computed in a single pass without copying or sorting the scores:
+ * the top score, the sum of all scores and optionally the indices of the k highest scores.
+ */
+public class ScoreStatistics {
+    private float mMaxScore;
+    private int mMaxIndex;
+    private double mSum;
+
+    // Min-heap of the k highest scores seen so far, sorted by descending score once the pass is done
+    private int[] mTopIndices = new int[0];
+    private float[] mTopScores = new float[0];
+    private int mTopCount;
+
+    /** Computes the statistics of the scores, keeping track of the topK highest scores (0 to skip that) */
+    public void compute(float[] scores, int topK) {
+        if (mTopIndices.length != topK) {
+            mTopIndices = new int[topK];
+            mTopScores = new float[topK];
+        }
+        mTopCount = 0;
+
+        float maxScore = Float.NEGATIVE_INFINITY;
+        int maxIndex = -1;
+        double sum = 0.0;
+        for (int i = 0; i < scores.length; i++) {
+            float score = scores[i];
+            sum += score;
+            if (score > maxScore) {
+                maxScore = score;
+                maxIndex = i;
+            }
+            if (topK > 0) {
+                if (mTopCount < topK) {
+                    mTopIndices[mTopCount] = i;
+                    mTopScores[mTopCount] = score;
+                    mTopCount++;
+                    siftUp(mTopCount - 1);
+                } else if (score > mTopScores[0]) {
+                    mTopIndices[0] = i;
+                    mTopScores[0] = score;
+                    siftDown(0);
+                }
+            }
+        }
+        mMaxScore = maxScore;
+        mMaxIndex = maxIndex;
+        mSum = sum;
+
+        // Pop the heap from the back so the highest score ends up first
+        for (int size = mTopCount; size > 1; size--) {
+            swap(0, size - 1);
+            siftDown(0, size - 1);
+        }
+    }
+
+    /** The highest score, negative infinity for an empty score vector */
+    public float getMaxScore() {
+        return mMaxScore;
+    }
+
+    /** Index of the highest score, -1 for an empty score vector */
+    public int getMaxIndex() {
+        return mMaxIndex;
+    }
+
+    public double getSum() {
+        return mSum;
+    }
+
+    /** Number of entries in {@link #getTopIndices()} */
+    public int getTopCount() {
+        return mTopCount;
+    }
+
+    /** Indices of the highest scores, highest first. Only the first {@link #getTopCount()} entries are valid. */
+    public int[] getTopIndices() {
+        return mTopIndices;
+    }
+
+    /** The highest scores, in the same order as {@link #getTopIndices()} */
+    public float[] getTopScores() {
+        return mTopScores;
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (!isLower(position, parent)) break;
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        siftDown(position, mTopCount);
+    }
+
+    private void siftDown(int position, int size) {
+        while (true) {
+            int left = 2 * position + 1;
+            if (left >= size) break;
+            int lowest = left;
+            int right = left + 1;
+            if (right < size && isLower(right, left)) {
+                lowest = right;
+            }
+            if (!isLower(lowest, position)) break;
+            swap(position, lowest);
+            position = lowest;
+        }
+    }
+
+    /** Heap order: lower score first, on equal scores the later index is evicted first */
+    private boolean isLower(int a, int b) {
+        if (mTopScores[a] != mTopScores[b]) {
+            return mTopScores[a] < mTopScores[b];
+        }
+        return mTopIndices[a] > mTopIndices[b];
+    }
+
+    private void swap(int a, int b) {
+        int index = mTopIndices[a];
+        mTopIndices[a] = mTopIndices[b];
+        mTopIndices[b] = index;
+        float score = mTopScores[a];
+        mTopScores[a] = mTopScores[b];
+        mTopScores[b] = score;
+    }
+}
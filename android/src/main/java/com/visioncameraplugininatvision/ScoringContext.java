@@ -0,0 +1,156 @@
+package com.visioncameraplugininatvision;
+
+import java.util.Arrays;
+
+import timber.log.Timber;
+
+/**
+ * Per-request state for {@link Taxonomy#predict}: the taxon filter, the rollup cutoff and the buffers
+ * the aggregated scores are accumulated in. A {@link Taxonomy} itself is immutable and can be shared
+ * between threads, each thread has to use its own context. A context can be reused for consecutive
+ * requests to avoid reallocating its buffers.
+ */
+public class ScoringContext {
+    private static final String TAG = "ScoringContext";
+
+    private Integer mFilterByTaxonId = null; // If null -> no filter by taxon ID defined
+    private boolean mNegativeFilter = false;
+    private TaxonFilter mTaxonFilter = null; // If null -> no filter defined
+
+    private int mTopLeafCount = 0;
+
+    // Nodes passing the taxon filter, cached for the filter it was built for
+    long[] mLeafFilterMask;
+    TaxonFilter mLeafFilterMaskFilter;
+
+    float mTaxonomyRollupCutoff = 0.0f;
+    float mExcludedLeafCombinedScoresSum = 0.0f;
+    float mExcludedLeafVisionScoresSum = 0.0f;
+    int mLeafCountAboveCutoff = 0;
+
+    /** Statistics of the combined leaf scores of the last request */
+    final ScoreStatistics mScoreStatistics = new ScoreStatistics();
+
+    /** Accumulators for the aggregation pass, indexed by node index */
+    float[] mAggregatedCombinedScores;
+    float[] mAggregatedVisionScores;
+    float[] mAggregatedGeoScores;
+    double[] mAggregatedGeoThresholds;
+    // Whether the node got an aggregated score at all
+    boolean[] mHasAggregatedScore;
+    // Whether the node is part of the aggregated result
+    boolean[] mIsAggregated;
+    // If the last request was aggregated sparsely, the mAggregatedNodeCount nodes that are part of the result
+    boolean mIsSparseResult = false;
+    int[] mAggregatedNodes;
+    int mAggregatedNodeCount = 0;
+    // Scratch buffers for collecting the top leaves and their ancestors, all false between requests
+    boolean[] mIsTopBranch;
+    int[] mTopBranchNodes;
+
+    public void setFilterByTaxonId(Integer taxonId) {
+        if (mFilterByTaxonId != null ? mFilterByTaxonId.equals(taxonId) : taxonId == null) {
+            return;
+        }
+        Timber.tag(TAG).d("setFilterByTaxonId: changing taxonID filter from " + mFilterByTaxonId + " to " + taxonId);
+        mFilterByTaxonId = taxonId;
+        mTaxonFilter = TaxonFilter.forTaxon(mFilterByTaxonId, mNegativeFilter);
+    }
+
+    public Integer getFilterByTaxonId() {
+        return mFilterByTaxonId;
+    }
+
+    public void setNegativeFilter(boolean negative) {
+        if (mNegativeFilter == negative) {
+            return;
+        }
+        Timber.tag(TAG).d("setNegativeFilter: changing negative filter from " + mNegativeFilter + " to " + negative);
+        mNegativeFilter = negative;
+        mTaxonFilter = TaxonFilter.forTaxon(mFilterByTaxonId, mNegativeFilter);
+    }
+
+    public boolean getNegativeFilter() {
+        return mNegativeFilter;
+    }
+
+    /**
+     * Sets the taxa to include and exclude, replacing a filter set with {@link #setFilterByTaxonId}.
+     * Changing the taxon ID or negative filter afterwards replaces this filter again.
+     */
+    public void setTaxonFilter(TaxonFilter filter) {
+        if (filter != null ? !filter.equals(mTaxonFilter) : mTaxonFilter != null) {
+            Timber.tag(TAG).d("setTaxonFilter: changing filter from " + mTaxonFilter + " to " + filter);
+        }
+        mFilterByTaxonId = null;
+        mNegativeFilter = false;
+        mTaxonFilter = filter;
+    }
+
+    public TaxonFilter getTaxonFilter() {
+        return mTaxonFilter;
+    }
+
+    /**
+     * Number of highest scoring leaves to keep track of in {@link #getScoreStatistics()}, 0 by default.
+     * In common ancestor mode without a taxon filter only these leaves and their ancestors are returned.
+     */
+    public void setTopLeafCount(int topLeafCount) {
+        mTopLeafCount = topLeafCount;
+    }
+
+    public int getTopLeafCount() {
+        return mTopLeafCount;
+    }
+
+    /** Top score, score sum and top leaf class ids of the combined scores of the last request */
+    public ScoreStatistics getScoreStatistics() {
+        return mScoreStatistics;
+    }
+
+    /** Number of leaves that passed the filter and the rollup cutoff in the last request */
+    public int getLeafCountAboveCutoff() {
+        return mLeafCountAboveCutoff;
+    }
+
+    public float getTaxonomyRollupCutoff() {
+        return mTaxonomyRollupCutoff;
+    }
+
+    void setTaxonomyRollupCutoff(float taxonomyRollupCutoff) {
+        if (mTaxonomyRollupCutoff != taxonomyRollupCutoff) {
+            Timber.tag(TAG).d("setTaxonomyRollupCutoff: changing taxonomyRollupCutoff from " + mTaxonomyRollupCutoff + " to " + taxonomyRollupCutoff);
+        }
+        mTaxonomyRollupCutoff = taxonomyRollupCutoff;
+    }
+
+    /** Makes sure the buffers can hold the scores of a taxonomy with the given number of nodes */
+    void ensureCapacity(int nodeCount) {
+        if (mAggregatedCombinedScores != null && mAggregatedCombinedScores.length == nodeCount) {
+            return;
+        }
+        mAggregatedCombinedScores = new float[nodeCount];
+        mAggregatedVisionScores = new float[nodeCount];
+        mAggregatedGeoScores = new float[nodeCount];
+        mAggregatedGeoThresholds = new double[nodeCount];
+        mHasAggregatedScore = new boolean[nodeCount];
+        mIsAggregated = new boolean[nodeCount];
+        mAggregatedNodes = new int[nodeCount];
+        mAggregatedNodeCount = 0;
+        mIsTopBranch = new boolean[nodeCount];
+        mTopBranchNodes = new int[nodeCount];
+        mIsSparseResult = false;
+    }
+
+    /** Resets the result of the last request so that no node is part of it */
+    void clearAggregatedNodes() {
+        if (mIsSparseResult) {
+            for (int i = 0; i < mAggregatedNodeCount; i++) {
+                mIsAggregated[mAggregatedNodes[i]] = false;
+            }
+        } else {
+            Arrays.fill(mIsAggregated, false);
+        }
+        mAggregatedNodeCount = 0;
+    }
+}
@@ -0,0 +1,107 @@
+package com.visioncameraplugininatvision;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable set of taxa to include and exclude from predictions. A leaf passes the filter if it is one
+ * of the included taxa or one of their descendants (any leaf if no taxa are included) and neither one
+ * of the excluded taxa nor one of their descendants. E.g. "plants but not grasses" includes plants and
+ * excludes grasses.
+ *
+ * Two filters with the same taxa are equal, so the leaf masks compiled by {@link Taxonomy} can be
+ * cached by filter.
+ */
+public final class TaxonFilter {
+    private final int[] mIncludeTaxonIds;
+    private final int[] mExcludeTaxonIds;
+    private final int mHashCode;
+
+    private TaxonFilter(int[] includeTaxonIds, int[] excludeTaxonIds) {
+        mIncludeTaxonIds = sortedDistinct(includeTaxonIds);
+        mExcludeTaxonIds = sortedDistinct(excludeTaxonIds);
+        mHashCode = 31 * Arrays.hashCode(mIncludeTaxonIds) + Arrays.hashCode(mExcludeTaxonIds);
+    }
+
+    /** Creates a filter from the taxa to include and exclude, either of them can be null */
+    public static TaxonFilter of(Collection<Integer> includeTaxonIds, Collection<Integer> excludeTaxonIds) {
+        return new TaxonFilter(toArray(includeTaxonIds), toArray(excludeTaxonIds));
+    }
+
+    /** The filter equivalent to filtering by a single taxon ID, optionally as a negative filter */
+    public static TaxonFilter forTaxon(Integer taxonId, boolean negative) {
+        if (taxonId == null) {
+            return null;
+        }
+        int[] taxonIds = { taxonId };
+        return negative ? new TaxonFilter(null, taxonIds) : new TaxonFilter(taxonIds, null);
+    }
+
+    public int[] getIncludeTaxonIds() {
+        return mIncludeTaxonIds.clone();
+    }
+
+    public int[] getExcludeTaxonIds() {
+        return mExcludeTaxonIds.clone();
+    }
+
+    /** Whether the filter lets every leaf pass */
+    public boolean isEmpty() {
+        return mIncludeTaxonIds.length == 0 && mExcludeTaxonIds.length == 0;
+    }
+
+    int[] includeTaxonIds() {
+        return mIncludeTaxonIds;
+    }
+
+    int[] excludeTaxonIds() {
+        return mExcludeTaxonIds;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TaxonFilter)) return false;
+        TaxonFilter filter = (TaxonFilter) o;
+        return mHashCode == filter.mHashCode &&
+            Arrays.equals(mIncludeTaxonIds, filter.mIncludeTaxonIds) &&
+            Arrays.equals(mExcludeTaxonIds, filter.mExcludeTaxonIds);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHashCode;
+    }
+
+    @Override
+    public String toString() {
+        return "TaxonFilter(include=" + Arrays.toString(mIncludeTaxonIds) + ", exclude=" + Arrays.toString(mExcludeTaxonIds) + ")";
+    }
+
+    private static int[] toArray(Collection<Integer> taxonIds) {
+        if (taxonIds == null) {
+            return null;
+        }
+        int[] array = new int[taxonIds.size()];
+        int i = 0;
+        for (Integer taxonId : taxonIds) {
+            array[i++] = taxonId;
+        }
+        return array;
+    }
+
+    private static int[] sortedDistinct(int[] taxonIds) {
+        if (taxonIds == null || taxonIds.length == 0) {
+            return new int[0];
+        }
+        int[] sorted = taxonIds.clone();
+        Arrays.sort(sorted);
+        int count = 1;
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] != sorted[count - 1]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+}
@@ -1,6 +1,8 @@
 package com.visioncameraplugininatvision;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -8,16 +10,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import timber.log.Timber;
 
-/** Taxonomy data structure */
+/**
+ * Taxonomy data structure. Instances are immutable once loaded and can be shared between threads,
+ * all per-request state lives in a {@link ScoringContext}.
+ */
 public class Taxonomy {
     private static final String TAG = "Taxonomy";
 
-    private static String mModelVersion;
+    private final String mModelVersion;
 
     private static final Map<Float, String> RANK_LEVEL_TO_NAME;
     static {
@@ -61,66 +67,132 @@ public class Taxonomy {
     List<Node> mLeaves; // this is a convenience array for testing
     Node mLifeNode;
 
-    private Integer mFilterByTaxonId = null; // If null -> no filter by taxon ID defined
-    private boolean mNegativeFilter = false;
-
-    private float mTaxonomyRollupCutoff = 0.0f;
-    private float mExcludedLeafCombinedScoresSum = 0.0f;
-    private float mExcludedLeafVisionScoresSum = 0.0f;
-
-    public void setFilterByTaxonId(Integer taxonId) {
-        if (mFilterByTaxonId != taxonId) {
-            Timber.tag(TAG).d("setFilterByTaxonId: changing taxonID filter from " + mFilterByTaxonId + " to " + taxonId);
+    /** Compiled, array-indexed representation of the tree; index 0 is the life node */
+    Node[] mNodesByIndex;
+    int[] mParentIndex;
+    // Children of node i are mChildIndices[mChildOffsets[i]] ... mChildIndices[mChildOffsets[i + 1] - 1]
+    int[] mChildOffsets;
+    int[] mChildIndices;
+    // Every node comes after all of its descendants
+    int[] mPostOrder;
+    // Depth-first entry and exit numbers: the descendants of node i are the nodes with an entry number
+    // in [mEntryOrder[i], mExitOrder[i]]
+    int[] mEntryOrder;
+    int[] mExitOrder;
+    // Node with entry number i, so the subtree of a node is a contiguous range of this array
+    int[] mNodesByEntryOrder;
+
+    /** Maximum number of compiled filter masks kept per taxonomy */
+    private static final int MAX_CACHED_FILTER_MASKS = 16;
+
+    // Compiled leaf masks by filter, least recently used first
+    private final Map<TaxonFilter, long[]> mFilterMasks = new LinkedHashMap<TaxonFilter, long[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TaxonFilter, long[]> eldest) {
+            return size() > MAX_CACHED_FILTER_MASKS;
+        }
+    };
+    // Index into the model output for leaf nodes, -1 otherwise
+    int[] mLeafClassIds;
+    // Inverse of mLeafClassIds: node index of each model output, -1 if no node has that leaf class id
+    int[] mNodeIndexByLeafClassId;
+    // NaN if the node has no geo threshold
+    double[] mGeoThresholds;
+
+    /**
+     * Loads the taxonomy from the precompiled binary file next to the CSV file. If that file does not exist yet or
+     * is outdated, the CSV file is parsed instead and the binary file is (re)generated from it.
+     */
+    public static Taxonomy fromFile(String taxonomyPath, String version) throws IOException {
+        File csvFile = new File(taxonomyPath);
+
+        long startTime = System.nanoTime();
+        try {
+            TaxonomyBinaryFile.Columns columns = TaxonomyBinaryFile.read(csvFile);
+            if (columns != null) {
+                Taxonomy taxonomy = new Taxonomy(columns, version);
+                Timber.tag(TAG).d("Loaded binary taxonomy in " + elapsedMillis(startTime) + " ms: " + taxonomy.mNodes.size() + " nodes");
+                return taxonomy;
+            }
+        } catch (IOException | RuntimeException e) {
+            Timber.tag(TAG).w("Failed to read binary taxonomy, falling back to CSV: " + e);
         }
-        mFilterByTaxonId = taxonId;
-    }
-
-    public Integer getFilterByTaxonId() {
-        return mFilterByTaxonId;
-    }
 
-    public void setNegativeFilter(boolean negative) {
-        if (mNegativeFilter != negative) {
-            Timber.tag(TAG).d("setNegativeFilter: changing negative filter from " + mNegativeFilter + " to " + negative);
+        startTime = System.nanoTime();
+        Taxonomy taxonomy;
+        try (InputStream is = new FileInputStream(csvFile)) {
+            taxonomy = new Taxonomy(is, version);
         }
-        mNegativeFilter = negative;
-    }
+        Timber.tag(TAG).d("Loaded CSV taxonomy in " + elapsedMillis(startTime) + " ms: " + taxonomy.mNodes.size() + " nodes");
 
-    public boolean getNegativeFilter() {
-        return mNegativeFilter;
+        try {
+            TaxonomyBinaryFile.write(csvFile, taxonomy);
+        } catch (IOException | RuntimeException e) {
+            Timber.tag(TAG).w("Failed to write binary taxonomy: " + e);
+        }
+        return taxonomy;
     }
 
-    public void setTaxonomyRollupCutoff(float taxonomyRollupCutoff) {
-        if (mTaxonomyRollupCutoff != taxonomyRollupCutoff) {
-            Timber.tag(TAG).d("setTaxonomyRollupCutoff: changing taxonomyRollupCutoff from " + mTaxonomyRollupCutoff + " to " + taxonomyRollupCutoff);
-        }
-        mTaxonomyRollupCutoff = taxonomyRollupCutoff;
+    private static long elapsedMillis(long startTimeNanos) {
+        return (System.nanoTime() - startTimeNanos) / 1000000;
     }
 
     Taxonomy(InputStream is, String version) {
         mModelVersion = version;
         // Read the taxonomy CSV file into a list of nodes
         BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+        mNodes = new ArrayList<>();
         try {
             String headerLine = reader.readLine();
             // Transform header line to array
             String[] headers = headerLine.split(",");
+            Node.CsvColumns columns = new Node.CsvColumns(headers);
 
-
-            mNodes = new ArrayList<>();
-            mLeaves = new ArrayList<>();
             for (String line; (line = reader.readLine()) != null; ) {
-                Node node = new Node(headers, line);
-                mNodes.add(node);
-                if ((node.leafId != null) && (node.leafId.length() > 0)) {
-                    mLeaves.add(node);
-                }
+                mNodes.add(new Node(columns, line));
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
 
         // Convert list of nodes into a structure with parents and children
+        buildTree(null);
+    }
+
+    /** Creates the taxonomy from the columns of a binary taxonomy file, see {@link TaxonomyBinaryFile} */
+    private Taxonomy(TaxonomyBinaryFile.Columns columns, String version) {
+        mModelVersion = version;
+        int nodeCount = columns.taxonIds.length;
+        mNodes = new ArrayList<>(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            Node node = new Node();
+            node.key = Integer.toString(columns.taxonIds[i]);
+            node.rank = columns.ranks[i];
+            node.leafId = columns.leafClassIds[i] >= 0 ? Integer.toString(columns.leafClassIds[i]) : "";
+            node.geoThreshold = Double.isNaN(columns.geoThresholds[i]) ? null : columns.geoThresholds[i];
+            node.name = columns.names[i];
+            mNodes.add(node);
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            int parentRow = columns.parentRows[i];
+            mNodes.get(i).parentKey = parentRow >= 0 ? mNodes.get(parentRow).key : "";
+        }
+
+        buildTree(columns.parentRows);
+    }
+
+    /**
+     * Links the nodes to their parents and children. Parents are looked up by key, unless their row
+     * in the node list is already known (-1 for children of life).
+     */
+    private void buildTree(int[] parentRows) {
+        mLeaves = new ArrayList<>();
+        for (Node node : mNodes) {
+            if ((node.leafId != null) && (node.leafId.length() > 0)) {
+                mLeaves.add(node);
+            }
+        }
+
         mNodeByKey = new HashMap<>();
 
         mLifeNode = createLifeNode();
@@ -130,11 +202,12 @@ public class Taxonomy {
         }
         mNodeByKey.put(mLifeNode.key, mLifeNode);
 
-        List<Node> lifeList = new ArrayList<Node>();
-        lifeList.add(mLifeNode);
-
-        for (Node node: mNodes) {
-            if ((node.parentKey != null) && (node.parentKey.length() > 0)) {
+        for (int i = 0; i < mNodes.size(); i++) {
+            Node node = mNodes.get(i);
+            if (parentRows != null) {
+                Node parent = parentRows[i] >= 0 ? mNodes.get(parentRows[i]) : mLifeNode;
+                parent.addChild(node);
+            } else if ((node.parentKey != null) && (node.parentKey.length() > 0)) {
                 Node parent = mNodeByKey.get(node.parentKey);
                 parent.addChild(node);
             } else {
@@ -142,6 +215,139 @@ public class Taxonomy {
             }
         }
 
+        compileNodeArrays();
+    }
+
+    /** Flattens the node graph into index arrays used by the aggregation pass */
+    private void compileNodeArrays() {
+        int nodeCount = mNodes.size() + 1;
+        mNodesByIndex = new Node[nodeCount];
+        mParentIndex = new int[nodeCount];
+        mLeafClassIds = new int[nodeCount];
+        mGeoThresholds = new double[nodeCount];
+
+        mLifeNode.index = 0;
+        mNodesByIndex[0] = mLifeNode;
+        for (int i = 0; i < mNodes.size(); i++) {
+            Node node = mNodes.get(i);
+            node.index = i + 1;
+            mNodesByIndex[i + 1] = node;
+        }
+
+        mChildOffsets = new int[nodeCount + 1];
+        mChildIndices = new int[nodeCount - 1];
+        int childCount = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            Node node = mNodesByIndex[i];
+            mParentIndex[i] = node.parent != null ? node.parent.index : -1;
+            mLeafClassIds[i] = ((node.leafId != null) && (node.leafId.length() > 0)) ? Integer.parseInt(node.leafId) : -1;
+            mGeoThresholds[i] = node.geoThreshold != null ? node.geoThreshold : Double.NaN;
+            mChildOffsets[i] = childCount;
+            for (Node child : node.children) {
+                mChildIndices[childCount++] = child.index;
+            }
+        }
+        mChildOffsets[nodeCount] = childCount;
+
+        int maxLeafClassId = -1;
+        for (int leafClassId : mLeafClassIds) {
+            maxLeafClassId = Math.max(maxLeafClassId, leafClassId);
+        }
+        mNodeIndexByLeafClassId = new int[maxLeafClassId + 1];
+        Arrays.fill(mNodeIndexByLeafClassId, -1);
+        for (int i = 0; i < nodeCount; i++) {
+            if (mLeafClassIds[i] >= 0) {
+                mNodeIndexByLeafClassId[mLeafClassIds[i]] = i;
+            }
+        }
+
+        // Iterative depth-first traversal, emitting a node once all of its children have been emitted
+        mPostOrder = new int[nodeCount];
+        mEntryOrder = new int[nodeCount];
+        mExitOrder = new int[nodeCount];
+        mNodesByEntryOrder = new int[nodeCount];
+        int[] stack = new int[nodeCount];
+        int[] nextChild = new int[nodeCount];
+        int stackSize = 0;
+        int emitted = 0;
+        int entered = 0;
+        stack[stackSize++] = 0;
+        nextChild[0] = mChildOffsets[0];
+        mNodesByEntryOrder[entered] = 0;
+        mEntryOrder[0] = entered++;
+        while (stackSize > 0) {
+            int current = stack[stackSize - 1];
+            if (nextChild[current] < mChildOffsets[current + 1]) {
+                int child = mChildIndices[nextChild[current]++];
+                nextChild[child] = mChildOffsets[child];
+                mNodesByEntryOrder[entered] = child;
+                mEntryOrder[child] = entered++;
+                stack[stackSize++] = child;
+            } else {
+                mPostOrder[emitted++] = current;
+                mExitOrder[current] = entered - 1;
+                stackSize--;
+            }
+        }
+
+        compileResultFields();
+    }
+
+    /**
+     * Precomputes the fields {@link #nodeToMap} reports for every node. Nodes are visited parents first,
+     * so every node can extend the ancestor IDs of its parent. All children of a node share one array.
+     */
+    private void compileResultFields() {
+        int[][] childAncestorIds = new int[mNodesByIndex.length][];
+        boolean reportsLeafIds = !mModelVersion.equals("1.0");
+        for (int index : mNodesByEntryOrder) {
+            Node node = mNodesByIndex[index];
+            int parent = mParentIndex[index];
+            node.ancestorIds = parent >= 0 ? childAncestorIds[parent] : new int[0];
+            node.rankName = RANK_LEVEL_TO_NAME.get(node.rank);
+
+            Integer taxonId = parseId(node.key);
+            boolean hasLeafId = (node.leafId != null) && (node.leafId.length() > 0);
+            Integer leafId = hasLeafId ? parseId(node.leafId) : null;
+            // Invalid node key or class ID
+            boolean isValid = taxonId != null && (!reportsLeafIds || !hasLeafId || leafId != null);
+            node.taxonId = isValid ? taxonId : null;
+            node.resultLeafId = reportsLeafIds ? leafId : null;
+
+            if (mChildOffsets[index] < mChildOffsets[index + 1]) {
+                if (taxonId != null && isDigits(node.key)) {
+                    int[] ancestorIds = Arrays.copyOf(node.ancestorIds, node.ancestorIds.length + 1);
+                    ancestorIds[node.ancestorIds.length] = taxonId;
+                    childAncestorIds[index] = ancestorIds;
+                } else {
+                    childAncestorIds[index] = node.ancestorIds;
+                }
+            }
+        }
+    }
+
+    private static Integer parseId(String id) {
+        if (id == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(id);
+        } catch (NumberFormatException exc) {
+            return null;
+        }
+    }
+
+    private static boolean isDigits(String id) {
+        if (id == null || id.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
     }
 
     private Node createLifeNode() {
@@ -157,42 +363,54 @@ public class Taxonomy {
         return mLeaves.size();
     }
 
-    public List<Prediction> predict(float[] combinedScores, float[] visionScores, float[] geoScores, Double taxonomyRollupCutoff, Boolean commonAncestorMode) {
-        // Make a copy of results
-        float[] cSCopy = combinedScores.clone();
-        // Make sure results is sorted by score
-        Arrays.sort(cSCopy);
-        // Get result with the highest score
-        float topCombinedScore = cSCopy[cSCopy.length - 1];
+    /** Creates a context for scoring requests against this taxonomy */
+    public ScoringContext newScoringContext() {
+        ScoringContext context = new ScoringContext();
+        context.ensureCapacity(mNodesByIndex.length);
+        return context;
+    }
+
+    public List<Prediction> predict(ScoringContext context, float[] combinedScores, float[] visionScores, float[] geoScores, Double taxonomyRollupCutoff, Boolean commonAncestorMode) {
+        context.ensureCapacity(mNodesByIndex.length);
+        // Get result with the highest score, and the top leaves if requested
+        ScoreStatistics statistics = context.mScoreStatistics;
+        statistics.compute(combinedScores, context.getTopLeafCount());
+        float topCombinedScore = statistics.getMaxScore();
         float scoreRatioCutoff = 0.001f;
         float cutoff = topCombinedScore * scoreRatioCutoff;
-        setTaxonomyRollupCutoff(cutoff);
+        context.setTaxonomyRollupCutoff(cutoff);
         // If taxonomy rollup is given from outside use it instead
         if (taxonomyRollupCutoff != null) {
-          setTaxonomyRollupCutoff(taxonomyRollupCutoff.floatValue());
+          context.setTaxonomyRollupCutoff(taxonomyRollupCutoff.floatValue());
         }
-        cSCopy = null;
 
-        Map<String, Map> aggregatedScores = aggregateAndNormalizeScores(combinedScores, visionScores, geoScores);
+        // With a positive cutoff only the leaves above it and their ancestors need to be visited
+        if (context.mTaxonomyRollupCutoff > 0.0f) {
+          aggregateScoresSparse(context, combinedScores, visionScores, geoScores);
+        } else {
+          aggregateScores(context, combinedScores, visionScores, geoScores);
+        }
+        boolean hasGeoScores = geoScores != null;
         if (commonAncestorMode) {
-          Map<String, Float> aggregatedCombinedScores = aggregatedScores.get("aggregatedCombinedScores");
-          Map<String, Float> aggregatedVisionScores = aggregatedScores.get("aggregatedVisionScores");
-          Map<String, Float> aggregatedGeoScores = aggregatedScores.get("aggregatedGeoScores");
-          Map<String, Double> aggregatedGeoThresholds = aggregatedScores.get("aggregatedGeoThresholds");
+          // Without a filter the top leaves of the statistics are the top leaves of the result
+          if (context.getTopLeafCount() > 0 && leafFilterMask(context) == null) {
+            return topLeafPredictions(context, hasGeoScores);
+          }
           List<Prediction> predictions = new ArrayList<>();
-          for (String key : aggregatedCombinedScores.keySet()) {
-            float combinedScore = aggregatedCombinedScores.get(key);
-            float visionScore = aggregatedVisionScores.get(key);
-            Float geoScore = aggregatedGeoScores.get(key);
-            Double geoThreshold = aggregatedGeoThresholds.get(key);
-            Node node = mNodeByKey.get(key);
-            node.geoThreshold = geoThreshold;
-            Prediction prediction = new Prediction(node, combinedScore, visionScore, geoScore);
-            predictions.add(prediction);
+          if (context.mIsSparseResult) {
+            for (int i = 0; i < context.mAggregatedNodeCount; i++) {
+              predictions.add(aggregatedPrediction(context, context.mAggregatedNodes[i], hasGeoScores));
+            }
+          } else {
+            for (int i = 0; i < mNodesByIndex.length; i++) {
+              if (context.mIsAggregated[i]) {
+                predictions.add(aggregatedPrediction(context, i, hasGeoScores));
+              }
+            }
           }
           return predictions;
         } else {
-          List<Prediction> bestBranch = buildBestBranchFromScores(aggregatedScores);
+          List<Prediction> bestBranch = buildBestBranchFromScores(context, hasGeoScores);
           return bestBranch;
         }
     }
@@ -226,171 +444,319 @@ public class Taxonomy {
         return scores;
     }
 
-    /** Aggregates scores for nodes, including non-leaf nodes (so each non-leaf node has a score of the sum of all its dependents) */
-    private Map<String, Map> aggregateAndNormalizeScores(float[] combinedScores, float[] visionScores, float[] geoScores) {
-        // Reset the sum of removed leaf scores
-        mExcludedLeafCombinedScoresSum = 0.0f;
-        mExcludedLeafVisionScoresSum = 0.0f;
-        Map<String, Map> aggregatedScores = aggregateScores(combinedScores, visionScores, geoScores, mLifeNode);
-        Map<String, Float> aggregatedCombinedScores = aggregatedScores.get("aggregatedCombinedScores");
-        Map<String, Float> aggregatedVisionScores = aggregatedScores.get("aggregatedVisionScores");
-        // Re-normalize combined scores with the sum of all remaining leaf scores
-        for (String key : aggregatedCombinedScores.keySet()) {
-          aggregatedCombinedScores.put(key, aggregatedCombinedScores.get(key) / (1.0f - mExcludedLeafCombinedScoresSum));
-        }
-        // Re-normalize vision scores with the sum of all remaining leaf scores
-        for (String key : aggregatedVisionScores.keySet()) {
-          aggregatedVisionScores.put(key, aggregatedVisionScores.get(key) / (1.0f - mExcludedLeafVisionScoresSum));
-        }
-        Map<String, Map> scores = new HashMap<>();
-        scores.put("aggregatedCombinedScores", aggregatedCombinedScores);
-        scores.put("aggregatedVisionScores", aggregatedVisionScores);
-        scores.put("aggregatedGeoScores", aggregatedScores.get("aggregatedGeoScores"));
-        scores.put("aggregatedGeoThresholds", aggregatedScores.get("aggregatedGeoThresholds"));
-        return scores;
-    }
-
-    /** Following: https://github.com/inaturalist/inatVisionAPI/blob/multiclass/inferrers/multi_class_inferrer.py#L136 */
-    private Map<String, Map> aggregateScores(float[] combinedScores, float[] visionScores, float[] geoScores, Node currentNode) {
-        // we'll populate this and return it
-        Map<String, Map> aggregatedScores = new HashMap<>();
-        Map<String, Float> aggregatedCombinedScores = new HashMap<>();
-        Map<String, Float> aggregatedVisionScores = new HashMap<>();
+    /**
+     * Aggregates scores for nodes, including non-leaf nodes (so each non-leaf node has a score of the sum of all its dependents)
+     * Following: https://github.com/inaturalist/inatVisionAPI/blob/multiclass/inferrers/multi_class_inferrer.py#L136
+     */
+    private void aggregateScores(ScoringContext context, float[] combinedScores, float[] visionScores, float[] geoScores) {
+        float[] aggregatedCombinedScores = context.mAggregatedCombinedScores;
+        float[] aggregatedVisionScores = context.mAggregatedVisionScores;
+        float[] aggregatedGeoScores = context.mAggregatedGeoScores;
+        double[] aggregatedGeoThresholds = context.mAggregatedGeoThresholds;
+        boolean[] hasAggregatedScore = context.mHasAggregatedScore;
+        boolean[] isAggregated = context.mIsAggregated;
+        float cutoff = context.mTaxonomyRollupCutoff;
+        long[] filterMask = leafFilterMask(context);
         boolean hasGeoScores = geoScores != null;
-        Map<String, Float> aggregatedGeoScores = new HashMap<>();
-        Map<String, Double> aggregatedGeoThresholds = new HashMap<>();
-
-        if (currentNode.children.size() > 0) {
-            float thisScore = 0.0f;
-            float thisVisionScore = 0.0f;
-            float thisGeoScore = 0.0f;
-            double thisGeoThreshold = Double.POSITIVE_INFINITY;
-            for (Node child : currentNode.children) {
-                Map<String, Map> childScores = aggregateScores(combinedScores, visionScores, geoScores, child);
-                Map<String, Float> aggregatedChildCombinedScores = childScores.get("aggregatedCombinedScores");
-                if (aggregatedChildCombinedScores.containsKey(child.key)) {
-                  float childCombinedScore = aggregatedChildCombinedScores.get(child.key);
-                  if (childCombinedScore >= mTaxonomyRollupCutoff) {
-                    aggregatedCombinedScores.putAll(aggregatedChildCombinedScores);
-                    thisScore += childCombinedScore;
-                    Map<String, Float> aggregatedChildVisionScores = childScores.get("aggregatedVisionScores");
-                    aggregatedVisionScores.putAll(aggregatedChildVisionScores);
-                    thisVisionScore += aggregatedChildVisionScores.get(child.key);
+
+        // Reset the sum of removed leaf scores
+        float excludedLeafCombinedScoresSum = 0.0f;
+        float excludedLeafVisionScoresSum = 0.0f;
+        int leafCountAboveCutoff = 0;
+
+        Arrays.fill(aggregatedCombinedScores, 0.0f);
+        Arrays.fill(aggregatedVisionScores, 0.0f);
+        Arrays.fill(aggregatedGeoScores, 0.0f);
+        Arrays.fill(aggregatedGeoThresholds, Double.POSITIVE_INFINITY);
+
+        // Children come before their parent in post-order, so by the time a non-leaf node is visited
+        // all of its children have already added their scores to it
+        for (int i = 0; i < mPostOrder.length; i++) {
+            int node = mPostOrder[i];
+            boolean hasScore;
+            if (mChildOffsets[node] != mChildOffsets[node + 1]) {
+                hasScore = aggregatedCombinedScores[node] != 0.0f;
+                if (aggregatedGeoThresholds[node] == Double.POSITIVE_INFINITY) {
+                    aggregatedGeoThresholds[node] = Double.NaN;
+                }
+            } else {
+                // base case, no children
+                boolean filterOut = filterMask != null && !isSet(filterMask, node);
+
+                int leafClassId = mLeafClassIds[node];
+                float combinedScore = leafClassId >= 0 ? combinedScores[leafClassId] : 0.0f;
+                float visionScore = leafClassId >= 0 ? visionScores[leafClassId] : 0.0f;
+                hasScore = !filterOut && leafClassId >= 0 && combinedScore >= cutoff;
+                if (hasScore) {
+                    leafCountAboveCutoff++;
+                    aggregatedCombinedScores[node] = combinedScore;
+                    aggregatedVisionScores[node] = visionScore;
                     if (hasGeoScores) {
-                      // Aggregated geo score is the max of descendant geo scores
-                      Map<String, Float> aggregatedChildGeoScores = childScores.get("aggregatedGeoScores");
-                      aggregatedGeoScores.putAll(aggregatedChildGeoScores);
-                      thisGeoScore = Math.max(thisGeoScore, aggregatedChildGeoScores.get(child.key));
-                    }
-                    // Aggregated geo_threshold is the min of descendant geo_thresholds
-                    Map<String, Double> aggregatedChildGeoThresholds = childScores.get("aggregatedGeoThresholds");
-                    aggregatedGeoThresholds.putAll(aggregatedChildGeoThresholds);
-                    if (aggregatedChildGeoThresholds.containsKey(child.key)) {
-                      if (aggregatedChildGeoThresholds.get(child.key) != null) {
-                        thisGeoThreshold = Math.min(thisGeoThreshold, aggregatedChildGeoThresholds.get(child.key));
-                      }
+                        aggregatedGeoScores[node] = geoScores[leafClassId];
                     }
-                  }
+                    aggregatedGeoThresholds[node] = mGeoThresholds[node];
+                } else {
+                    excludedLeafCombinedScoresSum += combinedScore;
+                    excludedLeafVisionScoresSum += visionScore;
                 }
             }
-            if (thisScore != 0.0f) {
-              aggregatedCombinedScores.put(currentNode.key, thisScore);
-              aggregatedVisionScores.put(currentNode.key, thisVisionScore);
-              if (hasGeoScores) {
-                aggregatedGeoScores.put(currentNode.key, thisGeoScore);
-              } else {
-                aggregatedGeoScores.put(currentNode.key, null);
-              }
-              if (thisGeoThreshold != Double.POSITIVE_INFINITY) {
-                aggregatedGeoThresholds.put(currentNode.key, thisGeoThreshold);
-              } else {
-                aggregatedGeoThresholds.put(currentNode.key, null);
-              }
+            hasAggregatedScore[node] = hasScore;
+
+            int parent = mParentIndex[node];
+            if (parent >= 0 && hasScore && aggregatedCombinedScores[node] >= cutoff) {
+                aggregatedCombinedScores[parent] += aggregatedCombinedScores[node];
+                aggregatedVisionScores[parent] += aggregatedVisionScores[node];
+                if (hasGeoScores) {
+                    // Aggregated geo score is the max of descendant geo scores
+                    aggregatedGeoScores[parent] = Math.max(aggregatedGeoScores[parent], aggregatedGeoScores[node]);
+                }
+                // Aggregated geo_threshold is the min of descendant geo_thresholds
+                if (!Double.isNaN(aggregatedGeoThresholds[node])) {
+                    aggregatedGeoThresholds[parent] = Math.min(aggregatedGeoThresholds[parent], aggregatedGeoThresholds[node]);
+                }
             }
-        } else {
-            // base case, no children
-            boolean filterOut = false;
+        }
+
+        // A node is part of the result if it and all of its ancestors below life passed the cutoff.
+        // Walking the post-order backwards visits every parent before its children.
+        for (int i = mPostOrder.length - 1; i >= 0; i--) {
+            int node = mPostOrder[i];
+            int parent = mParentIndex[node];
+            if (parent < 0) {
+                isAggregated[node] = hasAggregatedScore[node];
+            } else {
+                isAggregated[node] = hasAggregatedScore[node] &&
+                    aggregatedCombinedScores[node] >= cutoff &&
+                    (parent == 0 || isAggregated[parent]);
+            }
+        }
+
+        context.mExcludedLeafCombinedScoresSum = excludedLeafCombinedScoresSum;
+        context.mExcludedLeafVisionScoresSum = excludedLeafVisionScoresSum;
+        context.mLeafCountAboveCutoff = leafCountAboveCutoff;
+        context.mIsSparseResult = false;
+    }
 
-            if (mFilterByTaxonId != null) {
-                // Filter
+    /**
+     * Same aggregation as {@link #aggregateScores}, but only the leaves at or above the rollup cutoff are
+     * visited and their scores are added up their ancestor chains. With a positive cutoff every ancestor
+     * of such a leaf passes the cutoff as well, so the result is the same as that of the full pass while
+     * the work scales with the number of plausible leaves instead of the size of the taxonomy.
+     */
+    private void aggregateScoresSparse(ScoringContext context, float[] combinedScores, float[] visionScores, float[] geoScores) {
+        float[] aggregatedCombinedScores = context.mAggregatedCombinedScores;
+        float[] aggregatedVisionScores = context.mAggregatedVisionScores;
+        float[] aggregatedGeoScores = context.mAggregatedGeoScores;
+        double[] aggregatedGeoThresholds = context.mAggregatedGeoThresholds;
+        boolean[] isAggregated = context.mIsAggregated;
+        int[] aggregatedNodes = context.mAggregatedNodes;
+        float cutoff = context.mTaxonomyRollupCutoff;
+        long[] filterMask = leafFilterMask(context);
+        boolean hasGeoScores = geoScores != null;
 
-                // Reset current prediction score if:
-                // A) Negative filter + prediction does contain taxon ID as ancestor
-                // B) Non-negative filter + prediction does not contain taxon ID as ancestor
-                boolean containsAncestor = hasAncestor(currentNode, mFilterByTaxonId.toString());
-                filterOut = (containsAncestor && mNegativeFilter) || (!containsAncestor && !mNegativeFilter);
+        context.clearAggregatedNodes();
+        int aggregatedNodeCount = 0;
+        int leafCountAboveCutoff = 0;
+        // The excluded mass used for re-normalization is everything that was not included
+        double combinedScoresSum = 0.0;
+        double visionScoresSum = 0.0;
+        double includedCombinedScoresSum = 0.0;
+        double includedVisionScoresSum = 0.0;
+
+        int leafClassCount = Math.min(mNodeIndexByLeafClassId.length, combinedScores.length);
+        for (int leafClassId = 0; leafClassId < leafClassCount; leafClassId++) {
+            int leaf = mNodeIndexByLeafClassId[leafClassId];
+            if (leaf < 0) continue;
+            float combinedScore = combinedScores[leafClassId];
+            float visionScore = visionScores[leafClassId];
+            combinedScoresSum += combinedScore;
+            visionScoresSum += visionScore;
+            if (!(combinedScore >= cutoff)) continue;
+            if (filterMask != null && !isSet(filterMask, leaf)) continue;
+
+            leafCountAboveCutoff++;
+            includedCombinedScoresSum += combinedScore;
+            includedVisionScoresSum += visionScore;
+            float geoScore = hasGeoScores ? geoScores[leafClassId] : 0.0f;
+            double geoThreshold = mGeoThresholds[leaf];
+            for (int node = leaf; node >= 0; node = mParentIndex[node]) {
+                if (!isAggregated[node]) {
+                    isAggregated[node] = true;
+                    aggregatedNodes[aggregatedNodeCount++] = node;
+                    aggregatedCombinedScores[node] = 0.0f;
+                    aggregatedVisionScores[node] = 0.0f;
+                    aggregatedGeoScores[node] = 0.0f;
+                    aggregatedGeoThresholds[node] = Double.POSITIVE_INFINITY;
+                }
+                aggregatedCombinedScores[node] += combinedScore;
+                aggregatedVisionScores[node] += visionScore;
+                if (hasGeoScores) {
+                    // Aggregated geo score is the max of descendant geo scores
+                    aggregatedGeoScores[node] = Math.max(aggregatedGeoScores[node], geoScore);
+                }
+                // Aggregated geo_threshold is the min of descendant geo_thresholds
+                if (!Double.isNaN(geoThreshold)) {
+                    aggregatedGeoThresholds[node] = Math.min(aggregatedGeoThresholds[node], geoThreshold);
+                }
             }
+        }
 
-            float combinedScore = combinedScores[Integer.valueOf(currentNode.leafId)];
-            float visionScore = visionScores[Integer.valueOf(currentNode.leafId)];
-            if (!filterOut && combinedScore >= mTaxonomyRollupCutoff) {
-              aggregatedCombinedScores.put(currentNode.key, combinedScore);
-              aggregatedVisionScores.put(currentNode.key, visionScore);
-              if (hasGeoScores) {
-                float geoScore = geoScores[Integer.parseInt(currentNode.leafId)];
-                aggregatedGeoScores.put(currentNode.key, geoScore);
-              } else {
-                aggregatedGeoScores.put(currentNode.key, null);
-              }
-              aggregatedGeoThresholds.put(currentNode.key, currentNode.geoThreshold);
-            } else {
-              mExcludedLeafCombinedScoresSum += combinedScore;
-              mExcludedLeafVisionScoresSum += visionScore;
+        for (int i = 0; i < aggregatedNodeCount; i++) {
+            int node = aggregatedNodes[i];
+            if (aggregatedGeoThresholds[node] == Double.POSITIVE_INFINITY) {
+                aggregatedGeoThresholds[node] = Double.NaN;
             }
         }
+        // Keep the results in node order, same as the full pass
+        Arrays.sort(aggregatedNodes, 0, aggregatedNodeCount);
+
+        context.mAggregatedNodeCount = aggregatedNodeCount;
+        context.mExcludedLeafCombinedScoresSum = (float) (combinedScoresSum - includedCombinedScoresSum);
+        context.mExcludedLeafVisionScoresSum = (float) (visionScoresSum - includedVisionScoresSum);
+        context.mLeafCountAboveCutoff = leafCountAboveCutoff;
+        context.mIsSparseResult = true;
+    }
 
-        // Return a map with the three aggregated scores
-        aggregatedScores.put("aggregatedCombinedScores", aggregatedCombinedScores);
-        aggregatedScores.put("aggregatedVisionScores", aggregatedVisionScores);
-        aggregatedScores.put("aggregatedGeoScores", aggregatedGeoScores);
-        aggregatedScores.put("aggregatedGeoThresholds", aggregatedGeoThresholds);
-        return aggregatedScores;
+    /**
+     * The aggregated predictions of the highest scoring leaves of the context's score statistics and of
+     * their ancestors, in node order. The common ancestor is looked up among the top leaves only, so the
+     * other aggregated nodes do not need to be converted to predictions.
+     */
+    private List<Prediction> topLeafPredictions(ScoringContext context, boolean hasGeoScores) {
+        ScoreStatistics statistics = context.mScoreStatistics;
+        int[] topIndices = statistics.getTopIndices();
+        boolean[] isTopBranch = context.mIsTopBranch;
+        int[] topBranchNodes = context.mTopBranchNodes;
+        int topBranchNodeCount = 0;
+        for (int i = 0; i < statistics.getTopCount(); i++) {
+            int leafClassId = topIndices[i];
+            if (leafClassId >= mNodeIndexByLeafClassId.length) continue;
+            int leaf = mNodeIndexByLeafClassId[leafClassId];
+            if (leaf < 0) continue;
+            // Stop at the first node already added, its ancestors have been added with it
+            boolean[] isAggregated = context.mIsAggregated;
+            for (int node = leaf; node >= 0 && isAggregated[node] && !isTopBranch[node]; node = mParentIndex[node]) {
+                isTopBranch[node] = true;
+                topBranchNodes[topBranchNodeCount++] = node;
+            }
+        }
+        Arrays.sort(topBranchNodes, 0, topBranchNodeCount);
+
+        List<Prediction> predictions = new ArrayList<>(topBranchNodeCount);
+        for (int i = 0; i < topBranchNodeCount; i++) {
+            int node = topBranchNodes[i];
+            isTopBranch[node] = false;
+            predictions.add(aggregatedPrediction(context, node, hasGeoScores));
+        }
+        return predictions;
+    }
+
+    /** Creates a prediction from the aggregated scores of a node, re-normalized with the sum of all remaining leaf scores */
+    private Prediction aggregatedPrediction(ScoringContext context, int index, boolean hasGeoScores) {
+        double geoThreshold = context.mAggregatedGeoThresholds[index];
+        return new Prediction(
+            mNodesByIndex[index],
+            normalizedCombinedScore(context, index),
+            context.mAggregatedVisionScores[index] / (1.0f - context.mExcludedLeafVisionScoresSum),
+            hasGeoScores ? context.mAggregatedGeoScores[index] : null,
+            Double.isNaN(geoThreshold) ? null : geoThreshold
+        );
     }
 
-    /** Returns whether or not this taxon node has an ancestor with a specified taxon ID */
-    private boolean hasAncestor(Node node, String taxonId) {
-        if (node.key.equals(taxonId)) {
-            return true;
-        } else if (node.parent != null) {
-            // Climb up the tree
-            return hasAncestor(node.parent, taxonId);
+    private float normalizedCombinedScore(ScoringContext context, int index) {
+        return context.mAggregatedCombinedScores[index] / (1.0f - context.mExcludedLeafCombinedScoresSum);
+    }
+
+    /**
+     * Returns the mask of nodes that pass the taxon filter of the context, or null if there is no filter.
+     * The mask is kept on the context and only looked up again when the filter changes.
+     */
+    private long[] leafFilterMask(ScoringContext context) {
+        TaxonFilter filter = context.getTaxonFilter();
+        if (filter == null || filter.isEmpty()) {
+            return null;
+        }
+        if (context.mLeafFilterMask == null || !filter.equals(context.mLeafFilterMaskFilter)) {
+            context.mLeafFilterMask = filterMask(filter);
+            context.mLeafFilterMaskFilter = filter;
+        }
+        return context.mLeafFilterMask;
+    }
+
+    /**
+     * Returns the mask of nodes that pass the filter, bit i set means node i passes. Compiled masks are
+     * cached, so switching between a few common filters does not compile them again. The returned
+     * mask must not be modified.
+     */
+    public long[] filterMask(TaxonFilter filter) {
+        synchronized (mFilterMasks) {
+            long[] mask = mFilterMasks.get(filter);
+            if (mask != null) {
+                return mask;
+            }
+        }
+
+        long[] mask = new long[(mNodesByIndex.length + 63) >>> 6];
+        int[] includeTaxonIds = filter.includeTaxonIds();
+        if (includeTaxonIds.length == 0) {
+            Arrays.fill(mask, -1L);
         } else {
-            // Reach to life node (root node) without finding that taxon ID
-            return false;
+            for (int taxonId : includeTaxonIds) {
+                setSubtree(mask, taxonId, true);
+            }
         }
+        for (int taxonId : filter.excludeTaxonIds()) {
+            setSubtree(mask, taxonId, false);
+        }
+        Timber.tag(TAG).d("Compiled leaf mask for " + filter);
+
+        synchronized (mFilterMasks) {
+            mFilterMasks.put(filter, mask);
+        }
+        return mask;
     }
 
+    /** Sets or clears the bits of a taxon and all of its descendants, unknown taxa are ignored */
+    private void setSubtree(long[] mask, int taxonId, boolean value) {
+        Node node = mNodeByKey.get(String.valueOf(taxonId));
+        if (node == null) {
+            return;
+        }
+        for (int entry = mEntryOrder[node.index]; entry <= mExitOrder[node.index]; entry++) {
+            int descendant = mNodesByEntryOrder[entry];
+            if (value) {
+                mask[descendant >>> 6] |= 1L << descendant;
+            } else {
+                mask[descendant >>> 6] &= ~(1L << descendant);
+            }
+        }
+    }
+
+    private static boolean isSet(long[] mask, int node) {
+        return (mask[node >>> 6] & (1L << node)) != 0;
+    }
 
     /** Finds the best branch from all result scores */
-    private List<Prediction> buildBestBranchFromScores(Map<String, Map> scores) {
+    private List<Prediction> buildBestBranchFromScores(ScoringContext context, boolean hasGeoScores) {
         List<Prediction> bestBranch = new ArrayList<>();
 
-        Map<String, Float> combinedScores = scores.get("aggregatedCombinedScores");
-        Map<String, Float> visionScores = scores.get("aggregatedVisionScores");
-        Map<String, Float> geoScores = scores.get("aggregatedGeoScores");
-        Map<String, Double> geoThresholds = scores.get("aggregatedGeoThresholds");
-        Timber.tag(TAG).d("Number of nodes in combinedScores: " + combinedScores.size());
-
         // Start from life
-        Node currentNode = mLifeNode;
-
-        float lifeCombinedScore = combinedScores.get(currentNode.key);
-        float lifeVisionScore = visionScores.get(currentNode.key);
-        Float lifeGeoScore = geoScores.get(currentNode.key);
-        currentNode.geoThreshold = geoThresholds.get(currentNode.key);
-        Prediction lifePrediction = new Prediction(currentNode, lifeCombinedScore, lifeVisionScore, lifeGeoScore);
-        bestBranch.add(lifePrediction);
-
-        List<Node> currentNodeChildren = currentNode.children;
+        int currentNode = 0;
+        if (!context.mIsAggregated[currentNode]) {
+            Timber.tag(TAG).w("No aggregated score for life");
+            return bestBranch;
+        }
+        bestBranch.add(aggregatedPrediction(context, currentNode, hasGeoScores));
 
         // loop while the last current node (the previous best child node) has more children
-        while (currentNodeChildren.size() > 0) {
+        while (mChildOffsets[currentNode] != mChildOffsets[currentNode + 1]) {
             // find the best child of the current node
-            Node bestChild = null;
+            int bestChild = -1;
             float bestChildScore = -1;
-            for (Node child : currentNodeChildren) {
-              if (combinedScores.containsKey(child.key)) {
-                float childScore = combinedScores.get(child.key);
+            for (int i = mChildOffsets[currentNode]; i < mChildOffsets[currentNode + 1]; i++) {
+              int child = mChildIndices[i];
+              if (context.mIsAggregated[child]) {
+                float childScore = normalizedCombinedScore(context, child);
                 if (childScore > bestChildScore) {
                   bestChildScore = childScore;
                   bestChild = child;
@@ -398,16 +764,11 @@ public class Taxonomy {
               }
             }
 
-            if (bestChild != null) {
-                float bestChildVisionScore = visionScores.get(bestChild.key);
-                Float bestChildGeoScore = geoScores.get(bestChild.key);
-                bestChild.geoThreshold = geoThresholds.get(bestChild.key);
-                Prediction bestChildPrediction = new Prediction(bestChild, bestChildScore, bestChildVisionScore, bestChildGeoScore);
-                bestBranch.add(bestChildPrediction);
+            if (bestChild < 0) {
+                break;
             }
-
+            bestBranch.add(aggregatedPrediction(context, bestChild, hasGeoScores));
             currentNode = bestChild;
-            currentNodeChildren = currentNode.children;
         }
 
         return bestBranch;
@@ -415,47 +776,28 @@ public class Taxonomy {
 
     /** Converts a prediction result to a map */
     public static Map nodeToMap(Prediction prediction) {
-        Map result = new HashMap();
-
-        if (prediction.node == null) return null;
-
-        try {
-            result.put("taxon_id", Integer.valueOf(prediction.node.key));
-            result.put("name", prediction.node.name);
-            result.put("score", prediction.score);
-            result.put("vision_score", prediction.visionScore);
-            result.put("geo_score", prediction.geoScore);
-            if ((prediction.node.geoThreshold != null)) {
-              result.put("geo_threshold", prediction.node.geoThreshold);
-            }
-            result.put("rank_level", (double) prediction.node.rank);
-            result.put("rank", RANK_LEVEL_TO_NAME.get(prediction.node.rank));
-            if (!mModelVersion.equals("1.0")) {
-              if ((prediction.node.leafId != null) && (prediction.node.leafId.length() > 0)) {
-                result.put("leaf_id", Integer.valueOf(prediction.node.leafId));
-              }
-            }
-        } catch (NumberFormatException exc) {
-            // Invalid node key or class ID
-            exc.printStackTrace();
-            return null;
-        }
+        Node node = prediction.node;
+        if (node == null || node.taxonId == null) return null;
 
-        // Create the ancestors list for the result
-        List<Integer> ancestorsList = new ArrayList<>();
-        Node currentNode = prediction.node;
-        while (currentNode.parent != null) {
-            if ((currentNode.parent.key != null) && (currentNode.parent.key.matches("\\d+"))) {
-                ancestorsList.add(Integer.valueOf(currentNode.parent.key));
-            }
-            currentNode = currentNode.parent;
+        Map result = new HashMap();
+        result.put("taxon_id", node.taxonId);
+        result.put("name", node.name);
+        result.put("score", prediction.score);
+        result.put("vision_score", prediction.visionScore);
+        result.put("geo_score", prediction.geoScore);
+        if ((prediction.geoThreshold != null)) {
+          result.put("geo_threshold", prediction.geoThreshold);
         }
-        Collections.reverse(ancestorsList);
-        ArrayList ancestors = new ArrayList();
-        for (Integer id : ancestorsList) {
-            ancestors.add(id);
+        result.put("rank_level", (double) node.rank);
+        result.put("rank", node.rankName);
+        if (node.resultLeafId != null) {
+          result.put("leaf_id", node.resultLeafId);
         }
 
+        List<Integer> ancestors = new ArrayList<>(node.ancestorIds.length);
+        for (int ancestorId : node.ancestorIds) {
+            ancestors.add(ancestorId);
+        }
         result.put("ancestor_ids", ancestors);
 
         return result;
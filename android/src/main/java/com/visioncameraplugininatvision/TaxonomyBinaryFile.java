@@ -0,0 +1,180 @@
+package com.visioncameraplugininatvision;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import timber.log.Timber;
+
+/**
+ * Precompiled, column-oriented copy of a taxonomy CSV file. It is stored next to the CSV file and
+ * memory-mapped on load, so no per-row parsing is needed. The file records the size and modification
+ * time of the CSV file it was generated from and is ignored once either of them changes.
+ *
+ * Layout (little endian), rows are in the same order as in the CSV file:
+ * <pre>
+ * int      magic
+ * int      format version
+ * long     size of the CSV file
+ * long     modification time of the CSV file
+ * int      number of rows (n)
+ * int      size of the name pool in bytes
+ * int[n]   taxon ids
+ * int[n]   row of the parent node, -1 if the parent is life
+ * float[n] rank levels
+ * int[n]   leaf class ids, -1 if the node is not a leaf
+ * double[n] geo thresholds, NaN if not set
+ * int[n+1] offsets of the names into the name pool
+ * byte[]   name pool, UTF-8 encoded
+ * </pre>
+ */
+public class TaxonomyBinaryFile {
+    private static final String TAG = "TaxonomyBinaryFile";
+
+    private static final String FILE_SUFFIX = ".bin";
+    private static final int MAGIC = 0x494e5458; // "INTX"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Columns of a binary taxonomy file */
+    static class Columns {
+        int[] taxonIds;
+        int[] parentRows;
+        float[] ranks;
+        int[] leafClassIds;
+        double[] geoThresholds;
+        String[] names;
+    }
+
+    static File binaryFileFor(File csvFile) {
+        return new File(csvFile.getPath() + FILE_SUFFIX);
+    }
+
+    /** Reads the binary file generated from the CSV file, returns null if there is none or it is outdated */
+    static Columns read(File csvFile) throws IOException {
+        File binaryFile = binaryFileFor(csvFile);
+        if (!binaryFile.exists()) {
+            return null;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(binaryFile, "r")) {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                Timber.tag(TAG).d("Ignoring binary taxonomy with unknown format: " + binaryFile);
+                return null;
+            }
+            long csvSize = buffer.getLong();
+            long csvLastModified = buffer.getLong();
+            if (csvSize != csvFile.length() || csvLastModified != csvFile.lastModified()) {
+                Timber.tag(TAG).d("Ignoring outdated binary taxonomy: " + binaryFile);
+                return null;
+            }
+            int rowCount = buffer.getInt();
+            int namePoolSize = buffer.getInt();
+
+            Columns columns = new Columns();
+            columns.taxonIds = new int[rowCount];
+            columns.parentRows = new int[rowCount];
+            columns.ranks = new float[rowCount];
+            columns.leafClassIds = new int[rowCount];
+            columns.geoThresholds = new double[rowCount];
+            int[] nameOffsets = new int[rowCount + 1];
+            byte[] namePool = new byte[namePoolSize];
+
+            readInts(buffer, columns.taxonIds);
+            readInts(buffer, columns.parentRows);
+            buffer.asFloatBuffer().get(columns.ranks);
+            buffer.position(buffer.position() + rowCount * 4);
+            readInts(buffer, columns.leafClassIds);
+            buffer.asDoubleBuffer().get(columns.geoThresholds);
+            buffer.position(buffer.position() + rowCount * 8);
+            readInts(buffer, nameOffsets);
+            buffer.get(namePool);
+
+            columns.names = new String[rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                columns.names[i] = new String(namePool, nameOffsets[i], nameOffsets[i + 1] - nameOffsets[i], UTF_8);
+            }
+            return columns;
+        }
+    }
+
+    private static void readInts(ByteBuffer buffer, int[] target) {
+        buffer.asIntBuffer().get(target);
+        buffer.position(buffer.position() + target.length * 4);
+    }
+
+    /** Generates the binary file for a taxonomy that was loaded from the CSV file */
+    static void write(File csvFile, Taxonomy taxonomy) throws IOException {
+        // Index 0 of the compiled arrays is life, which is not part of the CSV file
+        int rowCount = taxonomy.mNodesByIndex.length - 1;
+        byte[][] names = new byte[rowCount][];
+        int namePoolSize = 0;
+        for (int i = 0; i < rowCount; i++) {
+            Node node = taxonomy.mNodesByIndex[i + 1];
+            names[i] = node.name != null ? node.name.getBytes(UTF_8) : new byte[0];
+            namePoolSize += names[i].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + rowCount * (4 + 4 + 4 + 4 + 8 + 4) + 4 + namePoolSize);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putLong(csvFile.length());
+        buffer.putLong(csvFile.lastModified());
+        buffer.putInt(rowCount);
+        buffer.putInt(namePoolSize);
+        for (int i = 1; i <= rowCount; i++) {
+            // Throws if the taxon id is not numeric, in which case the CSV file stays the only source
+            buffer.putInt(Integer.parseInt(taxonomy.mNodesByIndex[i].key));
+        }
+        for (int i = 1; i <= rowCount; i++) {
+            buffer.putInt(taxonomy.mParentIndex[i] - 1);
+        }
+        for (int i = 1; i <= rowCount; i++) {
+            buffer.putFloat(taxonomy.mNodesByIndex[i].rank);
+        }
+        for (int i = 1; i <= rowCount; i++) {
+            buffer.putInt(taxonomy.mLeafClassIds[i]);
+        }
+        for (int i = 1; i <= rowCount; i++) {
+            buffer.putDouble(taxonomy.mGeoThresholds[i]);
+        }
+        int nameOffset = 0;
+        for (int i = 0; i < rowCount; i++) {
+            buffer.putInt(nameOffset);
+            nameOffset += names[i].length;
+        }
+        buffer.putInt(nameOffset);
+        for (int i = 0; i < rowCount; i++) {
+            buffer.put(names[i]);
+        }
+
+        // Write to a temporary file first so a partially written file is never picked up. The name is
+        // unique, so concurrent loads of the same CSV don't write into each other's file
+        File binaryFile = binaryFileFor(csvFile);
+        File tempFile = File.createTempFile(binaryFile.getName(), ".tmp", binaryFile.getAbsoluteFile().getParentFile());
+        try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+            outputStream.write(buffer.array(), 0, buffer.position());
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        if (!tempFile.renameTo(binaryFile)) {
+            tempFile.delete();
+            throw new IOException("Could not move binary taxonomy to " + binaryFile);
+        }
+        Timber.tag(TAG).d("Wrote binary taxonomy: " + binaryFile + " (" + buffer.position() + " bytes)");
+    }
+}
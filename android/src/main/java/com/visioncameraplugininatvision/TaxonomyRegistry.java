@@ -0,0 +1,166 @@
+package com.visioncameraplugininatvision;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import timber.log.Timber;
+
+/**
+ * Process-wide registry of loaded taxonomies. Every classifier that uses the same taxonomy file with
+ * the same model version shares one {@link Taxonomy} instance. Instances are reference counted and
+ * dropped once the last classifier using them releases them.
+ */
+public class TaxonomyRegistry {
+    private static final String TAG = "TaxonomyRegistry";
+
+    /** Identifies a taxonomy by its file (path, size and modification time) and the model version */
+    private static class Key {
+        final String canonicalPath;
+        final long size;
+        final long lastModified;
+        final String version;
+
+        Key(String taxonomyPath, String version) throws IOException {
+            File file = new File(taxonomyPath);
+            this.canonicalPath = file.getCanonicalPath();
+            this.size = file.length();
+            this.lastModified = file.lastModified();
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return size == key.size &&
+                lastModified == key.lastModified &&
+                canonicalPath.equals(key.canonicalPath) &&
+                (version != null ? version.equals(key.version) : key.version == null);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = canonicalPath.hashCode();
+            result = 31 * result + (int) (size ^ (size >>> 32));
+            result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+            result = 31 * result + (version != null ? version.hashCode() : 0);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return canonicalPath + " (" + version + ")";
+        }
+    }
+
+    private static class Entry {
+        final FutureTask<Taxonomy> load;
+        int refCount = 0;
+
+        Entry(FutureTask<Taxonomy> load) {
+            this.load = load;
+        }
+    }
+
+    private static final Map<Key, Entry> sEntries = new HashMap<>();
+
+    private TaxonomyRegistry() {
+    }
+
+    /**
+     * Returns the shared taxonomy for the file and model version, loading it if no classifier uses it yet.
+     * Concurrent calls for the same taxonomy wait for a single load. Every call has to be balanced by
+     * a call to {@link #release(Taxonomy)}.
+     */
+    public static Taxonomy acquire(final String taxonomyPath, final String version) throws IOException {
+        Key key = new Key(taxonomyPath, version);
+        Entry entry;
+        boolean isLoader = false;
+        synchronized (sEntries) {
+            entry = sEntries.get(key);
+            if (entry == null) {
+                entry = new Entry(new FutureTask<>(new Callable<Taxonomy>() {
+                    @Override
+                    public Taxonomy call() throws IOException {
+                        return Taxonomy.fromFile(taxonomyPath, version);
+                    }
+                }));
+                sEntries.put(key, entry);
+                isLoader = true;
+            }
+            entry.refCount++;
+        }
+
+        if (isLoader) {
+            Timber.tag(TAG).d("Loading taxonomy: " + key);
+            entry.load.run();
+        } else {
+            Timber.tag(TAG).d("Sharing taxonomy: " + key);
+        }
+
+        try {
+            return entry.load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            removeFailed(key, entry);
+            throw new IOException("Interrupted while loading taxonomy " + key);
+        } catch (ExecutionException e) {
+            removeFailed(key, entry);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Failed to load taxonomy " + key, cause);
+        }
+    }
+
+    /** Releases a taxonomy returned by {@link #acquire(String, String)} */
+    public static void release(Taxonomy taxonomy) {
+        if (taxonomy == null) return;
+        synchronized (sEntries) {
+            Iterator<Map.Entry<Key, Entry>> iterator = sEntries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Key, Entry> mapEntry = iterator.next();
+                Entry entry = mapEntry.getValue();
+                if (!entry.load.isDone() || loadedTaxonomy(entry) != taxonomy) continue;
+                entry.refCount--;
+                if (entry.refCount <= 0) {
+                    Timber.tag(TAG).d("Dropping taxonomy: " + mapEntry.getKey());
+                    iterator.remove();
+                }
+                return;
+            }
+        }
+    }
+
+    private static Taxonomy loadedTaxonomy(Entry entry) {
+        try {
+            return entry.load.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    /** Forgets a failed load, so that the next call to {@link #acquire(String, String)} tries again */
+    private static void removeFailed(Key key, Entry entry) {
+        synchronized (sEntries) {
+            entry.refCount--;
+            if (sEntries.get(key) == entry) {
+                sEntries.remove(key);
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.visioncameraplugininatvision;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -16,15 +17,21 @@ import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableType;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.WritableNativeMap;
 import com.facebook.react.module.annotations.ReactModule;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import timber.log.Timber;
 
@@ -75,6 +82,10 @@ public class VisionCameraPluginInatVisionModule extends ReactContextBaseJavaModu
     public static final String OPTION_GEOMODEL_PATH = "geomodelPath";
     public static final String OPTION_LOCATION = "location";
     public static final String OPTION_MODE = "mode";
+    public static final String OPTION_INCLUDE_TAXON_IDS = "includeTaxonIds";
+    public static final String OPTION_EXCLUDE_TAXON_IDS = "excludeTaxonIds";
+    public static final String OPTION_VISION_INTERPRETER_OPTIONS = "visionInterpreterOptions";
+    public static final String OPTION_GEO_INTERPRETER_OPTIONS = "geoInterpreterOptions";
     public static final String LATITUDE = "latitude";
     public static final String LONGITUDE = "longitude";
     public static final String ELEVATION = "elevation";
@@ -97,52 +108,36 @@ public class VisionCameraPluginInatVisionModule extends ReactContextBaseJavaModu
         String version = options.getString(OPTION_VERSION);
         String mode = options.hasKey(OPTION_MODE) ? options.getString(OPTION_MODE) : null;
         double cropRatio = options.hasKey(OPTION_CROP_RATIO) ? options.getDouble(OPTION_CROP_RATIO) : DEFAULT_CROP_RATIO;
+        List<Integer> includeTaxonIds = taxonIdsFromOption(options, OPTION_INCLUDE_TAXON_IDS);
+        List<Integer> excludeTaxonIds = taxonIdsFromOption(options, OPTION_EXCLUDE_TAXON_IDS);
+        InterpreterConfig visionInterpreterConfig;
+        InterpreterConfig geoInterpreterConfig;
+        try {
+            visionInterpreterConfig = interpreterConfigFromOption(options, OPTION_VISION_INTERPRETER_OPTIONS);
+            geoInterpreterConfig = interpreterConfigFromOption(options, OPTION_GEO_INTERPRETER_OPTIONS);
+        } catch (IllegalArgumentException e) {
+            promise.reject("E_INVALID_ARGS", e.getMessage());
+            return;
+        }
 
-        // Destructure geomodel parameters. Those can be null
-        Boolean useGeomodel = options.hasKey(OPTION_USE_GEOMODEL) ? options.getBoolean(OPTION_USE_GEOMODEL) : null;
-        String geomodelPath = options.hasKey(OPTION_GEOMODEL_PATH) ? options.getString(OPTION_GEOMODEL_PATH) : null;
-        ReadableMap location = options.hasKey(OPTION_LOCATION) ? options.getMap(OPTION_LOCATION) : null;
-
-        // Initialize and use geomodel if requested
         GeoClassifier geoClassifier = null;
         float[][] geomodelScores = null;
-        if (useGeomodel != null && useGeomodel) {
-            if (geomodelPath == null) {
-              throw new RuntimeException("Geomodel scoring requested but path is null");
-            }
-            if (location == null) {
-              throw new RuntimeException("Geomodel scoring requested but location is null");
-            }
-            Double latitude = location.hasKey(LATITUDE) ? location.getDouble(LATITUDE) : null;
-            Double longitude = location.hasKey(LONGITUDE) ? location.getDouble(LONGITUDE) : null;
-            Double elevation = location.hasKey(ELEVATION) ? location.getDouble(ELEVATION) : null;
-            if (latitude == null || longitude == null || elevation == null) {
-              throw new RuntimeException("Geomodel scoring requested but latitude, longitude, or elevation is null");
-            }
-
-            // Geomodel classifier initialization with model and taxonomy files
-            Timber.tag(TAG).d("Initializing geo classifier: " + geomodelPath + " / " + taxonomyFilename);
-            try {
-              geoClassifier = new GeoClassifier(geomodelPath, taxonomyFilename, version);
-            } catch (IOException e) {
-              e.printStackTrace();
-              throw new RuntimeException("Failed to initialize a geomodel classifier: " + e.getMessage());
-            } catch (OutOfMemoryError e) {
-              e.printStackTrace();
-              throw new RuntimeException("Out of memory");
-            } catch (Exception e) {
-              e.printStackTrace();
-              Timber.tag(TAG).w("Other type of exception - Device not supported - classifier failed to load - " + e);
-              throw new RuntimeException("Android version is too old - needs to be at least 6.0");
-            }
-            geomodelScores = geoClassifier.predictionsForLocation(latitude, longitude, elevation);
-        } else {
-            Timber.tag(TAG).d("Not using geomodel.");
-        }
-
         ImageClassifier classifier = null;
         try {
-            classifier = new ImageClassifier(modelFilename, taxonomyFilename, version);
+            // Initialize and use geomodel if requested
+            try {
+                geoClassifier = geoClassifierForOptions(options, taxonomyFilename, version, geoInterpreterConfig);
+                if (geoClassifier != null) {
+                    geomodelScores = geomodelScoresForOptions(geoClassifier, options);
+                }
+            } catch (IllegalArgumentException e) {
+                promise.reject("E_INVALID_ARGS", e.getMessage());
+                return;
+            } catch (RuntimeException e) {
+                promise.reject("E_GEOMODEL", e.getMessage());
+                return;
+            }
+            classifier = ClassifierCache.acquireImageClassifier(modelFilename, taxonomyFilename, version, visionInterpreterConfig);
         } catch (IOException e) {
             e.printStackTrace();
             promise.reject("E_CLASSIFIER", "Failed to initialize an image mClassifier: " + e.getMessage());
@@ -157,48 +152,59 @@ public class VisionCameraPluginInatVisionModule extends ReactContextBaseJavaModu
             Timber.tag(TAG).w("Other type of exception - Device not supported - classifier failed to load - " + e);
             promise.reject("E_UNSUPPORTED_DEVICE", "Android version is too old - needs to be at least 6.0");
             return;
+        } finally {
+            // Released only now so the image classifier can share the taxonomy loaded by the geomodel classifier
+            ClassifierCache.release(geoClassifier);
         }
+        boolean useGeomodel = geoClassifier != null;
 
         // Get predictions for that image
         Bitmap bitmap = null;
-
+        List<Prediction> predictions;
         try {
-            // Read bitmap file
-            bitmap = BitmapFactory.decodeFile(uri.getPath());
+            try {
+                // Read bitmap file
+                bitmap = BitmapFactory.decodeFile(uri.getPath());
+            } catch (Exception e) {
+                e.printStackTrace();
+                promise.reject("E_IO_EXCEPTION", "Couldn't read input file: " + uri.toString() + "; Exception: " + e);
+                return;
+            }
             if (bitmap == null) {
                 String msg = String.format("Couldn't read image '%s'", uri.toString());
                 Timber.tag(TAG).w(msg);
                 promise.reject("E_IO_EXCEPTION", msg);
+                return;
             }
             Log.d(TAG, "originalBitmap: " + bitmap + ": " + bitmap.getWidth() + " x " + bitmap.getHeight());
-            // Crop the center square of the frame with the given crop ratio
-            int minDim = (int) Math.round(Math.min(bitmap.getWidth(), bitmap.getHeight()) * cropRatio);
-            int cropX = (bitmap.getWidth() - minDim) / 2;
-            int cropY = (bitmap.getHeight() - minDim) / 2;
-            Log.d(TAG, "croppingParams: " + minDim + "; " + cropX + "; " + cropY);
-            Bitmap croppedBitmap = Bitmap.createBitmap(bitmap, cropX, cropY, minDim, minDim);
-
-            // Resize to expected classifier input size
-            Bitmap rescaledBitmap = Bitmap.createScaledBitmap(
-                    croppedBitmap,
-                    ImageClassifier.DIM_IMG_SIZE_X,
-                    ImageClassifier.DIM_IMG_SIZE_Y,
-                    true);
-            bitmap.recycle();
-            bitmap = rescaledBitmap;
-            Log.d(TAG, "rescaledBitmap: " + bitmap + ": " + bitmap.getWidth() + " x " + bitmap.getHeight());
+
+            Boolean commonAncestorMode = Objects.equals(mode, "COMMON_ANCESTOR");
+            // The cached classifier is shared, so the filter is set for every call
+            synchronized (classifier) {
+                classifier.setGeomodelScores(geomodelScores);
+                classifier.setTaxonFilter(includeTaxonIds != null || excludeTaxonIds != null ? TaxonFilter.of(includeTaxonIds, excludeTaxonIds) : null);
+                classifier.setScoreSmoother(null);
+                // Crops the center square with the given crop ratio and scales it to the model input size.
+                // Does not set a taxonomyRollupCutoff here, i.e. uses the default value (top score * 0.001)
+                predictions = classifier.classifyBitmap(bitmap, cropRatio, null, commonAncestorMode);
+            }
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            Timber.tag(TAG).w("Out of memory - classification failed - " + e);
+            promise.reject("E_OUT_OF_MEMORY", "Out of memory");
+            return;
         } catch (Exception e) {
             e.printStackTrace();
-            promise.reject("E_IO_EXCEPTION", "Couldn't read input file: " + uri.toString() + "; Exception: " + e);
+            promise.reject("E_CLASSIFIER", "Failed to classify the image: " + e);
             return;
+        } finally {
+            // Released on every path, an acquired classifier can't be evicted or unloaded
+            ClassifierCache.release(classifier);
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
         }
 
-        classifier.setGeomodelScores(geomodelScores);
-        Boolean commonAncestorMode = Objects.equals(mode, "COMMON_ANCESTOR");
-        // Does not set a taxonomyRollupCutoff here, i.e. uses the default value (top score * 0.001)
-        List<Prediction> predictions = classifier.classifyBitmap(bitmap, null, commonAncestorMode);
-        bitmap.recycle();
-
         WritableArray cleanedPredictions = Arguments.createArray();
         for (Prediction prediction : predictions) {
             Map map = Taxonomy.nodeToMap(prediction);
@@ -214,9 +220,276 @@ public class VisionCameraPluginInatVisionModule extends ReactContextBaseJavaModu
         resultMap.putMap("options", options);
         // Time elapsed on the native side; in seconds
         resultMap.putDouble("timeElapsed", (endTime - startTime) / 1000.0);
+        // Interpreter options the predictions were made with
+        Map<String, Object> interpreterOptions = new HashMap<>();
+        interpreterOptions.put("vision", visionInterpreterConfig.toMap());
+        if (useGeomodel) {
+            interpreterOptions.put("geo", geoInterpreterConfig.toMap());
+        }
+        resultMap.putMap("interpreterOptions", Arguments.makeNativeMap(interpreterOptions));
+        promise.resolve(resultMap);
+    }
+
+    public static final String OPTION_URIS = "uris";
+    public static final String OPTION_MAX_BATCH_SIZE = "maxBatchSize";
+
+    /**
+     * Predicts on several images from disk with one classifier. The images are run through the model in
+     * batches, sized by the available memory, and the predictions are returned per image in the order
+     * of the given uris.
+     */
+    @ReactMethod
+    public void getPredictionsForImages(ReadableMap options, Promise promise) {
+        long startTime = SystemClock.uptimeMillis();
+        Log.d(TAG, "getPredictionsForImages: options:" + options);
+        // Required options
+        if (!options.hasKey(OPTION_URIS) || !options.hasKey(OPTION_MODEL_PATH) || !options.hasKey(OPTION_TAXONOMY_PATH)|| !options.hasKey(OPTION_VERSION)) {
+            promise.reject("E_MISSING_ARGS", String.format("Missing one or more arguments: %s, %s, %s, %s", OPTION_URIS, OPTION_MODEL_PATH, OPTION_TAXONOMY_PATH, OPTION_VERSION));
+            return;
+        }
+
+        ReadableArray uriArray = options.getArray(OPTION_URIS);
+        final Uri[] uris = new Uri[uriArray.size()];
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = Uri.parse(uriArray.getString(i));
+        }
+        String modelFilename = options.getString(OPTION_MODEL_PATH);
+        String taxonomyFilename = options.getString(OPTION_TAXONOMY_PATH);
+        String version = options.getString(OPTION_VERSION);
+        String mode = options.hasKey(OPTION_MODE) ? options.getString(OPTION_MODE) : null;
+        double cropRatio = options.hasKey(OPTION_CROP_RATIO) ? options.getDouble(OPTION_CROP_RATIO) : DEFAULT_CROP_RATIO;
+        int maxBatchSize = options.hasKey(OPTION_MAX_BATCH_SIZE) ? options.getInt(OPTION_MAX_BATCH_SIZE) : ImageClassifier.MAX_BATCH_SIZE;
+        List<Integer> includeTaxonIds = taxonIdsFromOption(options, OPTION_INCLUDE_TAXON_IDS);
+        List<Integer> excludeTaxonIds = taxonIdsFromOption(options, OPTION_EXCLUDE_TAXON_IDS);
+        InterpreterConfig visionInterpreterConfig;
+        InterpreterConfig geoInterpreterConfig;
+        try {
+            visionInterpreterConfig = interpreterConfigFromOption(options, OPTION_VISION_INTERPRETER_OPTIONS);
+            geoInterpreterConfig = interpreterConfigFromOption(options, OPTION_GEO_INTERPRETER_OPTIONS);
+        } catch (IllegalArgumentException e) {
+            promise.reject("E_INVALID_ARGS", e.getMessage());
+            return;
+        }
+
+        ImageClassifier classifier = null;
+        try {
+            classifier = ClassifierCache.acquireImageClassifier(modelFilename, taxonomyFilename, version, visionInterpreterConfig);
+        } catch (IOException e) {
+            e.printStackTrace();
+            promise.reject("E_CLASSIFIER", "Failed to initialize an image mClassifier: " + e.getMessage());
+            return;
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            Timber.tag(TAG).w("Out of memory - Device not supported - classifier failed to load - " + e);
+            promise.reject("E_OUT_OF_MEMORY", "Out of memory");
+            return;
+        } catch (Exception e) {
+            e.printStackTrace();
+            Timber.tag(TAG).w("Other type of exception - Device not supported - classifier failed to load - " + e);
+            promise.reject("E_UNSUPPORTED_DEVICE", "Android version is too old - needs to be at least 6.0");
+            return;
+        }
+
+        boolean useGeomodel = false;
+        int batchSize;
+        WritableArray results = Arguments.createArray();
+        try {
+            // All images share the location, so the geomodel only runs once
+            float[][] geomodelScores = null;
+            GeoClassifier geoClassifier = null;
+            try {
+                geoClassifier = geoClassifierForOptions(options, taxonomyFilename, version, geoInterpreterConfig);
+                if (geoClassifier != null) {
+                    geomodelScores = geomodelScoresForOptions(geoClassifier, options);
+                    useGeomodel = true;
+                }
+            } catch (IllegalArgumentException e) {
+                promise.reject("E_INVALID_ARGS", e.getMessage());
+                return;
+            } catch (RuntimeException e) {
+                promise.reject("E_GEOMODEL", e.getMessage());
+                return;
+            } finally {
+                ClassifierCache.release(geoClassifier);
+            }
+
+            Boolean commonAncestorMode = Objects.equals(mode, "COMMON_ANCESTOR");
+
+            batchSize = Math.max(1, Math.min(Math.min(maxBatchSize, uris.length), ImageClassifier.batchSizeFor(availableMemory(), classifier.getModelSize())));
+            Timber.tag(TAG).d("getPredictionsForImages: " + uris.length + " images in batches of " + batchSize);
+
+            // The cached classifier is shared, so the filter is set for every call
+            synchronized (classifier) {
+                classifier.setGeomodelScores(geomodelScores);
+                classifier.setTaxonFilter(includeTaxonIds != null || excludeTaxonIds != null ? TaxonFilter.of(includeTaxonIds, excludeTaxonIds) : null);
+                classifier.setScoreSmoother(null);
+                for (int start = 0; start < uris.length; start += batchSize) {
+                    final int batchStart = start;
+                    int count = Math.min(batchSize, uris.length - start);
+                    // Does not set a taxonomyRollupCutoff here, i.e. uses the default value (top score * 0.001)
+                    List<List<Prediction>> batchPredictions = classifier.classifyBitmaps(count, new ImageClassifier.BitmapLoader() {
+                        @Override
+                        public Bitmap load(int index) {
+                            Uri uri = uris[batchStart + index];
+                            try {
+                                Bitmap bitmap = BitmapFactory.decodeFile(uri.getPath());
+                                if (bitmap == null) {
+                                    Timber.tag(TAG).w(String.format("Couldn't read image '%s'", uri.toString()));
+                                }
+                                return bitmap;
+                            } catch (Exception e) {
+                                e.printStackTrace();
+                                return null;
+                            } catch (OutOfMemoryError e) {
+                                e.printStackTrace();
+                                return null;
+                            }
+                        }
+                    }, cropRatio, null, commonAncestorMode);
+
+                    for (int i = 0; i < count; i++) {
+                        Uri uri = uris[start + i];
+                        List<Prediction> predictions = batchPredictions != null ? batchPredictions.get(i) : null;
+                        WritableMap imageResult = Arguments.createMap();
+                        imageResult.putString(OPTION_URI, uri.toString());
+                        WritableArray cleanedPredictions = Arguments.createArray();
+                        if (predictions != null) {
+                            for (Prediction prediction : predictions) {
+                                Map map = Taxonomy.nodeToMap(prediction);
+                                if (map == null) continue;
+                                cleanedPredictions.pushMap(Arguments.makeNativeMap(map));
+                            }
+                        } else {
+                            imageResult.putString("error", String.format("Couldn't read image '%s'", uri.toString()));
+                        }
+                        imageResult.putArray("predictions", cleanedPredictions);
+                        results.pushMap(imageResult);
+                    }
+                }
+            }
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            Timber.tag(TAG).w("Out of memory - classification failed - " + e);
+            promise.reject("E_OUT_OF_MEMORY", "Out of memory");
+            return;
+        } catch (Exception e) {
+            e.printStackTrace();
+            promise.reject("E_CLASSIFIER", "Failed to classify the images: " + e);
+            return;
+        } finally {
+            // Released on every path, an acquired classifier can't be evicted or unloaded
+            ClassifierCache.release(classifier);
+        }
+
+        long endTime = SystemClock.uptimeMillis();
+        WritableMap resultMap = Arguments.createMap();
+        resultMap.putArray("results", results);
+        resultMap.putMap("options", options);
+        resultMap.putInt("batchSize", batchSize);
+        // Time elapsed on the native side; in seconds
+        resultMap.putDouble("timeElapsed", (endTime - startTime) / 1000.0);
+        // Interpreter options the predictions were made with
+        Map<String, Object> interpreterOptions = new HashMap<>();
+        interpreterOptions.put("vision", visionInterpreterConfig.toMap());
+        if (useGeomodel) {
+            interpreterOptions.put("geo", geoInterpreterConfig.toMap());
+        }
+        resultMap.putMap("interpreterOptions", Arguments.makeNativeMap(interpreterOptions));
         promise.resolve(resultMap);
     }
 
+    /** Memory currently available to the app, or 0 if it can not be determined */
+    private long availableMemory() {
+        ActivityManager activityManager = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager == null) {
+            return 0;
+        }
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        if (memoryInfo.lowMemory) {
+            return 0;
+        }
+        // The Java heap limit applies to the decoded bitmaps, the native memory to the interpreter
+        Runtime runtime = Runtime.getRuntime();
+        long availableHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return Math.min(memoryInfo.availMem, availableHeap * 4);
+    }
+
+    /**
+     * Acquires the geomodel classifier if the options request geomodel scoring, otherwise returns null.
+     * Throws an IllegalArgumentException if the geomodel path or the location are missing and a
+     * RuntimeException if the classifier fails to load. Release it to the {@link ClassifierCache}.
+     */
+    private static GeoClassifier geoClassifierForOptions(ReadableMap options, String taxonomyFilename, String version, InterpreterConfig interpreterConfig) {
+        // Destructure geomodel parameters. Those can be null
+        Boolean useGeomodel = options.hasKey(OPTION_USE_GEOMODEL) ? options.getBoolean(OPTION_USE_GEOMODEL) : null;
+        String geomodelPath = options.hasKey(OPTION_GEOMODEL_PATH) ? options.getString(OPTION_GEOMODEL_PATH) : null;
+        ReadableMap location = options.hasKey(OPTION_LOCATION) ? options.getMap(OPTION_LOCATION) : null;
+
+        if (useGeomodel == null || !useGeomodel) {
+            Timber.tag(TAG).d("Not using geomodel.");
+            return null;
+        }
+        if (geomodelPath == null) {
+          throw new IllegalArgumentException("Geomodel scoring requested but path is null");
+        }
+        if (location == null) {
+          throw new IllegalArgumentException("Geomodel scoring requested but location is null");
+        }
+        if (!location.hasKey(LATITUDE) || !location.hasKey(LONGITUDE) || !location.hasKey(ELEVATION)) {
+          throw new IllegalArgumentException("Geomodel scoring requested but latitude, longitude, or elevation is null");
+        }
+
+        // Geomodel classifier initialization with model and taxonomy files
+        Timber.tag(TAG).d("Initializing geo classifier: " + geomodelPath + " / " + taxonomyFilename);
+        try {
+          return ClassifierCache.acquireGeoClassifier(geomodelPath, taxonomyFilename, version, interpreterConfig);
+        } catch (IOException e) {
+          e.printStackTrace();
+          throw new RuntimeException("Failed to initialize a geomodel classifier: " + e.getMessage());
+        } catch (OutOfMemoryError e) {
+          e.printStackTrace();
+          throw new RuntimeException("Out of memory");
+        } catch (Exception e) {
+          e.printStackTrace();
+          Timber.tag(TAG).w("Other type of exception - Device not supported - classifier failed to load - " + e);
+          throw new RuntimeException("Android version is too old - needs to be at least 6.0");
+        }
+    }
+
+    /** Geomodel scores for the location in the options */
+    private static float[][] geomodelScoresForOptions(GeoClassifier geoClassifier, ReadableMap options) {
+        ReadableMap location = options.getMap(OPTION_LOCATION);
+        synchronized (geoClassifier) {
+            return geoClassifier.predictionsForLocation(location.getDouble(LATITUDE), location.getDouble(LONGITUDE), location.getDouble(ELEVATION));
+        }
+    }
+
+    /** Interpreter options from an object option, the defaults if the option is not set */
+    private static InterpreterConfig interpreterConfigFromOption(ReadableMap options, String key) {
+        if (!options.hasKey(key) || options.isNull(key)) {
+            return InterpreterConfig.DEFAULT;
+        }
+        return InterpreterConfig.fromMap(options.getMap(key).toHashMap());
+    }
+
+    /** Taxon IDs from an array option of numbers or numeric strings, null if the option is not set */
+    private static List<Integer> taxonIdsFromOption(ReadableMap options, String key) {
+        if (!options.hasKey(key) || options.isNull(key)) {
+            return null;
+        }
+        ReadableArray array = options.getArray(key);
+        List<Integer> taxonIds = new ArrayList<>(array.size());
+        for (int i = 0; i < array.size(); i++) {
+            if (array.getType(i) == ReadableType.String) {
+                taxonIds.add(Integer.valueOf(array.getString(i)));
+            } else {
+                taxonIds.add(array.getInt(i));
+            }
+        }
+        return taxonIds;
+    }
+
   @ReactMethod
   public void getPredictionsForLocation(ReadableMap options, Promise promise) {
         long startTime = SystemClock.uptimeMillis();
@@ -228,10 +501,17 @@ public class VisionCameraPluginInatVisionModule extends ReactContextBaseJavaModu
         double latitude = location.getDouble(LATITUDE);
         double longitude = location.getDouble(LONGITUDE);
         double elevation = location.getDouble(ELEVATION);
+        InterpreterConfig geoInterpreterConfig;
+        try {
+            geoInterpreterConfig = interpreterConfigFromOption(options, OPTION_GEO_INTERPRETER_OPTIONS);
+        } catch (IllegalArgumentException e) {
+            promise.reject("E_INVALID_ARGS", e.getMessage());
+            return;
+        }
 
         GeoClassifier classifier = null;
         try {
-            classifier = new GeoClassifier(geomodelPath, taxonomyPath, "2.13");
+            classifier = ClassifierCache.acquireGeoClassifier(geomodelPath, taxonomyPath, "2.13", geoInterpreterConfig);
         } catch (IOException e) {
             e.printStackTrace();
             promise.reject("E_CLASSIFIER", "Failed to initialize a geomodel mClassifier: " + e.getMessage());
@@ -248,7 +528,24 @@ public class VisionCameraPluginInatVisionModule extends ReactContextBaseJavaModu
             return;
         }
 
-        List<Prediction> predictions = classifier.expectedNearby(latitude, longitude, elevation);
+        List<Prediction> predictions;
+        try {
+            synchronized (classifier) {
+                predictions = classifier.expectedNearby(latitude, longitude, elevation);
+            }
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            Timber.tag(TAG).w("Out of memory - geomodel prediction failed - " + e);
+            promise.reject("E_OUT_OF_MEMORY", "Out of memory");
+            return;
+        } catch (Exception e) {
+            e.printStackTrace();
+            promise.reject("E_GEOMODEL", "Failed to predict the location: " + e);
+            return;
+        } finally {
+            // Released on every path, an acquired classifier can't be evicted or unloaded
+            ClassifierCache.release(classifier);
+        }
 
         WritableArray cleanedPredictions = Arguments.createArray();
         for (Prediction prediction : predictions) {
@@ -265,6 +562,451 @@ public class VisionCameraPluginInatVisionModule extends ReactContextBaseJavaModu
         resultMap.putMap("options", options);
         // Time elapsed on the native side; in seconds
         resultMap.putDouble("timeElapsed", (endTime - startTime) / 1000.0);
+        // Interpreter options the predictions were made with
+        Map<String, Object> interpreterOptions = new HashMap<>();
+        interpreterOptions.put("geo", geoInterpreterConfig.toMap());
+        resultMap.putMap("interpreterOptions", Arguments.makeNativeMap(interpreterOptions));
+        resultMap.putMap("locationCache", Arguments.makeNativeMap(GeoScoreCache.getStats()));
+        resultMap.putMap("locationStore", Arguments.makeNativeMap(GeoScoreStore.getStats()));
         promise.resolve(resultMap);
   }
+
+    public static final String OPTION_LOCATIONS = "locations";
+
+    /**
+     * Expected nearby predictions for many locations, with as few geomodel runs as the batch size allows.
+     * Only the predictions of each location are kept, its scores are dropped once converted.
+     * Resolves with one result per location, in the order of the locations.
+     */
+    @ReactMethod
+    public void getPredictionsForLocations(ReadableMap options, Promise promise) {
+        long startTime = SystemClock.uptimeMillis();
+        if (!options.hasKey(OPTION_LOCATIONS) || !options.hasKey(OPTION_GEOMODEL_PATH) || !options.hasKey(OPTION_TAXONOMY_PATH)) {
+            promise.reject("E_MISSING_ARGS", String.format("Missing one or more arguments: %s, %s, %s", OPTION_LOCATIONS, OPTION_GEOMODEL_PATH, OPTION_TAXONOMY_PATH));
+            return;
+        }
+        String geomodelPath = options.getString(OPTION_GEOMODEL_PATH);
+        String taxonomyPath = options.getString(OPTION_TAXONOMY_PATH);
+        ReadableArray locationArray = options.getArray(OPTION_LOCATIONS);
+        double[][] locations = new double[locationArray.size()][];
+        for (int i = 0; i < locationArray.size(); i++) {
+            ReadableMap location = locationArray.getMap(i);
+            locations[i] = new double[] { location.getDouble(LATITUDE), location.getDouble(LONGITUDE), location.getDouble(ELEVATION) };
+        }
+        InterpreterConfig geoInterpreterConfig;
+        try {
+            geoInterpreterConfig = interpreterConfigFromOption(options, OPTION_GEO_INTERPRETER_OPTIONS);
+        } catch (IllegalArgumentException e) {
+            promise.reject("E_INVALID_ARGS", e.getMessage());
+            return;
+        }
+
+        final GeoClassifier classifier;
+        try {
+            classifier = ClassifierCache.acquireGeoClassifier(geomodelPath, taxonomyPath, "2.13", geoInterpreterConfig);
+        } catch (IOException e) {
+            e.printStackTrace();
+            promise.reject("E_CLASSIFIER", "Failed to initialize a geomodel classifier: " + e.getMessage());
+            return;
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            Timber.tag(TAG).w("Out of memory - Device not supported - classifier failed to load - " + e);
+            promise.reject("E_OUT_OF_MEMORY", "Out of memory");
+            return;
+        } catch (Exception e) {
+            e.printStackTrace();
+            Timber.tag(TAG).w("Other type of exception - Device not supported - classifier failed to load - " + e);
+            promise.reject("E_UNSUPPORTED_DEVICE", "Android version is too old - needs to be at least 6.0");
+            return;
+        }
+
+        final WritableArray results = Arguments.createArray();
+        int batchSize;
+        try {
+            synchronized (classifier) {
+                batchSize = classifier.getBatchSize();
+                classifier.predictionsForLocations(locations, new GeoClassifier.LocationScoresListener() {
+                    @Override
+                    public void onScores(int index, float[] scores) {
+                        WritableArray cleanedPredictions = Arguments.createArray();
+                        if (scores != null) {
+                            for (Prediction prediction : classifier.expectedNearbyFromScores(scores)) {
+                                Map map = Taxonomy.nodeToMap(prediction);
+                                if (map == null) continue;
+                                cleanedPredictions.pushMap(Arguments.makeNativeMap(map));
+                            }
+                        }
+                        WritableMap locationResult = Arguments.createMap();
+                        locationResult.putArray("predictions", cleanedPredictions);
+                        results.pushMap(locationResult);
+                    }
+                });
+            }
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            Timber.tag(TAG).w("Out of memory - geomodel prediction failed - " + e);
+            promise.reject("E_OUT_OF_MEMORY", "Out of memory");
+            return;
+        } catch (Exception e) {
+            e.printStackTrace();
+            promise.reject("E_GEOMODEL", "Failed to predict the locations: " + e);
+            return;
+        } finally {
+            // Released on every path, an acquired classifier can't be evicted or unloaded
+            ClassifierCache.release(classifier);
+        }
+
+        long endTime = SystemClock.uptimeMillis();
+        WritableMap resultMap = Arguments.createMap();
+        resultMap.putArray("results", results);
+        // Time elapsed on the native side; in seconds
+        resultMap.putDouble("timeElapsed", (endTime - startTime) / 1000.0);
+        resultMap.putInt("batchSize", batchSize);
+        // Interpreter options the predictions were made with
+        Map<String, Object> interpreterOptions = new HashMap<>();
+        interpreterOptions.put("geo", geoInterpreterConfig.toMap());
+        resultMap.putMap("interpreterOptions", Arguments.makeNativeMap(interpreterOptions));
+        promise.resolve(resultMap);
+    }
+
+    public static final String OPTION_PACK_PATH = "packPath";
+
+    /**
+     * Scores the cells of a region on a background thread and writes them to a region pack at
+     * {@code packPath}, then loads the pack so that geomodel predictions for the region no longer run
+     * the geomodel. The locations are the cell centroids and elevations of the region.
+     */
+    @ReactMethod
+    public void prepareRegionPack(final ReadableMap options, final Promise promise) {
+        final long startTime = SystemClock.uptimeMillis();
+        if (!options.hasKey(OPTION_LOCATIONS) || !options.hasKey(OPTION_GEOMODEL_PATH) || !options.hasKey(OPTION_TAXONOMY_PATH) || !options.hasKey(OPTION_PACK_PATH)) {
+            promise.reject("E_MISSING_ARGS", String.format("Missing one or more arguments: %s, %s, %s, %s", OPTION_LOCATIONS, OPTION_GEOMODEL_PATH, OPTION_TAXONOMY_PATH, OPTION_PACK_PATH));
+            return;
+        }
+        final String geomodelPath = options.getString(OPTION_GEOMODEL_PATH);
+        final String taxonomyPath = options.getString(OPTION_TAXONOMY_PATH);
+        final File packFile = new File(options.getString(OPTION_PACK_PATH));
+        ReadableArray locationArray = options.getArray(OPTION_LOCATIONS);
+        final double[][] locations = new double[locationArray.size()][];
+        for (int i = 0; i < locationArray.size(); i++) {
+            ReadableMap location = locationArray.getMap(i);
+            locations[i] = new double[] { location.getDouble(LATITUDE), location.getDouble(LONGITUDE), location.getDouble(ELEVATION) };
+        }
+        final InterpreterConfig geoInterpreterConfig;
+        try {
+            geoInterpreterConfig = interpreterConfigFromOption(options, OPTION_GEO_INTERPRETER_OPTIONS);
+        } catch (IllegalArgumentException e) {
+            promise.reject("E_INVALID_ARGS", e.getMessage());
+            return;
+        }
+
+        sBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                GeoClassifier classifier = null;
+                int cellCount;
+                try {
+                    classifier = ClassifierCache.acquireGeoClassifier(geomodelPath, taxonomyPath, "2.13", geoInterpreterConfig);
+                    final GeoClassifier geoClassifier = classifier;
+                    // Locked per batch, so frames and other calls can use the geomodel in between
+                    cellCount = GeoRegionPack.write(packFile, geoClassifier.getRegionPackKey(), geoClassifier.getModelSize(), locations,
+                        geoClassifier.getBatchSize(), new GeoRegionPack.CellScorer() {
+                            @Override
+                            public void score(double[][] batch, GeoClassifier.LocationScoresListener listener) throws IOException {
+                                synchronized (geoClassifier) {
+                                    if (!geoClassifier.predictionsForLocations(batch, listener)) {
+                                        throw new IOException("The geomodel classifier was closed");
+                                    }
+                                }
+                            }
+                        });
+                    GeoRegionPack.load(packFile);
+                } catch (GeoRegionPack.PackTooLargeException e) {
+                    promise.reject("E_PACK_TOO_LARGE", e.getMessage());
+                    return;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    promise.reject("E_IO_EXCEPTION", "Failed to prepare the region pack: " + e.getMessage());
+                    return;
+                } catch (OutOfMemoryError e) {
+                    e.printStackTrace();
+                    Timber.tag(TAG).w("Out of memory - Device not supported - classifier failed to load - " + e);
+                    promise.reject("E_OUT_OF_MEMORY", "Out of memory");
+                    return;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    Timber.tag(TAG).w("Other type of exception - Device not supported - classifier failed to load - " + e);
+                    promise.reject("E_UNSUPPORTED_DEVICE", "Android version is too old - needs to be at least 6.0");
+                    return;
+                } finally {
+                    ClassifierCache.release(classifier);
+                }
+
+                long endTime = SystemClock.uptimeMillis();
+                WritableMap resultMap = Arguments.createMap();
+                resultMap.putString("packPath", packFile.getPath());
+                resultMap.putInt("cells", cellCount);
+                resultMap.putDouble("bytes", packFile.length());
+                resultMap.putMap("regionPacks", Arguments.makeNativeMap(GeoRegionPack.getStats()));
+                // Time elapsed on the native side; in seconds
+                resultMap.putDouble("timeElapsed", (endTime - startTime) / 1000.0);
+                promise.resolve(resultMap);
+            }
+        });
+    }
+
+    /** Loads a region pack written by {@link #prepareRegionPack}, e.g. in a later app session */
+    @ReactMethod
+    public void loadRegionPack(ReadableMap options, Promise promise) {
+        if (!options.hasKey(OPTION_PACK_PATH)) {
+            promise.reject("E_MISSING_ARGS", String.format("Missing one or more arguments: %s", OPTION_PACK_PATH));
+            return;
+        }
+        try {
+            GeoRegionPack.load(new File(options.getString(OPTION_PACK_PATH)));
+        } catch (GeoRegionPack.PackTooLargeException e) {
+            promise.reject("E_PACK_TOO_LARGE", e.getMessage());
+            return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            promise.reject("E_IO_EXCEPTION", "Failed to load the region pack: " + e.getMessage());
+            return;
+        }
+
+        WritableMap resultMap = Arguments.createMap();
+        resultMap.putMap("regionPacks", Arguments.makeNativeMap(GeoRegionPack.getStats()));
+        promise.resolve(resultMap);
+    }
+
+    /** Unloads the region pack at {@code packPath}, or all region packs if no path is given */
+    @ReactMethod
+    public void unloadRegionPacks(ReadableMap options, Promise promise) {
+        String packPath = options != null && options.hasKey(OPTION_PACK_PATH) ? options.getString(OPTION_PACK_PATH) : null;
+        try {
+            GeoRegionPack.unload(packPath != null ? new File(packPath) : null);
+        } catch (IOException e) {
+            e.printStackTrace();
+            promise.reject("E_IO_EXCEPTION", "Failed to unload region packs: " + e.getMessage());
+            return;
+        }
+
+        WritableMap resultMap = Arguments.createMap();
+        resultMap.putMap("regionPacks", Arguments.makeNativeMap(GeoRegionPack.getStats()));
+        promise.resolve(resultMap);
+    }
+
+    public static final String OPTION_MAX_CACHED_MODELS = "maxCachedModels";
+    public static final String OPTION_MAX_CACHED_BYTES = "maxCachedBytes";
+    public static final String OPTION_MAX_CACHED_LOCATION_BYTES = "maxCachedLocationBytes";
+    public static final String OPTION_LOCATION_CACHE_PRECISION = "locationCachePrecision";
+    public static final String OPTION_MAX_STORED_LOCATION_BYTES = "maxStoredLocationBytes";
+    /** Directory of the geomodel score files in the app cache directory */
+    private static final String LOCATION_STORE_DIRECTORY = "geomodel_scores";
+
+    /**
+     * Loads the vision model and, if a geomodel path is given, the geomodel into the classifier cache,
+     * so that later predictions with the same options skip model setup. Optionally sets the cache limits
+     * and the budget and precision of the geomodel score cache, and enables the on-disk geomodel score store.
+     */
+    @ReactMethod
+    public void preloadModels(ReadableMap options, Promise promise) {
+        long startTime = SystemClock.uptimeMillis();
+        if (!options.hasKey(OPTION_TAXONOMY_PATH) || !options.hasKey(OPTION_VERSION)) {
+            promise.reject("E_MISSING_ARGS", String.format("Missing one or more arguments: %s, %s", OPTION_TAXONOMY_PATH, OPTION_VERSION));
+            return;
+        }
+        String modelFilename = options.hasKey(OPTION_MODEL_PATH) ? options.getString(OPTION_MODEL_PATH) : null;
+        String geomodelFilename = options.hasKey(OPTION_GEOMODEL_PATH) ? options.getString(OPTION_GEOMODEL_PATH) : null;
+        String taxonomyFilename = options.getString(OPTION_TAXONOMY_PATH);
+        String version = options.getString(OPTION_VERSION);
+        InterpreterConfig visionInterpreterConfig;
+        InterpreterConfig geoInterpreterConfig;
+        try {
+            visionInterpreterConfig = interpreterConfigFromOption(options, OPTION_VISION_INTERPRETER_OPTIONS);
+            geoInterpreterConfig = interpreterConfigFromOption(options, OPTION_GEO_INTERPRETER_OPTIONS);
+        } catch (IllegalArgumentException e) {
+            promise.reject("E_INVALID_ARGS", e.getMessage());
+            return;
+        }
+
+        if (options.hasKey(OPTION_MAX_CACHED_MODELS) || options.hasKey(OPTION_MAX_CACHED_BYTES)) {
+            int maxEntries = options.hasKey(OPTION_MAX_CACHED_MODELS) ? options.getInt(OPTION_MAX_CACHED_MODELS) : ClassifierCache.getMaxEntries();
+            long maxBytes = options.hasKey(OPTION_MAX_CACHED_BYTES) ? (long) options.getDouble(OPTION_MAX_CACHED_BYTES) : ClassifierCache.getMaxBytes();
+            ClassifierCache.setLimits(maxEntries, maxBytes);
+        }
+        if (options.hasKey(OPTION_MAX_CACHED_LOCATION_BYTES) || options.hasKey(OPTION_LOCATION_CACHE_PRECISION)) {
+            long maxBytes = options.hasKey(OPTION_MAX_CACHED_LOCATION_BYTES) ? (long) options.getDouble(OPTION_MAX_CACHED_LOCATION_BYTES) : GeoScoreCache.getMaxBytes();
+            String precision = options.hasKey(OPTION_LOCATION_CACHE_PRECISION) ? options.getString(OPTION_LOCATION_CACHE_PRECISION) : GeoScoreCache.getPrecision();
+            try {
+                GeoScoreCache.setOptions(maxBytes, precision);
+            } catch (IllegalArgumentException e) {
+                promise.reject("E_INVALID_ARGS", e.getMessage());
+                return;
+            }
+        }
+        if (options.hasKey(OPTION_MAX_STORED_LOCATION_BYTES)) {
+            long maxBytes = (long) options.getDouble(OPTION_MAX_STORED_LOCATION_BYTES);
+            GeoScoreStore.setOptions(new File(mContext.getCacheDir(), LOCATION_STORE_DIRECTORY), maxBytes);
+        }
+
+        // Acquired and released right away, the classifiers stay in the cache until they are evicted
+        try {
+            if (geomodelFilename != null) {
+                ClassifierCache.release(ClassifierCache.acquireGeoClassifier(geomodelFilename, taxonomyFilename, version, geoInterpreterConfig));
+            }
+            if (modelFilename != null) {
+                ClassifierCache.release(ClassifierCache.acquireImageClassifier(modelFilename, taxonomyFilename, version, visionInterpreterConfig));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            promise.reject("E_CLASSIFIER", "Failed to initialize a classifier: " + e.getMessage());
+            return;
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            Timber.tag(TAG).w("Out of memory - Device not supported - classifier failed to load - " + e);
+            promise.reject("E_OUT_OF_MEMORY", "Out of memory");
+            return;
+        } catch (Exception e) {
+            e.printStackTrace();
+            Timber.tag(TAG).w("Other type of exception - Device not supported - classifier failed to load - " + e);
+            promise.reject("E_UNSUPPORTED_DEVICE", "Android version is too old - needs to be at least 6.0");
+            return;
+        }
+
+        long endTime = SystemClock.uptimeMillis();
+        WritableMap resultMap = Arguments.createMap();
+        resultMap.putMap("cache", Arguments.makeNativeMap(ClassifierCache.getStats()));
+        resultMap.putMap("locationCache", Arguments.makeNativeMap(GeoScoreCache.getStats()));
+        resultMap.putMap("locationStore", Arguments.makeNativeMap(GeoScoreStore.getStats()));
+        // Time elapsed on the native side; in seconds
+        resultMap.putDouble("timeElapsed", (endTime - startTime) / 1000.0);
+        promise.resolve(resultMap);
+    }
+
+    /**
+     * Unloads the cached classifiers of the model or geomodel at {@code modelPath}, or all cached
+     * classifiers if no path is given. Classifiers in use are closed once they are no longer used.
+     */
+    @ReactMethod
+    public void unloadModels(ReadableMap options, Promise promise) {
+        String modelFilename = options != null && options.hasKey(OPTION_MODEL_PATH) ? options.getString(OPTION_MODEL_PATH) : null;
+        try {
+            ClassifierCache.unload(modelFilename);
+        } catch (IOException e) {
+            e.printStackTrace();
+            promise.reject("E_IO_EXCEPTION", "Failed to unload models: " + e.getMessage());
+            return;
+        }
+
+        WritableMap resultMap = Arguments.createMap();
+        resultMap.putMap("cache", Arguments.makeNativeMap(ClassifierCache.getStats()));
+        resultMap.putMap("locationCache", Arguments.makeNativeMap(GeoScoreCache.getStats()));
+        resultMap.putMap("locationStore", Arguments.makeNativeMap(GeoScoreStore.getStats()));
+        promise.resolve(resultMap);
+    }
+
+    public static final String OPTION_WARM_UP_RUNS = "warmUpRuns";
+    public static final int DEFAULT_WARM_UP_RUNS = 1;
+
+    /** Runs model loading and warm-up off the React Native module thread */
+    private static final ExecutorService sBackgroundExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Loads the taxonomy, the vision model and, if a geomodel path is given, the geomodel on a background
+     * thread and runs dummy inferences, so that the runtime has set up its kernels before the first frame.
+     * The classifiers stay in the {@link ClassifierCache}, where the frame processor picks them up when it
+     * is called with the same options. Resolves with the time each stage took, in seconds.
+     */
+    @ReactMethod
+    public void warmUpModels(final ReadableMap options, final Promise promise) {
+        if (!options.hasKey(OPTION_MODEL_PATH) || !options.hasKey(OPTION_TAXONOMY_PATH) || !options.hasKey(OPTION_VERSION)) {
+            promise.reject("E_MISSING_ARGS", String.format("Missing one or more arguments: %s, %s, %s", OPTION_MODEL_PATH, OPTION_TAXONOMY_PATH, OPTION_VERSION));
+            return;
+        }
+        final String modelFilename = options.getString(OPTION_MODEL_PATH);
+        final String geomodelFilename = options.hasKey(OPTION_GEOMODEL_PATH) ? options.getString(OPTION_GEOMODEL_PATH) : null;
+        final String taxonomyFilename = options.getString(OPTION_TAXONOMY_PATH);
+        final String version = options.getString(OPTION_VERSION);
+        final int runs = options.hasKey(OPTION_WARM_UP_RUNS) ? Math.max(1, options.getInt(OPTION_WARM_UP_RUNS)) : DEFAULT_WARM_UP_RUNS;
+        final InterpreterConfig visionInterpreterConfig;
+        final InterpreterConfig geoInterpreterConfig;
+        try {
+            visionInterpreterConfig = interpreterConfigFromOption(options, OPTION_VISION_INTERPRETER_OPTIONS);
+            geoInterpreterConfig = interpreterConfigFromOption(options, OPTION_GEO_INTERPRETER_OPTIONS);
+        } catch (IllegalArgumentException e) {
+            promise.reject("E_INVALID_ARGS", e.getMessage());
+            return;
+        }
+
+        sBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = SystemClock.uptimeMillis();
+                WritableMap timings = Arguments.createMap();
+                Taxonomy taxonomy = null;
+                ImageClassifier classifier = null;
+                GeoClassifier geoClassifier = null;
+                try {
+                    // Held until both classifiers are loaded, so they share it
+                    long stageStart = SystemClock.uptimeMillis();
+                    taxonomy = TaxonomyRegistry.acquire(taxonomyFilename, version);
+                    stageStart = putStageTime(timings, "taxonomy", stageStart);
+
+                    classifier = ClassifierCache.acquireImageClassifier(modelFilename, taxonomyFilename, version, visionInterpreterConfig);
+                    stageStart = putStageTime(timings, "visionModel", stageStart);
+                    if (geomodelFilename != null) {
+                        geoClassifier = ClassifierCache.acquireGeoClassifier(geomodelFilename, taxonomyFilename, version, geoInterpreterConfig);
+                        stageStart = putStageTime(timings, "geomodel", stageStart);
+                    }
+
+                    synchronized (classifier) {
+                        classifier.warmUp(runs);
+                    }
+                    stageStart = putStageTime(timings, "visionWarmUp", stageStart);
+                    if (geoClassifier != null) {
+                        synchronized (geoClassifier) {
+                            geoClassifier.warmUp(runs);
+                        }
+                        putStageTime(timings, "geoWarmUp", stageStart);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    promise.reject("E_CLASSIFIER", "Failed to initialize a classifier: " + e.getMessage());
+                    return;
+                } catch (OutOfMemoryError e) {
+                    e.printStackTrace();
+                    Timber.tag(TAG).w("Out of memory - Device not supported - classifier failed to load - " + e);
+                    promise.reject("E_OUT_OF_MEMORY", "Out of memory");
+                    return;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    Timber.tag(TAG).w("Other type of exception - Device not supported - classifier failed to load - " + e);
+                    promise.reject("E_UNSUPPORTED_DEVICE", "Android version is too old - needs to be at least 6.0");
+                    return;
+                } finally {
+                    ClassifierCache.release(classifier);
+                    ClassifierCache.release(geoClassifier);
+                    TaxonomyRegistry.release(taxonomy);
+                }
+
+                long endTime = SystemClock.uptimeMillis();
+                WritableMap resultMap = Arguments.createMap();
+                resultMap.putMap("timings", timings);
+                resultMap.putInt("warmUpRuns", runs);
+                resultMap.putMap("cache", Arguments.makeNativeMap(ClassifierCache.getStats()));
+                resultMap.putMap("locationCache", Arguments.makeNativeMap(GeoScoreCache.getStats()));
+                resultMap.putMap("locationStore", Arguments.makeNativeMap(GeoScoreStore.getStats()));
+                // Time elapsed on the native side; in seconds
+                resultMap.putDouble("timeElapsed", (endTime - startTime) / 1000.0);
+                promise.resolve(resultMap);
+            }
+        });
+    }
+
+    /** Puts the seconds since the start of a stage into the timings and returns the start of the next stage */
+    private static long putStageTime(WritableMap timings, String stage, long stageStart) {
+        long now = SystemClock.uptimeMillis();
+        timings.putDouble(stage, (now - stageStart) / 1000.0);
+        return now;
+    }
 }
@@ -1,6 +1,7 @@
 package com.visioncameraplugininatvision;
 
 import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
 import android.media.Image;
 import android.os.SystemClock;
 import android.util.Log;
@@ -18,6 +19,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 import timber.log.Timber;
 
@@ -29,23 +31,51 @@ public class VisionCameraPluginInatVisionPlugin extends FrameProcessorPlugin {
 
   private final static String TAG = "VisionCameraPluginInatVisionPlugin";
 
+  // Acquired from the ClassifierCache, so classifiers loaded or warmed up by the module are adopted
   private ImageClassifier mImageClassifier = null;
+  private String mImageClassifierFiles = null;
   private GeoClassifier mGeoClassifier = null;
+  private String mGeoClassifierFiles = null;
+
+  // Classifies frames on its own thread if the asyncInference argument is set, created on first use
+  private AsyncInferenceWorker mAsyncWorker = null;
+
+  // Skips frames to stay within the budget set by maxCpuFraction and maxClassificationsPerSecond
+  private final InferenceScheduler mScheduler = new InferenceScheduler();
+  // Averages the scores across frames if the smoothingFactor argument is set
+  private ScoreSmoother mScoreSmoother = null;
+  // Reuses the previous result for frames that hardly differ from the last classified one
+  private final SceneChangeDetector mSceneChangeDetector = new SceneChangeDetector();
+  // Result of the last synchronously classified frame, returned for skipped frames
+  private Map<String, Object> mLastResult = null;
+  private long mLastResultTime = 0;
+  // Filter and geomodel use of the previous frames, the frame state is reset when they change
+  private TaxonFilter mResultTaxonFilter = null;
+  private boolean mResultUsesGeomodel = false;
+
+  /** Identifies the model, taxonomy and version a classifier was acquired for */
+  private static String classifierFiles(String modelPath, String taxonomyPath, String version) {
+    return modelPath + "|" + taxonomyPath + "|" + version;
+  }
 
   private Integer mFilterByTaxonId = null; // If null -> no filter by taxon ID defined
   public void setFilterByTaxonId(Integer taxonId) {
       mFilterByTaxonId = taxonId;
-      if (mImageClassifier != null) {
-          mImageClassifier.setFilterByTaxonId(mFilterByTaxonId);
-      }
   }
 
   private boolean mNegativeFilter = false;
   public void setNegativeFilter(boolean negativeFilter) {
       mNegativeFilter = negativeFilter;
-      if (mImageClassifier != null) {
-        mImageClassifier.setNegativeFilter(mNegativeFilter);
-      }
+  }
+
+  private TaxonFilter mTaxonFilter = null; // If null -> the filter by taxon ID is used
+  public void setTaxonFilter(TaxonFilter taxonFilter) {
+      mTaxonFilter = taxonFilter;
+  }
+
+  /** The filter to classify with, set on the shared classifier for every frame */
+  private TaxonFilter currentTaxonFilter() {
+      return mTaxonFilter != null ? mTaxonFilter : TaxonFilter.forTaxon(mFilterByTaxonId, mNegativeFilter);
   }
 
   private double mCropRatio = 1.0;
@@ -95,6 +125,11 @@ public class VisionCameraPluginInatVisionPlugin extends FrameProcessorPlugin {
       setNegativeFilter(negativeFilter);
     }
 
+    // Include and exclude sets take precedence over filterByTaxonId
+    List<Integer> includeTaxonIds = taxonIdsFromArgument(arguments.get("includeTaxonIds"));
+    List<Integer> excludeTaxonIds = taxonIdsFromArgument(arguments.get("excludeTaxonIds"));
+    setTaxonFilter(includeTaxonIds != null || excludeTaxonIds != null ? TaxonFilter.of(includeTaxonIds, excludeTaxonIds) : null);
+
     Double taxonomyRollupCutoff = (Double)arguments.get("taxonomyRollupCutoff");
 
     Double cropRatio = (Double)arguments.get("cropRatio");
@@ -102,11 +137,18 @@ public class VisionCameraPluginInatVisionPlugin extends FrameProcessorPlugin {
       setCropRatio(cropRatio);
     }
 
+    // Interpreter options, separately for both models
+    InterpreterConfig visionInterpreterConfig = InterpreterConfig.fromMap((Map<String, Object>)arguments.get("visionInterpreterOptions"));
+    InterpreterConfig geoInterpreterConfig = InterpreterConfig.fromMap((Map<String, Object>)arguments.get("geoInterpreterOptions"));
+
     // Destructure geomodel parameters. Those can be null
     Boolean useGeomodel = (Boolean)arguments.get("useGeomodel");
     String geomodelPath = (String)arguments.get("geomodelPath");
     Map<String, Double> location = (Map<String, Double>)arguments.get("location");
 
+    // Whether a classifier was switched, the results of previous frames are not valid for the new one
+    boolean isClassifierSwitched = false;
+
     // Initialize and use geomodel if requested
     float[][] geomodelScores = null;
     if (useGeomodel != null && useGeomodel) {
@@ -120,11 +162,22 @@ public class VisionCameraPluginInatVisionPlugin extends FrameProcessorPlugin {
         Double longitude = location.get("longitude");
         Double elevation = location.get("elevation");
 
+        // Switch the geomodel classifier if the model, taxonomy or interpreter options changed
+        String geoClassifierFiles = classifierFiles(geomodelPath, taxonomyPath, version);
+        if (mGeoClassifier != null && (!mGeoClassifier.getInterpreterConfig().equals(geoInterpreterConfig) ||
+            !geoClassifierFiles.equals(mGeoClassifierFiles))) {
+          Timber.tag(TAG).d("Geo classifier options changed: " + geomodelPath + ", " + geoInterpreterConfig);
+          ClassifierCache.release(mGeoClassifier);
+          mGeoClassifier = null;
+          isClassifierSwitched = true;
+        }
+
         // Geomodel classifier initialization with model and taxonomy files
         if (mGeoClassifier == null) {
           Timber.tag(TAG).d("Initializing geo classifier: " + geomodelPath + " / " + taxonomyPath);
           try {
-            mGeoClassifier = new GeoClassifier(geomodelPath, taxonomyPath, version);
+            mGeoClassifier = ClassifierCache.acquireGeoClassifier(geomodelPath, taxonomyPath, version, geoInterpreterConfig);
+            mGeoClassifierFiles = geoClassifierFiles;
           } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException("Failed to initialize a geomodel classifier: " + e.getMessage());
@@ -137,19 +190,30 @@ public class VisionCameraPluginInatVisionPlugin extends FrameProcessorPlugin {
             throw new RuntimeException("Android version is too old - needs to be at least 6.0");
           }
         }
-        geomodelScores = mGeoClassifier.predictionsForLocation(latitude, longitude, elevation);
+        synchronized (mGeoClassifier) {
+          geomodelScores = mGeoClassifier.predictionsForLocation(latitude, longitude, elevation);
+        }
     } else {
         Timber.tag(TAG).d("Not using geomodel for this frame.");
     }
 
+    // Switch the image classifier if the model, taxonomy or interpreter options changed
+    String imageClassifierFiles = classifierFiles(modelPath, taxonomyPath, version);
+    if (mImageClassifier != null && (!mImageClassifier.getInterpreterConfig().equals(visionInterpreterConfig) ||
+        !imageClassifierFiles.equals(mImageClassifierFiles))) {
+      Timber.tag(TAG).d("Image classifier options changed: " + modelPath + ", " + visionInterpreterConfig);
+      ClassifierCache.release(mImageClassifier);
+      mImageClassifier = null;
+      isClassifierSwitched = true;
+    }
+
     // Image classifier initialization with model and taxonomy files
     if (mImageClassifier == null) {
       Timber.tag(TAG).d("Initializing classifier: " + modelPath + " / " + taxonomyPath);
 
       try {
-        mImageClassifier = new ImageClassifier(modelPath, taxonomyPath, version);
-        setFilterByTaxonId(mFilterByTaxonId);
-        setNegativeFilter(mNegativeFilter);
+        mImageClassifier = ClassifierCache.acquireImageClassifier(modelPath, taxonomyPath, version, visionInterpreterConfig);
+        mImageClassifierFiles = imageClassifierFiles;
       } catch (IOException e) {
         e.printStackTrace();
         throw new RuntimeException("Failed to initialize an image mClassifier: " + e.getMessage());
@@ -164,45 +228,171 @@ public class VisionCameraPluginInatVisionPlugin extends FrameProcessorPlugin {
       }
     }
 
-    List<Map> cleanedPredictions = new ArrayList<>();
-    if (mImageClassifier != null) {
-      mImageClassifier.setGeomodelScores(geomodelScores);
-      Bitmap bmp = BitmapUtils.getBitmap(image);
-      Log.d(TAG, "originalBitmap: " + bmp + ": " + bmp.getWidth() + " x " + bmp.getHeight());
-      // Crop the center square of the frame
-      int minDim = (int) Math.round(Math.min(bmp.getWidth(), bmp.getHeight()) * mCropRatio);
-      int cropX = (bmp.getWidth() - minDim) / 2;
-      int cropY = (bmp.getHeight() - minDim) / 2;
-      Log.d(TAG, "croppingParams: " + minDim + "; " + cropX + "; " + cropY);
-      Bitmap croppedBitmap = Bitmap.createBitmap(bmp, cropX, cropY, minDim, minDim);
-
-      // Resize to expected classifier input size
-      Bitmap rescaledBitmap = Bitmap.createScaledBitmap(
-        croppedBitmap,
-        ImageClassifier.DIM_IMG_SIZE_X,
-        ImageClassifier.DIM_IMG_SIZE_Y,
-        true);
-      bmp.recycle();
-      bmp = rescaledBitmap;
-      Log.d(TAG, "rescaledBitmap: " + bmp + ": " + bmp.getWidth() + " x " + bmp.getHeight());
-      List<Prediction> predictions = mImageClassifier.classifyBitmap(bmp, taxonomyRollupCutoff, false);
-      bmp.recycle();
-      croppedBitmap.recycle();
-
-      Log.d(TAG, "Predictions: " + predictions.size());
-
-      for (Prediction prediction : predictions) {
-        Map map = Taxonomy.nodeToMap(prediction);
-        if (map == null) continue;
-        cleanedPredictions.add(map);
+    TaxonFilter taxonFilter = currentTaxonFilter();
+    boolean usesGeomodel = geomodelScores != null;
+    if (isClassifierSwitched || !Objects.equals(taxonFilter, mResultTaxonFilter) || usesGeomodel != mResultUsesGeomodel) {
+      Timber.tag(TAG).d("Classifier, filter or geomodel changed, resetting the frame state");
+      resetFrameState();
+      mResultTaxonFilter = taxonFilter;
+      mResultUsesGeomodel = usesGeomodel;
+    }
+
+    mScheduler.setBudget((Double)arguments.get("maxCpuFraction"), (Double)arguments.get("maxClassificationsPerSecond"));
+    mSceneChangeDetector.setOptions((Double)arguments.get("sceneChangeThreshold"), (Double)arguments.get("maxResultReuseAge"));
+
+    Double smoothingFactor = (Double)arguments.get("smoothingFactor");
+    Boolean smoothingHalfPrecision = (Boolean)arguments.get("smoothingHalfPrecision");
+    boolean isHalfPrecision = smoothingHalfPrecision != null && smoothingHalfPrecision;
+    if (smoothingFactor == null || smoothingFactor <= 0 || smoothingFactor >= 1) {
+      mScoreSmoother = null;
+    } else {
+      if (mScoreSmoother == null || mScoreSmoother.isHalfPrecision() != isHalfPrecision) {
+        mScoreSmoother = new ScoreSmoother(isHalfPrecision);
       }
+      mScoreSmoother.setFactor(smoothingFactor);
+    }
+
+    Map<String, Object> resultMap;
+    Boolean asyncInference = (Boolean)arguments.get("asyncInference");
+    if (asyncInference == null || !asyncInference) {
+      closeAsyncWorker();
+    }
+    if (asyncInference != null && asyncInference && mImageClassifier != null) {
+      // Only convert the frame here, the worker classifies the latest one and the last result is returned
+      if (mAsyncWorker == null) {
+        mAsyncWorker = new AsyncInferenceWorker(ImageClassifier.DIM_IMG_SIZE_X, ImageClassifier.DIM_IMG_SIZE_Y);
+        mAsyncWorker.setScheduler(mScheduler);
+      }
+      boolean isReused = mSceneChangeDetector.isEnabled() && mSceneChangeDetector.canReuse(image, mCropRatio, startTime);
+      if (!isReused && mScheduler.shouldClassify(startTime, true)) {
+        mAsyncWorker.submit(image, frame.getTimestamp(), mCropRatio, ImageClassifier.pixelDivisorFor(version), mImageClassifier, geomodelScores, taxonFilter, mScoreSmoother, taxonomyRollupCutoff);
+        if (mSceneChangeDetector.isEnabled()) {
+          mSceneChangeDetector.markClassified(startTime);
+        }
+      }
+      resultMap = mAsyncWorker.getLatestResult();
+      if (resultMap == null) {
+        resultMap = new HashMap<>();
+        resultMap.put("predictions", new ArrayList<Map>());
+      }
+      resultMap.put("asyncStats", mAsyncWorker.getStats());
+    } else if (isSceneUnchanged(image, startTime) || !mScheduler.shouldClassify(startTime, mLastResult != null)) {
+      // The scene did not change or over budget, return the previous result
+      resultMap = new HashMap<>(mLastResult);
+      resultMap.put("staleness", (startTime - mLastResultTime) / 1000.0);
+    } else {
+      List<Map> cleanedPredictions = new ArrayList<>();
+      if (mImageClassifier != null) {
+        List<Prediction> predictions;
+        // The classifier may be shared with the module, so the filter and geomodel scores are set under its lock
+        synchronized (mImageClassifier) {
+          mImageClassifier.setTaxonFilter(taxonFilter);
+          mImageClassifier.setGeomodelScores(geomodelScores);
+          mImageClassifier.setScoreSmoother(mScoreSmoother);
+          if (image.getFormat() == ImageFormat.YUV_420_888) {
+            // Crop, scale and convert the frame straight into the model input
+            predictions = mImageClassifier.classifyImage(image, mCropRatio, taxonomyRollupCutoff, false);
+          } else {
+            Bitmap bmp = BitmapUtils.getBitmap(image);
+            Log.d(TAG, "originalBitmap: " + bmp + ": " + bmp.getWidth() + " x " + bmp.getHeight());
+            predictions = mImageClassifier.classifyBitmap(bmp, mCropRatio, taxonomyRollupCutoff, false);
+            bmp.recycle();
+          }
+        }
+
+        mScheduler.recordLatency(SystemClock.uptimeMillis() - startTime);
+        Log.d(TAG, "Predictions: " + predictions.size());
+
+        for (Prediction prediction : predictions) {
+          Map map = Taxonomy.nodeToMap(prediction);
+          if (map == null) continue;
+          cleanedPredictions.add(map);
+        }
+      }
+
+      resultMap = new HashMap<>();
+      resultMap.put("predictions", cleanedPredictions);
+      resultMap.put("frameTimestamp", (double) frame.getTimestamp());
+      resultMap.put("staleness", 0.0);
+      resultMap.put("smoothed", mScoreSmoother != null);
+      mLastResult = resultMap;
+      mLastResultTime = startTime;
+      if (mSceneChangeDetector.isEnabled()) {
+        mSceneChangeDetector.markClassified(startTime);
+      }
+    }
+    resultMap.put("scheduler", mScheduler.getStats(startTime));
+    if (mSceneChangeDetector.isEnabled()) {
+      resultMap.put("sceneChange", mSceneChangeDetector.getStats());
     }
 
     long endTime = SystemClock.uptimeMillis();
-    Map<String, Object> resultMap = new HashMap<>();
-    resultMap.put("predictions", cleanedPredictions);
     // Time elapsed on the native side; in seconds
     resultMap.put("timeElapsed", (endTime - startTime) / 1000.0);
+    // Interpreter options the predictions were made with
+    Map<String, Object> interpreterOptions = new HashMap<>();
+    interpreterOptions.put("vision", visionInterpreterConfig.toMap());
+    if (useGeomodel != null && useGeomodel) {
+      interpreterOptions.put("geo", geoInterpreterConfig.toMap());
+    }
+    resultMap.put("interpreterOptions", interpreterOptions);
     return resultMap;
   }
+
+  /**
+   * Whether the last result can be returned for the frame because the scene did not change. The
+   * thumbnail of the frame is computed even without a last result, so the frame classified next becomes
+   * the reference of the following frames.
+   */
+  private boolean isSceneUnchanged(Image image, long now) {
+    if (!mSceneChangeDetector.isEnabled()) {
+      return false;
+    }
+    boolean canReuse = mSceneChangeDetector.canReuse(image, mCropRatio, now);
+    return canReuse && mLastResult != null;
+  }
+
+  /**
+   * Forgets everything derived from previous frames: the smoothed scores, the last result, the scene
+   * change reference frame, the scheduler's timing and the async worker with its latest result.
+   */
+  private void resetFrameState() {
+    if (mScoreSmoother != null) {
+      mScoreSmoother.reset();
+    }
+    mLastResult = null;
+    mLastResultTime = 0;
+    mSceneChangeDetector.reset();
+    mScheduler.reset();
+    closeAsyncWorker();
+  }
+
+  /** Stops the async worker's thread, a new worker is created if asyncInference is set again */
+  private void closeAsyncWorker() {
+    if (mAsyncWorker != null) {
+      mAsyncWorker.close();
+      mAsyncWorker = null;
+    }
+  }
+
+  /** Taxon IDs from a JS array of numbers or numeric strings, null if the argument is not set */
+  private static List<Integer> taxonIdsFromArgument(Object argument) {
+    if (argument == null) {
+      return null;
+    }
+    if (!(argument instanceof List)) {
+      throw new RuntimeException("Taxon IDs must be an array");
+    }
+    List<Integer> taxonIds = new ArrayList<>();
+    for (Object taxonId : (List<?>) argument) {
+      if (taxonId instanceof Number) {
+        taxonIds.add(((Number) taxonId).intValue());
+      } else if (taxonId instanceof String) {
+        taxonIds.add(Integer.valueOf((String) taxonId));
+      } else {
+        throw new RuntimeException("Invalid taxon ID: " + taxonId);
+      }
+    }
+    return taxonIds;
+  }
 }
@@ -0,0 +1,248 @@
+package com.visioncameraplugininatvision;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class CropScaleKernelTest {
+
+    /** An ARGB image in memory that records the row buffers it is asked to fill */
+    private static class TestImage implements CropScaleKernel.ArgbSource {
+        final int width;
+        final int height;
+        final int[] pixels;
+        final List<int[]> rowBuffers = new ArrayList<>();
+        int rowReads;
+
+        TestImage(int width, int height, long seed) {
+            this.width = width;
+            this.height = height;
+            pixels = new int[width * height];
+            Random random = new Random(seed);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    // Gradients plus noise, so that neighboring pixels differ in every channel
+                    int red = (x * 255 / width + random.nextInt(32)) & 0xFF;
+                    int green = (y * 255 / height + random.nextInt(32)) & 0xFF;
+                    int blue = random.nextInt(256);
+                    pixels[y * width + x] = 0xFF000000 | (red << 16) | (green << 8) | blue;
+                }
+            }
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void getRow(int y, int x, int width, int[] row) {
+            rowReads++;
+            if (!rowBuffers.contains(row)) {
+                rowBuffers.add(row);
+            }
+            System.arraycopy(pixels, y * this.width + x, row, 0, width);
+        }
+    }
+
+    /**
+     * The input the way it was built before the kernel: crop the center square with
+     * {@code Bitmap.createBitmap}, scale it with {@code Bitmap.createScaledBitmap} with filtering (bilinear,
+     * pixel centers aligned, 8 bit channels) and read the channels of pixel (x, y) into [x][y][channel].
+     */
+    private static float[] bitmapScalePath(TestImage image, double cropRatio, int outSize, float divisor) {
+        int minDim = (int) Math.round(Math.min(image.width, image.height) * cropRatio);
+        int cropX = (image.width - minDim) / 2;
+        int cropY = (image.height - minDim) / 2;
+        int[] cropped = new int[minDim * minDim];
+        for (int y = 0; y < minDim; y++) {
+            System.arraycopy(image.pixels, (cropY + y) * image.width + cropX, cropped, y * minDim, minDim);
+        }
+
+        double scale = (double) minDim / outSize;
+        int[] scaled = new int[outSize * outSize];
+        for (int y = 0; y < outSize; y++) {
+            double sy = Math.min(Math.max((y + 0.5) * scale - 0.5, 0), minDim - 1);
+            int y0 = (int) sy;
+            int y1 = Math.min(y0 + 1, minDim - 1);
+            double fy = sy - y0;
+            for (int x = 0; x < outSize; x++) {
+                double sx = Math.min(Math.max((x + 0.5) * scale - 0.5, 0), minDim - 1);
+                int x0 = (int) sx;
+                int x1 = Math.min(x0 + 1, minDim - 1);
+                double fx = sx - x0;
+                int pixel = 0xFF000000;
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    double top = channel(cropped[y0 * minDim + x0], shift) * (1 - fx) + channel(cropped[y0 * minDim + x1], shift) * fx;
+                    double bottom = channel(cropped[y1 * minDim + x0], shift) * (1 - fx) + channel(cropped[y1 * minDim + x1], shift) * fx;
+                    int value = (int) Math.round(top * (1 - fy) + bottom * fy);
+                    pixel |= Math.min(255, Math.max(0, value)) << shift;
+                }
+                scaled[y * outSize + x] = pixel;
+            }
+        }
+
+        float[] input = new float[outSize * outSize * 3];
+        for (int x = 0; x < outSize; x++) {
+            for (int y = 0; y < outSize; y++) {
+                int pixel = scaled[y * outSize + x];
+                int index = (x * outSize + y) * 3;
+                input[index] = channel(pixel, 16) / divisor;
+                input[index + 1] = channel(pixel, 8) / divisor;
+                input[index + 2] = channel(pixel, 0) / divisor;
+            }
+        }
+        return input;
+    }
+
+    private static int channel(int pixel, int shift) {
+        return (pixel >> shift) & 0xFF;
+    }
+
+    private static void assertMatchesBitmapScalePath(TestImage image, double cropRatio, int outSize, float divisor) {
+        CropScaleKernel kernel = new CropScaleKernel(outSize, outSize);
+        FloatBuffer out = FloatBuffer.allocate(kernel.getOutputSize());
+        kernel.argbToTensor(image, cropRatio, out, divisor);
+
+        float[] expected = bitmapScalePath(image, cropRatio, outSize, divisor);
+        assertEquals(expected.length, out.capacity());
+        for (int i = 0; i < expected.length; i++) {
+            // Rounding the interpolated channels in float or double differs by at most one step
+            assertEquals("index " + i, expected[i], out.get(i), 1.0f / divisor + 1e-6f);
+        }
+    }
+
+    @Test
+    public void matchesBitmapScalePathWhenDownscaling() {
+        assertMatchesBitmapScalePath(new TestImage(64, 48, 1), 0.8, 16, 255.0f);
+        assertMatchesBitmapScalePath(new TestImage(48, 64, 2), 1.0, 20, 1.0f);
+    }
+
+    @Test
+    public void matchesBitmapScalePathWhenUpscaling() {
+        assertMatchesBitmapScalePath(new TestImage(13, 17, 3), 0.9, 24, 255.0f);
+    }
+
+    @Test
+    public void writesChannelsInXyOrder() {
+        // A 2x2 image is written unscaled, so every output pixel is a source pixel
+        TestImage image = new TestImage(2, 2, 4);
+        CropScaleKernel kernel = new CropScaleKernel(2, 2);
+        FloatBuffer out = FloatBuffer.allocate(kernel.getOutputSize());
+        kernel.argbToTensor(image, 1.0, out, 1.0f);
+        for (int x = 0; x < 2; x++) {
+            for (int y = 0; y < 2; y++) {
+                int pixel = image.pixels[y * 2 + x];
+                int index = (x * 2 + y) * 3;
+                assertEquals(channel(pixel, 16), out.get(index), 0f);
+                assertEquals(channel(pixel, 8), out.get(index + 1), 0f);
+                assertEquals(channel(pixel, 0), out.get(index + 2), 0f);
+            }
+        }
+        // The kernel writes at absolute positions, the buffer position is left alone
+        assertEquals(0, out.position());
+    }
+
+    @Test
+    public void repeatedCallsReuseBuffers() {
+        TestImage image = new TestImage(64, 48, 5);
+        CropScaleKernel kernel = new CropScaleKernel(16, 16);
+        FloatBuffer out = FloatBuffer.allocate(kernel.getOutputSize());
+
+        kernel.argbToTensor(image, 0.8, out, 255.0f);
+        float[] first = new float[out.capacity()];
+        out.get(first);
+        out.rewind();
+        List<int[]> rowBuffers = new ArrayList<>(image.rowBuffers);
+        assertEquals(2, rowBuffers.size());
+        // Every source row is read at most once per call
+        assertTrue(image.rowReads <= 38);
+
+        kernel.argbToTensor(image, 0.8, out, 255.0f);
+        assertEquals(rowBuffers.size(), image.rowBuffers.size());
+        for (int i = 0; i < rowBuffers.size(); i++) {
+            assertSame(rowBuffers.get(i), image.rowBuffers.get(i));
+        }
+        for (int i = 0; i < first.length; i++) {
+            assertEquals(first[i], out.get(i), 0f);
+        }
+    }
+
+    @Test
+    public void grayYuvMatchesArgb() {
+        int width = 40;
+        int height = 30;
+        TestImage gray = new TestImage(width, height, 6);
+        ByteBuffer yBuffer = ByteBuffer.allocate(width * height);
+        for (int i = 0; i < gray.pixels.length; i++) {
+            int luma = channel(gray.pixels[i], 0);
+            gray.pixels[i] = 0xFF000000 | (luma << 16) | (luma << 8) | luma;
+            yBuffer.put(i, (byte) luma);
+        }
+        // Neutral chroma, subsampled and interleaved like the planes of a camera frame
+        ByteBuffer chroma = ByteBuffer.allocate(width * height / 2);
+        for (int i = 0; i < chroma.capacity(); i++) {
+            chroma.put(i, (byte) 128);
+        }
+
+        CropScaleKernel kernel = new CropScaleKernel(12, 12);
+        FloatBuffer fromArgb = FloatBuffer.allocate(kernel.getOutputSize());
+        FloatBuffer fromYuv = FloatBuffer.allocate(kernel.getOutputSize());
+        kernel.argbToTensor(gray, 0.9, fromArgb, 255.0f);
+        kernel.yuvToTensor(width, height, yBuffer, width, 1, chroma, width, 2, chroma, width, 2, 0.9, fromYuv, 255.0f);
+        for (int i = 0; i < fromArgb.capacity(); i++) {
+            assertEquals("index " + i, fromArgb.get(i), fromYuv.get(i), 0f);
+        }
+    }
+
+    /**
+     * Converting a frame allocates nothing once the kernel's tables and row buffers exist, for both the
+     * ARGB path with a reused source and the YUV path, writing into a direct buffer like the model input.
+     */
+    @Test
+    public void conversionDoesNotAllocateAfterWarmUp() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        int width = 64;
+        int height = 48;
+        TestImage image = new TestImage(width, height, 7);
+        ByteBuffer yBuffer = ByteBuffer.allocateDirect(width * height);
+        ByteBuffer chroma = ByteBuffer.allocateDirect(width * height / 2);
+        CropScaleKernel kernel = new CropScaleKernel(16, 16);
+        FloatBuffer out = ByteBuffer.allocateDirect(4 * kernel.getOutputSize()).order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+        int calls = 200;
+        long[] allocated = new long[2];
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the kernel and the code paths, the second one is measured
+            long start = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < calls; i++) {
+                kernel.argbToTensor(image, 0.8, out, 255.0f);
+                kernel.yuvToTensor(width, height, yBuffer, width, 1, chroma, width, 2, chroma, width, 2, 0.8, out, 255.0f);
+            }
+            allocated[round] = threads.getThreadAllocatedBytes(threadId) - start;
+        }
+        assertTrue("allocated " + allocated[0] + " bytes while warming up", allocated[0] > 0);
+        // Reading the counter may allocate a few bytes itself, far less than one call's buffers
+        assertTrue("allocated " + allocated[1] + " bytes in " + calls + " calls", allocated[1] < 1024);
+    }
+}
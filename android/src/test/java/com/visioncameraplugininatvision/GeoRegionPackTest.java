@@ -0,0 +1,201 @@
+package com.visioncameraplugininatvision;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GeoRegionPackTest {
+    private static final int SIZE = 2000;
+    private static final GeoRegionPack.ModelKey KEY = new GeoRegionPack.ModelKey(0x12345678L, 0x9abcdef0L, "2.13");
+    /** Largest relative error of a decoded 8-bit score, half a step of the log scale */
+    private static final double MAX_RELATIVE_ERROR = 0.03;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("packs").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        GeoRegionPack.unload(null);
+        for (File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    /** Geomodel-like scores of a location: mostly tiny, a few large, some exactly 0 */
+    private static float[] scoresFor(double[] location) {
+        Random random = new Random(Double.doubleToLongBits(location[0]) ^ Double.doubleToLongBits(location[1]));
+        float[] scores = new float[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            scores[i] = i % 50 == 0 ? 0 : (float) Math.pow(10, -8 * random.nextDouble());
+        }
+        return scores;
+    }
+
+    private static double[][] locations(int count) {
+        Random random = new Random(1);
+        double[][] locations = new double[count][];
+        for (int i = 0; i < count; i++) {
+            locations[i] = new double[] { 40 + random.nextDouble(), -75 + random.nextDouble(), random.nextInt(500) };
+        }
+        return locations;
+    }
+
+    private File writePack(String name, double[][] locations) throws IOException {
+        File file = new File(mDirectory, name);
+        GeoRegionPack.write(file, KEY, SIZE, locations, 3, new GeoRegionPack.CellScorer() {
+            @Override
+            public void score(double[][] batch, GeoClassifier.LocationScoresListener listener) {
+                for (int i = 0; i < batch.length; i++) {
+                    listener.onScores(i, scoresFor(batch[i]));
+                }
+            }
+        });
+        return file;
+    }
+
+    @Test
+    public void roundTripMatchesFloatScores() throws IOException {
+        double[][] locations = locations(10);
+        GeoRegionPack.load(writePack("region.pack", locations));
+
+        float[] out = new float[SIZE];
+        int smallScores = 0;
+        for (double[] location : locations) {
+            float[] expected = scoresFor(location);
+            float max = GeoScoreCache.byteScale(expected);
+            assertTrue(GeoRegionPack.read(KEY, GeoScoreCache.cellFor(location[0], location[1], location[2]), out));
+            for (int i = 0; i < SIZE; i++) {
+                if (expected[i] >= max * 1e-6) {
+                    assertEquals("score " + i, expected[i], out[i], expected[i] * MAX_RELATIVE_ERROR);
+                    // A linear 8-bit scale would have rounded these to 0
+                    if (expected[i] < max / 510) {
+                        smallScores++;
+                    }
+                } else {
+                    // Scores below the floor decode to 0 or to the floor itself
+                    assertTrue("score " + i, out[i] <= max * 1e-6 * (1 + MAX_RELATIVE_ERROR));
+                }
+            }
+        }
+        assertTrue(smallScores > 0);
+    }
+
+    @Test
+    public void roundTripKeepsExpectedNearby() throws IOException {
+        double[][] locations = locations(5);
+        GeoRegionPack.load(writePack("region.pack", locations));
+
+        // Geo thresholds of the taxa, from large to small ones
+        double[] thresholds = new double[SIZE];
+        Random random = new Random(2);
+        for (int i = 0; i < SIZE; i++) {
+            thresholds[i] = Math.pow(10, -6 * random.nextDouble());
+        }
+        float[] out = new float[SIZE];
+        int expectedNearby = 0;
+        for (double[] location : locations) {
+            float[] expected = scoresFor(location);
+            assertTrue(GeoRegionPack.read(KEY, GeoScoreCache.cellFor(location[0], location[1], location[2]), out));
+            for (int i = 0; i < SIZE; i++) {
+                // Scores within the quantization error of the threshold may end up on either side
+                if (Math.abs(expected[i] - thresholds[i]) <= thresholds[i] * MAX_RELATIVE_ERROR) continue;
+                assertEquals("taxon " + i, expected[i] >= thresholds[i], out[i] >= thresholds[i]);
+                if (expected[i] >= thresholds[i]) {
+                    expectedNearby++;
+                }
+            }
+        }
+        assertTrue(expectedNearby > 0);
+    }
+
+    @Test
+    public void readsOnlyPacksOfTheSameModel() throws IOException {
+        double[][] locations = locations(2);
+        GeoRegionPack.load(writePack("region.pack", locations));
+        long cell = GeoScoreCache.cellFor(locations[0][0], locations[0][1], locations[0][2]);
+
+        float[] out = new float[SIZE];
+        assertTrue(GeoRegionPack.read(new GeoRegionPack.ModelKey(0x12345678L, 0x9abcdef0L, "2.13"), cell, out));
+        assertFalse(GeoRegionPack.read(new GeoRegionPack.ModelKey(0x12345679L, 0x9abcdef0L, "2.13"), cell, out));
+        assertFalse(GeoRegionPack.read(new GeoRegionPack.ModelKey(0x12345678L, 0x9abcdef1L, "2.13"), cell, out));
+        assertFalse(GeoRegionPack.read(new GeoRegionPack.ModelKey(0x12345678L, 0x9abcdef0L, "1.0"), cell, out));
+        assertFalse(GeoRegionPack.read(KEY, cell, new float[SIZE + 1]));
+        assertFalse(GeoRegionPack.read(KEY, GeoScoreCache.cellFor(0, 0, 0), out));
+    }
+
+    @Test
+    public void writeLeavesNoTemporaryFiles() throws IOException {
+        writePack("region.pack", locations(2));
+        writePack("region.pack", locations(3));
+        String[] names = mDirectory.list();
+        assertEquals(1, names.length);
+        assertEquals("region.pack", names[0]);
+    }
+
+    @Test
+    public void rejectsTooLargePacksBeforeScoring() throws IOException {
+        // About 100k cells of 30k scores, far over the mappable size
+        double[][] locations = new double[100000][];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = new double[] { -60 + i / 1000 * 0.1, -170 + i % 1000 * 0.1, 0 };
+        }
+        File file = new File(mDirectory, "region.pack");
+        try {
+            GeoRegionPack.write(file, KEY, 30000, locations, 100, new GeoRegionPack.CellScorer() {
+                @Override
+                public void score(double[][] batch, GeoClassifier.LocationScoresListener listener) {
+                    throw new AssertionError("Scored an oversized pack");
+                }
+            });
+            throw new AssertionError("Wrote an oversized pack");
+        } catch (GeoRegionPack.PackTooLargeException e) {
+            // Expected
+        }
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    @Test
+    public void rejectsTooLargePacksOnLoad() throws IOException {
+        File file = new File(mDirectory, "region.pack");
+        // Sparse, so no disk space is used
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(GeoRegionPack.MAX_PACK_BYTES + 1);
+        } finally {
+            randomAccessFile.close();
+        }
+        try {
+            GeoRegionPack.load(file);
+            throw new AssertionError("Loaded an oversized pack");
+        } catch (GeoRegionPack.PackTooLargeException e) {
+            // Expected
+        }
+        assertFalse(GeoRegionPack.hasLoadedPacks());
+    }
+
+    @Test
+    public void checksumIdentifiesContents() throws IOException {
+        File a = new File(mDirectory, "a");
+        File b = new File(mDirectory, "b");
+        Files.write(a.toPath(), new byte[] { 1, 2, 3 });
+        Files.write(b.toPath(), new byte[] { 1, 2, 4 });
+        assertEquals(GeoRegionPack.checksum(a), GeoRegionPack.checksum(a));
+        assertTrue(GeoRegionPack.checksum(a) != GeoRegionPack.checksum(b));
+        assertEquals(GeoRegionPack.ModelKey.of(a, b, "2.13"), GeoRegionPack.ModelKey.of(a, b, "2.13"));
+    }
+}
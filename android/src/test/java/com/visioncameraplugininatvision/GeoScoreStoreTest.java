@@ -0,0 +1,74 @@
+package com.visioncameraplugininatvision;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GeoScoreStoreTest {
+    private static final int SIZE = 1000;
+
+    private File mDirectory;
+    private File mModelFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("scores").toFile();
+        mModelFile = new File(mDirectory, "geomodel.tflite");
+        Files.write(mModelFile.toPath(), new byte[] { 1, 2, 3 });
+        GeoScoreCache.setOptions(GeoScoreCache.DEFAULT_MAX_BYTES, GeoScoreCache.PRECISION_FLOAT);
+    }
+
+    @After
+    public void tearDown() {
+        GeoScoreStore.setOptions(null, 0);
+        for (File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    private static float[] scores(int seed) {
+        float[] scores = new float[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            scores[i] = (i * 31 + seed) % 97 / 97f;
+        }
+        return scores;
+    }
+
+    @Test
+    public void limitBelowOneRecordDisablesTheStore() {
+        // Header and one float record of 1000 scores are a little over 4 KB
+        GeoScoreStore.setOptions(mDirectory, 4096);
+        assertNull(GeoScoreStore.forModel(mModelFile.getPath(), "2.13", SIZE));
+        assertEquals(1, mDirectory.list().length);
+    }
+
+    @Test
+    public void compactsToTheLimit() {
+        long maxBytes = 20 * 1024;
+        GeoScoreStore.setOptions(mDirectory, maxBytes);
+        GeoScoreStore store = GeoScoreStore.forModel(mModelFile.getPath(), "2.13", SIZE);
+        assertNotNull(store);
+
+        float[] out = new float[SIZE];
+        for (int cell = 0; cell < 20; cell++) {
+            store.write(cell, scores(cell));
+            assertTrue(store.read(cell, out));
+            assertEquals(scores(cell)[7], out[7], 0f);
+        }
+        assertFalse(store.read(0, out));
+        long bytes = ((Number) GeoScoreStore.getStats().get("bytes")).longValue();
+        assertTrue(bytes <= maxBytes);
+        assertTrue(((Number) GeoScoreStore.getStats().get("compactions")).longValue() > 0);
+    }
+}
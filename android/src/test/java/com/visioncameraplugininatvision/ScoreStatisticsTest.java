@@ -0,0 +1,214 @@
+package com.visioncameraplugininatvision;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScoreStatisticsTest {
+    private static final int LEAF_COUNT = 80000;
+    private static final int TOP_K = 100;
+
+    private static float[] randomScores(Random random, int count, double spread) {
+        float[] scores = new float[count];
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            scores[i] = (float) Math.exp(random.nextGaussian() * spread);
+            sum += scores[i];
+        }
+        for (int i = 0; i < count; i++) {
+            scores[i] /= sum;
+        }
+        return scores;
+    }
+
+    /** The top k indices the way the JS side finds them: sort all scores, highest first, ties by index */
+    private static Integer[] sortedTopIndices(final float[] scores, int topK) {
+        Integer[] indices = new Integer[scores.length];
+        for (int i = 0; i < scores.length; i++) {
+            indices[i] = i;
+        }
+        Arrays.sort(indices, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byScore = Float.compare(scores[b], scores[a]);
+                return byScore != 0 ? byScore : Integer.compare(a, b);
+            }
+        });
+        return Arrays.copyOf(indices, Math.min(topK, scores.length));
+    }
+
+    @Test
+    public void computeMatchesSort() {
+        Random random = new Random(1);
+        ScoreStatistics statistics = new ScoreStatistics();
+        for (int trial = 0; trial < 20; trial++) {
+            float[] scores = randomScores(random, 1 + random.nextInt(5000), 1 + trial % 4);
+            // Repeated scores exercise the tie order
+            if (trial % 3 == 0) {
+                for (int i = 0; i < scores.length; i += 7) {
+                    scores[i] = scores[0];
+                }
+            }
+            statistics.compute(scores, TOP_K);
+
+            Integer[] expected = sortedTopIndices(scores, TOP_K);
+            double sum = 0;
+            for (float score : scores) {
+                sum += score;
+            }
+            assertEquals(scores[expected[0]], statistics.getMaxScore(), 0f);
+            assertEquals(sum, statistics.getSum(), 1e-9);
+            assertEquals(expected.length, statistics.getTopCount());
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(scores[expected[i]], statistics.getTopScores()[i], 0f);
+                assertEquals(scores[expected[i]], scores[statistics.getTopIndices()[i]], 0f);
+            }
+        }
+    }
+
+    @Test
+    public void computeWithoutTopK() {
+        ScoreStatistics statistics = new ScoreStatistics();
+        statistics.compute(new float[] { 0.2f, 0.5f, 0.3f }, 0);
+        assertEquals(0.5f, statistics.getMaxScore(), 0f);
+        assertEquals(1, statistics.getMaxIndex());
+        assertEquals(0, statistics.getTopCount());
+
+        statistics.compute(new float[0], 0);
+        assertEquals(-1, statistics.getMaxIndex());
+    }
+
+    /** Common ancestor mode with a top leaf count returns the top leaves of the full result and their ancestors */
+    @Test
+    public void commonAncestorTopLeaves() throws IOException {
+        File directory = Files.createTempDirectory("taxonomy").toFile();
+        File csvFile = new File(directory, "taxonomy.csv");
+        int leafCount = writeTaxonomy(csvFile, 3, 12, 10);
+        try {
+            Taxonomy taxonomy = Taxonomy.fromFile(csvFile.getPath(), "2.13");
+            Random random = new Random(2);
+            for (int trial = 0; trial < 10; trial++) {
+                float[] scores = randomScores(random, leafCount, 1 + trial % 4);
+                Double cutoff = trial % 2 == 0 ? Double.valueOf(0.0) : null;
+                ScoringContext full = taxonomy.newScoringContext();
+                ScoringContext top = taxonomy.newScoringContext();
+                top.setTopLeafCount(TOP_K);
+                List<Prediction> fullPredictions = taxonomy.predict(full, scores, scores, null, cutoff, true);
+                List<Prediction> topPredictions = taxonomy.predict(top, scores, scores, null, cutoff, true);
+
+                Map<Node, Prediction> fullByNode = new IdentityHashMap<>();
+                for (Prediction prediction : fullPredictions) {
+                    fullByNode.put(prediction.node, prediction);
+                }
+                Map<Node, Prediction> topByNode = new IdentityHashMap<>();
+                for (Prediction prediction : topPredictions) {
+                    Prediction fullPrediction = fullByNode.get(prediction.node);
+                    assertNotNull(fullPrediction);
+                    assertEquals(fullPrediction.score, prediction.score);
+                    topByNode.put(prediction.node, prediction);
+                }
+
+                List<Prediction> fullLeaves = leaves(fullPredictions);
+                List<Prediction> topLeaves = leaves(topPredictions);
+                assertEquals(Math.min(TOP_K, fullLeaves.size()), topLeaves.size());
+                for (int i = 0; i < topLeaves.size(); i++) {
+                    assertEquals(fullLeaves.get(i).score, topLeaves.get(i).score);
+                    for (Node node = topLeaves.get(i).node.parent; node != null && node.parent != null; node = node.parent) {
+                        assertTrue(topByNode.containsKey(node));
+                    }
+                }
+            }
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    /** Prints the time of the single pass against sorting a copy of the scores, the way top leaves were found before */
+    @Test
+    public void benchmarkAgainstSort() {
+        Random random = new Random(3);
+        float[] scores = randomScores(random, LEAF_COUNT, 3);
+        ScoreStatistics statistics = new ScoreStatistics();
+        int rounds = 20;
+        long statisticsNanos = Long.MAX_VALUE;
+        long sortNanos = Long.MAX_VALUE;
+        float topScore = 0;
+        float sortedScore = 0;
+        for (int warmUp = 0; warmUp < 3; warmUp++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                statistics.compute(scores, TOP_K);
+                topScore = statistics.getTopScores()[TOP_K - 1];
+            }
+            statisticsNanos = Math.min(statisticsNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                float[] sorted = scores.clone();
+                Arrays.sort(sorted);
+                sortedScore = sorted[sorted.length - TOP_K];
+            }
+            sortNanos = Math.min(sortNanos, System.nanoTime() - start);
+        }
+        assertEquals(sortedScore, topScore, 0f);
+        System.out.println(String.format("Top %d of %d scores: single pass %.3f ms, sort %.3f ms",
+            TOP_K, LEAF_COUNT, statisticsNanos / 1e6 / rounds, sortNanos / 1e6 / rounds));
+    }
+
+    private static List<Prediction> leaves(List<Prediction> predictions) {
+        List<Prediction> leaves = new ArrayList<>();
+        for (Prediction prediction : predictions) {
+            if (prediction.node.leafId != null && prediction.node.leafId.length() > 0) {
+                leaves.add(prediction);
+            }
+        }
+        Collections.sort(leaves, new Comparator<Prediction>() {
+            @Override
+            public int compare(Prediction a, Prediction b) {
+                return Double.compare(b.score, a.score);
+            }
+        });
+        return leaves;
+    }
+
+    /** Writes a taxonomy of kingdoms, genera and species, returns the number of leaves */
+    private static int writeTaxonomy(File file, int kingdoms, int generaPerKingdom, int speciesPerGenus) throws IOException {
+        int taxonId = 1;
+        int leafClassId = 0;
+        try (Writer writer = new FileWriter(file)) {
+            writer.write("parent_taxon_id,taxon_id,rank_level,leaf_class_id,geo_threshold,name\n");
+            for (int k = 0; k < kingdoms; k++) {
+                int kingdom = taxonId++;
+                writer.write("," + kingdom + ",70,,,Kingdom " + kingdom + "\n");
+                for (int g = 0; g < generaPerKingdom; g++) {
+                    int genus = taxonId++;
+                    writer.write(kingdom + "," + genus + ",20,,,Genus " + genus + "\n");
+                    for (int s = 0; s < speciesPerGenus; s++) {
+                        int species = taxonId++;
+                        writer.write(genus + "," + species + ",10," + (leafClassId++) + ",0.01,Species " + species + "\n");
+                    }
+                }
+            }
+        }
+        return leafClassId;
+    }
+}
@@ -0,0 +1,158 @@
+import { NativeModules, Platform } from 'react-native';
+
+import { getPredictionsForImages, MODE } from '../index';
+
+const correctOptions = {
+  uris: ['testUri1', 'testUri2'],
+  version: '1.0',
+  modelPath: 'testModelPath',
+  taxonomyPath: 'testTaxonomyPath',
+  confidenceThreshold: 50,
+  cropRatio: 0.8,
+};
+
+describe('getPredictionsForImages', () => {
+  it('should not throw an error when options are valid', () => {
+    const options = correctOptions;
+
+    expect(() => getPredictionsForImages(options)).not.toThrowError();
+  });
+
+  it('should throw an error when uris is not an array', () => {
+    const options = { ...correctOptions, uris: 'testUri' };
+
+    expect(() => getPredictionsForImages(options)).toThrowError(
+      'uris must be an array.',
+    );
+  });
+
+  it('should throw an error when maxBatchSize is less than 1', () => {
+    const options = { ...correctOptions, maxBatchSize: 0 };
+
+    expect(() => getPredictionsForImages(options)).toThrowError(
+      'maxBatchSize must be a number of at least 1.',
+    );
+  });
+
+  it('should throw an error when cropRatio is greater than 1', () => {
+    const options = { ...correctOptions, cropRatio: 1.5 };
+
+    expect(() => getPredictionsForImages(options)).toThrowError(
+      'cropRatio must be a number between 0 and 1.',
+    );
+  });
+});
+
+describe('getPredictionsForImages result handling', () => {
+  const baseOptions = {
+    uris: ['testUri1', 'testUri2'],
+    version: '1.0',
+    modelPath: 'testModelPath',
+    taxonomyPath: 'testTaxonomyPath',
+    confidenceThreshold: 0,
+  };
+
+  beforeEach(() => {
+    NativeModules.VisionCameraPluginInatVision.getPredictionsForImage.mockReset();
+    NativeModules.VisionCameraPluginInatVision.getPredictionsForImages.mockReset();
+  });
+
+  afterEach(() => {
+    Platform.OS = 'ios';
+  });
+
+  it('predicts on one image after another on iOS', async () => {
+    NativeModules.VisionCameraPluginInatVision.getPredictionsForImage.mockResolvedValue(
+      {
+        predictions: [
+          {
+            rank_level: 10,
+            score: 0.8,
+            vision_score: 0.8,
+            taxon_id: '1',
+          },
+        ],
+      },
+    );
+
+    const result = await getPredictionsForImages(baseOptions);
+
+    expect(
+      NativeModules.VisionCameraPluginInatVision.getPredictionsForImage,
+    ).toHaveBeenCalledTimes(2);
+    expect(result.results).toHaveLength(2);
+    expect(result.results[1].predictions[0].score).toBe(80);
+  });
+
+  it('returns scaled predictions per image from the batched call on Android', async () => {
+    Platform.OS = 'android';
+    NativeModules.VisionCameraPluginInatVision.getPredictionsForImages.mockResolvedValueOnce(
+      {
+        batchSize: 2,
+        results: [
+          {
+            uri: 'testUri1',
+            predictions: [
+              {
+                rank_level: 10,
+                score: 0.8,
+                vision_score: 0.8,
+                taxon_id: '1',
+              },
+            ],
+          },
+          {
+            uri: 'testUri2',
+            predictions: [],
+            error: "Couldn't read image 'testUri2'",
+          },
+        ],
+      },
+    );
+
+    const result = await getPredictionsForImages(baseOptions);
+
+    expect(result.batchSize).toBe(2);
+    expect(result.results[0].options.uri).toBe('testUri1');
+    expect(result.results[0].predictions[0].score).toBe(80);
+    expect(result.results[1].predictions).toHaveLength(0);
+  });
+
+  it('returns common-ancestor results per image in common ancestor mode', async () => {
+    Platform.OS = 'android';
+    NativeModules.VisionCameraPluginInatVision.getPredictionsForImages.mockResolvedValueOnce(
+      {
+        results: [
+          {
+            uri: 'testUri1',
+            predictions: [
+              {
+                leaf_id: 1,
+                rank_level: 10,
+                score: 0.8,
+                vision_score: 0.8,
+                taxon_id: 101,
+                ancestor_ids: [20],
+              },
+              {
+                rank_level: 20,
+                score: 0,
+                vision_score: 0,
+                taxon_id: 20,
+                ancestor_ids: [],
+              },
+            ],
+          },
+        ],
+      },
+    );
+
+    const result = await getPredictionsForImages({
+      ...baseOptions,
+      mode: MODE.COMMON_ANCESTOR,
+    });
+
+    expect(result.results[0].predictions[0].score).toBe(80);
+    expect(result.results[0].commonAncestor?.taxon_id).toBe(20);
+  });
+});
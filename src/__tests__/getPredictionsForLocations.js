@@ -0,0 +1,75 @@
+import { NativeModules, Platform } from 'react-native';
+
+import { getPredictionsForLocations } from '../index';
+
+const correctOptions = {
+  taxonomyPath: 'testTaxonomyPath',
+  geomodelPath: 'testGeomodelPath',
+  locations: [
+    { latitude: 37.28889, longitude: -121.94415 },
+    { latitude: 52.52, longitude: 13.405 },
+  ],
+};
+
+describe('getPredictionsForLocations', () => {
+  beforeEach(() => {
+    NativeModules.VisionCameraPluginInatVision.getPredictionsForLocation.mockReset();
+    NativeModules.VisionCameraPluginInatVision.getPredictionsForLocations.mockClear();
+  });
+
+  afterEach(() => {
+    Platform.OS = 'ios';
+  });
+
+  it('should throw an error when locations is not an array', () => {
+    const options = {
+      ...correctOptions,
+      locations: correctOptions.locations[0],
+    };
+
+    expect(() => getPredictionsForLocations(options)).toThrowError(
+      'locations must be an array.',
+    );
+  });
+
+  it('should throw an error when a location has no longitude', () => {
+    const options = {
+      ...correctOptions,
+      locations: [...correctOptions.locations, { latitude: 1 }],
+    };
+
+    expect(() => getPredictionsForLocations(options)).toThrowError(
+      'location must have latitude and longitude set.',
+    );
+  });
+
+  it('predicts one location after another on iOS', async () => {
+    NativeModules.VisionCameraPluginInatVision.getPredictionsForLocation.mockResolvedValue(
+      { predictions: [{ taxon_id: 1, score: 0.5 }] },
+    );
+
+    const result = await getPredictionsForLocations(correctOptions);
+
+    expect(
+      NativeModules.VisionCameraPluginInatVision.getPredictionsForLocation,
+    ).toHaveBeenCalledTimes(2);
+    expect(result.results).toHaveLength(2);
+    expect(result.results[1].predictions[0].taxon_id).toBe(1);
+  });
+
+  it('passes all snapped locations to one native call on Android', async () => {
+    Platform.OS = 'android';
+
+    await getPredictionsForLocations(correctOptions);
+
+    const getPredictionsForLocationsMock =
+      NativeModules.VisionCameraPluginInatVision.getPredictionsForLocations;
+    expect(getPredictionsForLocationsMock).toHaveBeenCalledTimes(1);
+    const { locations } = getPredictionsForLocationsMock.mock.calls[0][0];
+    expect(locations).toHaveLength(2);
+    expect(typeof locations[0].elevation).toBe('number');
+    expect(
+      NativeModules.VisionCameraPluginInatVision.getPredictionsForLocation,
+    ).not.toHaveBeenCalled();
+  });
+});
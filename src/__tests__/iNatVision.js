@@ -141,3 +141,89 @@ describe('numStoredResults', () => {
     expect(result.predictions[0].score).toBe(90);
   });
 });
+
+describe('asyncInference', () => {
+  beforeEach(() => {
+    resetStoredResults();
+  });
+
+  it('stores a result returned for several frames only once', () => {
+    const asyncResult = (score, frameTimestamp) => ({
+      ...mockNativeResult(score),
+      frameTimestamp,
+      staleness: 0.05,
+    });
+    pluginCall()
+      .mockReturnValueOnce(asyncResult(0.9, 1000))
+      .mockReturnValueOnce(asyncResult(0.1, 2000))
+      .mockReturnValueOnce(asyncResult(0.1, 2000))
+      .mockReturnValueOnce(asyncResult(0.1, 2000));
+
+    const options = {
+      ...baseOptions,
+      asyncInference: true,
+      numStoredResults: 3,
+    };
+    inatVision(mockFrame, options);
+    inatVision(mockFrame, options);
+    inatVision(mockFrame, options);
+    const result = inatVision(mockFrame, options);
+
+    // The repeated weak result does not push the prior high-confidence frame out of the stored results
+    expect(result.predictions[0].score).toBe(90);
+    expect(result.frameTimestamp).toBe(1000);
+  });
+});
+
+describe('inference budget', () => {
+  it('should throw an error when maxCpuFraction is greater than 1', () => {
+    expect(() =>
+      inatVision(mockFrame, { ...baseOptions, maxCpuFraction: 1.5 }),
+    ).toThrowError('maxCpuFraction must be a number between 0 and 1.');
+  });
+
+  it('should throw an error when maxClassificationsPerSecond is negative', () => {
+    expect(() =>
+      inatVision(mockFrame, {
+        ...baseOptions,
+        maxClassificationsPerSecond: -1,
+      }),
+    ).toThrowError('maxClassificationsPerSecond must be a positive number.');
+  });
+});
+
+describe('sceneChangeThreshold', () => {
+  it('should throw an error when sceneChangeThreshold is greater than 1', () => {
+    expect(() =>
+      inatVision(mockFrame, { ...baseOptions, sceneChangeThreshold: 2 }),
+    ).toThrowError('sceneChangeThreshold must be a number between 0 and 1.');
+  });
+});
+
+describe('smoothingFactor', () => {
+  beforeEach(() => {
+    resetStoredResults();
+  });
+
+  it('should throw an error when smoothingFactor is greater than 1', () => {
+    expect(() =>
+      inatVision(mockFrame, { ...baseOptions, smoothingFactor: 1.5 }),
+    ).toThrowError('smoothingFactor must be a number between 0 and 1.');
+  });
+
+  it('returns natively smoothed results without re-ranking stored results', () => {
+    pluginCall()
+      .mockReturnValueOnce({ ...mockNativeResult(0.9), smoothed: true })
+      .mockReturnValueOnce({ ...mockNativeResult(0.1), smoothed: true });
+
+    const options = {
+      ...baseOptions,
+      smoothingFactor: 0.3,
+      numStoredResults: 5,
+    };
+    inatVision(mockFrame, options);
+    const result = inatVision(mockFrame, options);
+
+    expect(result.predictions[0].score).toBe(10);
+  });
+});
@@ -0,0 +1,121 @@
+import { NativeModules, Platform } from 'react-native';
+
+import { preloadModels, unloadModels, warmUpModels } from '../index';
+
+const correctOptions = {
+  version: '2.13',
+  modelPath: 'testModelPath',
+  taxonomyPath: 'testTaxonomyPath',
+};
+
+describe('preloadModels', () => {
+  beforeEach(() => {
+    NativeModules.VisionCameraPluginInatVision.preloadModels.mockClear();
+  });
+
+  afterEach(() => {
+    Platform.OS = 'ios';
+  });
+
+  it('should throw an error when the version is not supported', () => {
+    const options = { ...correctOptions, version: '0.1' };
+
+    expect(() => preloadModels(options)).toThrowError(
+      'This model version is not supported.',
+    );
+  });
+
+  it('should throw an error when the location cache precision is unknown', () => {
+    const options = { ...correctOptions, locationCachePrecision: 'double' };
+
+    expect(() => preloadModels(options)).toThrowError(
+      'locationCachePrecision must be float, half or byte.',
+    );
+  });
+
+  it('should throw an error when maxStoredLocationBytes is negative', () => {
+    const options = { ...correctOptions, maxStoredLocationBytes: -1 };
+
+    expect(() => preloadModels(options)).toThrowError(
+      'maxStoredLocationBytes must be a number of at least 0.',
+    );
+  });
+
+  it('does not call native on iOS', async () => {
+    const result = await preloadModels(correctOptions);
+
+    expect(
+      NativeModules.VisionCameraPluginInatVision.preloadModels,
+    ).not.toHaveBeenCalled();
+    expect(result).toEqual({});
+  });
+
+  it('passes the options to native on Android', async () => {
+    Platform.OS = 'android';
+
+    const result = await preloadModels({
+      ...correctOptions,
+      maxCachedModels: 2,
+    });
+
+    expect(
+      NativeModules.VisionCameraPluginInatVision.preloadModels,
+    ).toHaveBeenCalledWith({ ...correctOptions, maxCachedModels: 2 });
+    expect(result.cache).toEqual({});
+  });
+});
+
+describe('unloadModels', () => {
+  beforeEach(() => {
+    NativeModules.VisionCameraPluginInatVision.unloadModels.mockClear();
+  });
+
+  afterEach(() => {
+    Platform.OS = 'ios';
+  });
+
+  it('unloads all models by default on Android', async () => {
+    Platform.OS = 'android';
+
+    await unloadModels();
+
+    expect(
+      NativeModules.VisionCameraPluginInatVision.unloadModels,
+    ).toHaveBeenCalledWith({});
+  });
+});
+
+describe('warmUpModels', () => {
+  beforeEach(() => {
+    NativeModules.VisionCameraPluginInatVision.warmUpModels.mockClear();
+  });
+
+  afterEach(() => {
+    Platform.OS = 'ios';
+  });
+
+  it('should throw an error when warmUpRuns is less than 1', () => {
+    const options = { ...correctOptions, warmUpRuns: 0 };
+
+    expect(() => warmUpModels(options)).toThrowError(
+      'warmUpRuns must be a number of at least 1.',
+    );
+  });
+
+  it('resolves with the stage timings on Android', async () => {
+    Platform.OS = 'android';
+    NativeModules.VisionCameraPluginInatVision.warmUpModels.mockResolvedValueOnce(
+      {
+        timings: { taxonomy: 0.5, visionModel: 0.2, visionWarmUp: 1.1 },
+        warmUpRuns: 2,
+      },
+    );
+
+    const result = await warmUpModels({ ...correctOptions, warmUpRuns: 2 });
+
+    expect(
+      NativeModules.VisionCameraPluginInatVision.warmUpModels,
+    ).toHaveBeenCalledWith({ ...correctOptions, warmUpRuns: 2 });
+    expect(result.timings?.visionWarmUp).toBe(1.1);
+  });
+});
@@ -0,0 +1,107 @@
+import { NativeModules, Platform } from 'react-native';
+
+import { loadRegionPack, prepareRegionPack } from '../index';
+
+const correctOptions = {
+  taxonomyPath: 'testTaxonomyPath',
+  geomodelPath: 'testGeomodelPath',
+  packPath: 'testPackPath',
+  boundingBox: { north: 37.5, south: 37, east: -121.5, west: -122.5 },
+};
+
+describe('prepareRegionPack', () => {
+  beforeEach(() => {
+    NativeModules.VisionCameraPluginInatVision.prepareRegionPack.mockClear();
+  });
+
+  afterEach(() => {
+    Platform.OS = 'ios';
+  });
+
+  it('should throw an error when the bounding box is missing a side', () => {
+    const options = {
+      ...correctOptions,
+      boundingBox: { north: 37.5, south: 37, east: -121.5 },
+    };
+
+    expect(() => prepareRegionPack(options)).toThrowError(
+      'boundingBox must have north, south, east and west in degrees with north not below south.',
+    );
+  });
+
+  it('should throw an error when north is below south', () => {
+    const options = {
+      ...correctOptions,
+      boundingBox: { ...correctOptions.boundingBox, north: 36 },
+    };
+
+    expect(() => prepareRegionPack(options)).toThrowError(
+      'boundingBox must have north, south, east and west in degrees with north not below south.',
+    );
+  });
+
+  it('should throw an error when the bounding box crosses the antimeridian', () => {
+    const options = {
+      ...correctOptions,
+      boundingBox: { north: -16, south: -19, east: -178, west: 177 },
+    };
+
+    expect(() => prepareRegionPack(options)).toThrowError(
+      'boundingBox must have west not above east, between -180 and 180. Prepare a region across the antimeridian as two packs.',
+    );
+  });
+
+  it('should throw an error when a longitude is out of range', () => {
+    const options = {
+      ...correctOptions,
+      boundingBox: { ...correctOptions.boundingBox, east: 182 },
+    };
+
+    expect(() => prepareRegionPack(options)).toThrowError(
+      'boundingBox must have west not above east, between -180 and 180. Prepare a region across the antimeridian as two packs.',
+    );
+  });
+
+  it('does not call native on iOS', async () => {
+    const result = await prepareRegionPack(correctOptions);
+
+    expect(
+      NativeModules.VisionCameraPluginInatVision.prepareRegionPack,
+    ).not.toHaveBeenCalled();
+    expect(result).toEqual({});
+  });
+
+  it('passes the cells of the bounding box to native on Android', async () => {
+    Platform.OS = 'android';
+
+    await prepareRegionPack(correctOptions);
+
+    const { locations, packPath } =
+      NativeModules.VisionCameraPluginInatVision.prepareRegionPack.mock
+        .calls[0][0];
+    expect(packPath).toBe('testPackPath');
+    expect(locations.length).toBeGreaterThan(1);
+    locations.forEach((location) => {
+      expect(location.latitude).toBeGreaterThan(36.5);
+      expect(location.latitude).toBeLessThan(38);
+      expect(typeof location.elevation).toBe('number');
+    });
+  });
+});
+
+describe('loadRegionPack', () => {
+  afterEach(() => {
+    Platform.OS = 'ios';
+  });
+
+  it('passes the pack path to native on Android', async () => {
+    Platform.OS = 'android';
+
+    const result = await loadRegionPack({ packPath: 'testPackPath' });
+
+    expect(
+      NativeModules.VisionCameraPluginInatVision.loadRegionPack,
+    ).toHaveBeenCalledWith({ packPath: 'testPackPath' });
+    expect(result.regionPacks).toEqual({});
+  });
+});
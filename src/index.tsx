@@ -5,8 +5,8 @@ import type { Frame } from 'react-native-vision-camera';
 import { Worklets } from 'react-native-worklets-core';
 import type { ISharedValue } from 'react-native-worklets-core';
 
-import { lookUpLocation } from './lookUpLocation';
-import type { LocationLookup } from './lookUpLocation';
+import { lookUpLocation, lookUpRegion } from './lookUpLocation';
+import type { BoundingBox, LocationLookup } from './lookUpLocation';
 
 const plugin = VisionCameraProxy.initFrameProcessorPlugin('inatVision', {});
 
@@ -191,11 +191,43 @@ export interface Prediction {
   leaf_id?: number;
 }
 
+/**
+ * *Android only.*
+ *
+ * Options of the LiteRT interpreter running a model. Unset options keep the runtime defaults.
+ */
+export interface InterpreterOptions {
+  /**
+   * The number of CPU threads to run the model on.
+   */
+  numThreads?: number;
+  /**
+   * Whether to use the XNNPACK delegate.
+   */
+  useXNNPACK?: boolean;
+  /**
+   * @deprecated Ignored: fp16 precision is only honored by the NNAPI and GPU
+   * delegates, and the models run on the CPU. Not reported in the used options.
+   */
+  allowFp16?: boolean;
+}
+
+/**
+ * *Android only.*
+ *
+ * The interpreter options the predictions were made with, for the models that were used.
+ */
+export interface UsedInterpreterOptions {
+  vision?: InterpreterOptions;
+  geo?: InterpreterOptions;
+}
+
 export interface ResultForImage {
   options: OptionsForImage;
   predictions: Prediction[];
   timeElapsed?: number; //iOS only
   commonAncestor?: Prediction;
+  interpreterOptions?: UsedInterpreterOptions;
 }
 
 export interface Result {
@@ -208,6 +240,88 @@ export interface Result {
    * In seconds.
    */
   timeElapsed?: number; //iOS only
+  interpreterOptions?: UsedInterpreterOptions;
+  /**
+   * *Android only.*
+   *
+   * Statistics of the geomodel score cache, returned by `getPredictionsForLocation`.
+   */
+  locationCache?: LocationCacheStats;
+  /**
+   * *Android only.*
+   *
+   * Statistics of the on-disk geomodel score store, returned by `getPredictionsForLocation`.
+   */
+  locationStore?: LocationStoreStats;
+  /**
+   * *Android only.*
+   *
+   * Timestamp of the camera frame the predictions were made for, in nanoseconds.
+   */
+  frameTimestamp?: number;
+  /**
+   * *Android only.*
+   *
+   * Seconds since the frame the predictions were made for was handed to the plugin.
+   * 0 unless `asyncInference` is set.
+   */
+  staleness?: number;
+  /**
+   * *Android only.*
+   *
+   * Frame counts of the asynchronous inference worker, if `asyncInference` is set.
+   */
+  asyncStats?: {
+    submittedFrames: number;
+    droppedFrames: number;
+    classifiedFrames: number;
+  };
+  /**
+   * *Android only.*
+   *
+   * State of the inference scheduler, see `maxCpuFraction` and `maxClassificationsPerSecond`.
+   */
+  scheduler?: {
+    /**
+     * Classifications per second over the last two seconds.
+     */
+    effectiveRate: number;
+    classifiedFrames: number;
+    /**
+     * Frames that got the previous result to stay within the budget.
+     */
+    skippedFrames: number;
+    /**
+     * Rolling average time of a classification, in seconds.
+     */
+    averageLatency: number | null;
+    /**
+     * Current minimum time between two classifications, in seconds.
+     */
+    minInterval: number;
+  };
+  /**
+   * *Android only.*
+   *
+   * Whether the scores were averaged across frames natively, see `smoothingFactor`.
+   */
+  smoothed?: boolean;
+  /**
+   * *Android only.*
+   *
+   * Statistics of the scene change detection, if `sceneChangeThreshold` is set.
+   */
+  sceneChange?: {
+    /**
+     * Frames that got the previous result because they hardly differed from the last classified frame.
+     */
+    reusedFrames: number;
+    changedFrames: number;
+    /**
+     * Difference of the last compared frame to the last classified frame, between 0 and 1.
+     */
+    lastDifference: number | null;
+  };
 }
 
 const supportedVersions = ['1.0', '2.3', '2.4', '2.13', '2.20', 'small_2'];
@@ -232,7 +346,9 @@ function locationIsValid(location: Location): boolean {
   return true;
 }
 
-function optionsAreValid(options: Options | OptionsForImage): boolean {
+function optionsAreValid(
+  options: Options | OptionsForImage | OptionsForImages,
+): boolean {
   'worklet';
   if (!supportedVersions.includes(options.version)) {
     throw new Error('This model version is not supported.');
@@ -277,6 +393,41 @@ function optionsAreValidForFrame(options: Options): boolean {
       throw new Error('taxonomyRollupCutoff must be a number between 0 and 1.');
     }
   }
+  if (options.maxCpuFraction) {
+    if (
+      isNaN(options.maxCpuFraction) ||
+      options.maxCpuFraction < 0 ||
+      options.maxCpuFraction > 1
+    ) {
+      throw new Error('maxCpuFraction must be a number between 0 and 1.');
+    }
+  }
+  if (options.maxClassificationsPerSecond) {
+    if (
+      isNaN(options.maxClassificationsPerSecond) ||
+      options.maxClassificationsPerSecond < 0
+    ) {
+      throw new Error('maxClassificationsPerSecond must be a positive number.');
+    }
+  }
+  if (options.smoothingFactor) {
+    if (
+      isNaN(options.smoothingFactor) ||
+      options.smoothingFactor < 0 ||
+      options.smoothingFactor > 1
+    ) {
+      throw new Error('smoothingFactor must be a number between 0 and 1.');
+    }
+  }
+  if (options.sceneChangeThreshold) {
+    if (
+      isNaN(options.sceneChangeThreshold) ||
+      options.sceneChangeThreshold < 0 ||
+      options.sceneChangeThreshold > 1
+    ) {
+      throw new Error('sceneChangeThreshold must be a number between 0 and 1.');
+    }
+  }
   return optionsAreValid(options);
 }
 
@@ -338,15 +489,27 @@ function handleResult(result: any, options: Options): Result {
     };
   });
 
-  // Store the result to module-wide state
-  state.storedResults.value.push(result);
-  const maxNumStoredResults = options.numStoredResults ?? 5;
+  let current: Result = result;
+  // Natively smoothed results are stable across frames already, they are neither stored nor re-ranked
+  const maxNumStoredResults = result.smoothed
+    ? 0
+    : (options.numStoredResults ?? 5);
+
+  // Store the result to module-wide state. With asyncInference the same result is returned
+  // until the next frame is classified, store it once
+  const lastStoredResult =
+    state.storedResults.value[state.storedResults.value.length - 1];
+  if (
+    !result.smoothed &&
+    (result.frameTimestamp === undefined ||
+      lastStoredResult?.frameTimestamp !== result.frameTimestamp)
+  ) {
+    state.storedResults.value.push(result);
+  }
   while (state.storedResults.value.length > maxNumStoredResults) {
     state.storedResults.value.shift();
   }
 
-  let current: Result = result;
-
   if (maxNumStoredResults > 1) {
     const currentLastPrediction =
       current.predictions[current.predictions.length - 1];
@@ -440,6 +603,33 @@ interface BaseOptions {
    * As a fraction of 1. E.g. 0.8 will crop the center 80% of the frame before sending it to the cv model.
    */
   cropRatio?: number;
+  /**
+   * *Android only.*
+   *
+   * Options of the interpreter running the computer vision model.
+   */
+  visionInterpreterOptions?: InterpreterOptions;
+  /**
+   * *Android only.*
+   *
+   * Options of the interpreter running the geomodel.
+   */
+  geoInterpreterOptions?: InterpreterOptions;
+  /**
+   * *Android only.*
+   *
+   * Taxon ids to only include in the predictions, together with their descendants.
+   * Takes precedence over `filterByTaxonId` and `negativeFilter`.
+   */
+  includeTaxonIds?: null | (number | string)[];
+  /**
+   * *Android only.*
+   *
+   * Taxon ids to exclude from the predictions, together with their descendants.
+   * E.g. include plants and exclude grasses to get predictions of all plants but grasses.
+   * Takes precedence over `filterByTaxonId` and `negativeFilter`.
+   */
+  excludeTaxonIds?: null | (number | string)[];
   /**
    *
    * Whether to use the geomodel.
@@ -493,6 +683,57 @@ interface Options extends BaseOptions {
    * Wether to exclude the taxon set by filterByTaxonId or to only include it (and exclude all other).
    */
   negativeFilter?: null | boolean;
+  /**
+   * *Android only.*
+   *
+   * Classify frames on a separate thread. The frame processor only converts the frame into the model
+   * input and returns the result of the most recently classified frame, so it keeps up with the camera
+   * regardless of the model's speed. Frames arriving while the model is busy replace each other, only
+   * the latest one is classified next.
+   */
+  asyncInference?: boolean;
+  /**
+   * *Android only.*
+   *
+   * Fraction of one CPU core to spend on classifications at most, e.g. 0.4. Based on the measured
+   * time per classification, frames are skipped and get the previous result to stay within it.
+   */
+  maxCpuFraction?: number;
+  /**
+   * *Android only.*
+   *
+   * Maximum number of classifications per second. Other frames get the previous result.
+   */
+  maxClassificationsPerSecond?: number;
+  /**
+   * *Android only.*
+   *
+   * Frames whose brightness differs from the last classified frame by less than this, on average
+   * over a small thumbnail and as a fraction of the full range, get the previous result instead
+   * of being classified. E.g. 0.02. Not set or 0 classifies every frame.
+   */
+  sceneChangeThreshold?: number;
+  /**
+   * *Android only.*
+   *
+   * Maximum age in seconds of a result reused for an unchanged scene, after which the frame is
+   * classified again regardless.
+   */
+  maxResultReuseAge?: number;
+  /**
+   * *Android only.*
+   *
+   * Averages the scores of consecutive frames natively before they are aggregated, as an exponential
+   * moving average where this is the weight of the newest frame, between 0 and 1. E.g. 0.3.
+   * Smoothed results are not stored and re-ranked in JS, i.e. `numStoredResults` is not used.
+   */
+  smoothingFactor?: number;
+  /**
+   * *Android only.*
+   *
+   * Keep the averaged scores as half precision floats, which halves their memory.
+   */
+  smoothingHalfPrecision?: boolean;
 }
 
 /**
@@ -686,6 +927,55 @@ export function commonAncestorFromAggregatedScores(
   return commonAncestor;
 }
 
+function handleResultForImage(
+  result: ResultForImage,
+  options: OptionsForImage,
+): ResultForImage {
+  if (options.mode === MODE.COMMON_ANCESTOR) {
+    // From native we get all predictions (leaves and ancestors) that have
+    // score > top score * 0.001, score & vision score is normalized
+    const leafPredictions = result.predictions
+      .filter((p) => p?.leaf_id !== undefined)
+      .sort((a, b) => b.score - a.score);
+    // max 100 (s > ts * 0.001), not normalized, leaf only
+    const top100Leaves = leafPredictions.slice(0, 100);
+    const top100 = limitLeafPredictionsThatIncludeHumans(top100Leaves);
+    // max 15 (s > ts * 0.001), not normalized, leaf only
+    const top15Leaves = top100.slice(0, 15);
+    const commonAncestor = commonAncestorFromPredictions(
+      result.predictions,
+      top15Leaves,
+      options.commonAncestorRankType,
+    );
+    // max 10 (s > ts * 0.001), not normalized, leaf only
+    const top10 = top100.slice(0, 10);
+    const top10WithScaledScores: Prediction[] = top10.map((prediction) =>
+      scalePrediction(prediction),
+    );
+    const commonAncestorWithScaledScores = commonAncestor
+      ? scalePrediction(commonAncestor)
+      : undefined;
+    return Object.assign({}, result, {
+      predictions: top10WithScaledScores,
+      commonAncestor: commonAncestorWithScaledScores,
+    });
+  }
+
+  const predictions = result.predictions
+    // only KPCOFGS ranks qualify as "top" predictions
+    // in the iNat taxonomy, KPCOFGS ranks are 70,60,50,40,30,20,10
+    .filter((prediction) => prediction.rank_level % 10 === 0)
+    .map((prediction) => scalePrediction(prediction))
+    .filter(
+      (prediction) => prediction.score > (options.confidenceThreshold || 70),
+    );
+
+  return {
+    ...result,
+    predictions,
+  };
+}
+
 /**
  * Function to call the computer vision model with a image from disk
  */
@@ -701,60 +991,109 @@ export function getPredictionsForImage(
     newOptions.location = locationLookup;
   }
   return VisionCameraPluginInatVision.getPredictionsForImage(newOptions).then(
-    (result: ResultForImage) => {
-      if (newOptions?.mode === MODE.COMMON_ANCESTOR) {
-        // From native we get all predictions (leaves and ancestors) that have
-        // score > top score * 0.001, score & vision score is normalized
-        const leafPredictions = result.predictions
-          .filter((p) => p?.leaf_id !== undefined)
-          .sort((a, b) => b.score - a.score);
-        // max 100 (s > ts * 0.001), not normalized, leaf only
-        const top100Leaves = leafPredictions.slice(0, 100);
-        const top100 = limitLeafPredictionsThatIncludeHumans(top100Leaves);
-        // max 15 (s > ts * 0.001), not normalized, leaf only
-        const top15Leaves = top100.slice(0, 15);
-        const commonAncestor = commonAncestorFromPredictions(
-          result.predictions,
-          top15Leaves,
-          newOptions.commonAncestorRankType,
-        );
-        // max 10 (s > ts * 0.001), not normalized, leaf only
-        const top10 = top100.slice(0, 10);
-        const top10WithScaledScores: Prediction[] = top10.map((prediction) =>
-          scalePrediction(prediction),
-        );
-        const commonAncestorWithScaledScores = commonAncestor
-          ? scalePrediction(commonAncestor)
-          : undefined;
-        return Object.assign({}, result, {
-          predictions: top10WithScaledScores,
-          commonAncestor: commonAncestorWithScaledScores,
-        });
-      }
+    (result: ResultForImage) => handleResultForImage(result, newOptions),
+  );
+}
 
-      const predictions = result.predictions
-        // only KPCOFGS ranks qualify as "top" predictions
-        // in the iNat taxonomy, KPCOFGS ranks are 70,60,50,40,30,20,10
-        .filter((prediction) => prediction.rank_level % 10 === 0)
-        .map((prediction) => scalePrediction(prediction))
-        .filter(
-          (prediction) =>
-            prediction.score > (newOptions.confidenceThreshold || 70),
-        );
+interface OptionsForImages extends BaseOptions {
+  /**
+   * The uris of the images to predict on.
+   */
+  uris: string[];
+  /**
+   * Mode of compiling the results.
+   */
+  mode?: MODE;
+  /**
+   * Experimental: The type of common ancestor rank to return.
+   * Only used when mode is set to COMMON_ANCESTOR.
+   */
+  commonAncestorRankType?: COMMON_ANCESTOR_RANK_TYPE;
+  /**
+   * *Android only.*
+   *
+   * Upper limit of the number of images run through the model at once. The actual batch size
+   * is also limited by the memory available on the device.
+   */
+  maxBatchSize?: number;
+}
 
-      return {
-        ...result,
-        predictions,
-      };
-    },
+export interface ResultForImages {
+  options: OptionsForImages;
+  /**
+   * One result per uri, in the order of the uris.
+   */
+  results: ResultForImage[];
+  timeElapsed?: number; // Android only
+  batchSize?: number; // Android only
+  interpreterOptions?: UsedInterpreterOptions;
+}
+
+/**
+ * Function to call the computer vision model with several images from disk.
+ * On Android the images are classified in batches, elsewhere one after another.
+ */
+export function getPredictionsForImages(
+  options: OptionsForImages,
+): Promise<ResultForImages> {
+  if (!Array.isArray(options.uris)) {
+    throw new Error('uris must be an array.');
+  }
+  if (
+    options.maxBatchSize !== undefined &&
+    (typeof options.maxBatchSize !== 'number' || options.maxBatchSize < 1)
+  ) {
+    throw new Error('maxBatchSize must be a number of at least 1.');
+  }
+  optionsAreValid(options);
+  const newOptions = {
+    ...options,
+  };
+  if (options.useGeomodel && options.location) {
+    const locationLookup = lookUpLocation(options.location);
+    newOptions.location = locationLookup;
+  }
+  if (Platform.OS !== 'android') {
+    return options.uris
+      .reduce(
+        (promise: Promise<ResultForImage[]>, uri: string) =>
+          promise.then((results) =>
+            getPredictionsForImage({ ...options, uri }).then((result) => [
+              ...results,
+              result,
+            ]),
+          ),
+        Promise.resolve([]),
+      )
+      .then((results) => ({ options, results }));
+  }
+  return VisionCameraPluginInatVision.getPredictionsForImages(newOptions).then(
+    (result: ResultForImages) => ({
+      ...result,
+      results: result.results.map((imageResult: any) => {
+        const imageOptions = { ...newOptions, uri: imageResult.uri };
+        return handleResultForImage(
+          { ...imageResult, options: imageOptions },
+          imageOptions,
+        );
+      }),
+    }),
   );
 }
 
+
 interface OptionsForLocation {
   // Required
   taxonomyPath: string;
   geomodelPath: string;
   location: Location;
+  // Optional
+  /**
+   * *Android only.*
+   *
+   * Options of the interpreter running the geomodel.
+   */
+  geoInterpreterOptions?: InterpreterOptions;
 }
 
 /**
@@ -771,3 +1110,365 @@ export function getPredictionsForLocation(
   };
   return VisionCameraPluginInatVision.getPredictionsForLocation(newOptions);
 }
+
+interface OptionsForLocations {
+  // Required
+  taxonomyPath: string;
+  geomodelPath: string;
+  locations: Location[];
+  // Optional
+  /**
+   * *Android only.*
+   *
+   * Options of the interpreter running the geomodel.
+   */
+  geoInterpreterOptions?: InterpreterOptions;
+}
+
+export interface ResultForLocations {
+  /**
+   * One result per location, in the order of the locations.
+   */
+  results: { predictions: Prediction[] }[];
+  timeElapsed?: number; // Android only
+  /**
+   * Number of locations scored with one geomodel run.
+   */
+  batchSize?: number; // Android only
+  interpreterOptions?: UsedInterpreterOptions;
+}
+
+/**
+ * Function to call the geomodel with several locations, e.g. a route or the cells of a map.
+ * On Android the locations are scored in batches, elsewhere one after another.
+ */
+export function getPredictionsForLocations(
+  options: OptionsForLocations,
+): Promise<ResultForLocations> {
+  if (!Array.isArray(options.locations)) {
+    throw new Error('locations must be an array.');
+  }
+  options.locations.forEach(locationIsValid);
+  if (Platform.OS !== 'android') {
+    return options.locations
+      .reduce(
+        (promise: Promise<Result[]>, location: Location) =>
+          promise.then((results) =>
+            getPredictionsForLocation({ ...options, location }).then(
+              (result) => [...results, result],
+            ),
+          ),
+        Promise.resolve([]),
+      )
+      .then((results) => ({
+        results: results.map((result) => ({
+          predictions: result.predictions,
+        })),
+      }));
+  }
+  const newOptions = {
+    ...options,
+    locations: options.locations.map(lookUpLocation),
+  };
+  return VisionCameraPluginInatVision.getPredictionsForLocations(newOptions);
+}
+
+export interface ModelCacheStats {
+  hits: number;
+  misses: number;
+  evictions: number;
+  /**
+   * Number of loaded classifiers.
+   */
+  entries: number;
+  /**
+   * Estimated memory of the loaded classifiers.
+   */
+  bytes: number;
+  maxEntries: number;
+  maxBytes: number;
+}
+
+export type LocationCachePrecision = 'float' | 'half' | 'byte';
+
+export interface LocationCacheStats {
+  hits: number;
+  misses: number;
+  evictions: number;
+  /**
+   * Number of cached locations.
+   */
+  entries: number;
+  /**
+   * Estimated memory of the cached geomodel scores.
+   */
+  bytes: number;
+  maxBytes: number;
+  precision: LocationCachePrecision;
+}
+
+export interface LocationStoreStats {
+  hits: number;
+  misses: number;
+  compactions: number;
+  /**
+   * Number of stored locations in the open store files.
+   */
+  entries: number;
+  /**
+   * Size of the open store files.
+   */
+  bytes: number;
+  maxBytes: number;
+}
+
+export interface ResultForModelCache {
+  cache?: ModelCacheStats;
+  locationCache?: LocationCacheStats;
+  locationStore?: LocationStoreStats;
+  timeElapsed?: number;
+}
+
+interface OptionsForPreload {
+  // Required
+  taxonomyPath: string;
+  version: string;
+  // Optional
+  modelPath?: string;
+  geomodelPath?: string;
+  visionInterpreterOptions?: InterpreterOptions;
+  geoInterpreterOptions?: InterpreterOptions;
+  /**
+   * Maximum number of classifiers kept loaded.
+   */
+  maxCachedModels?: number;
+  /**
+   * Maximum estimated memory of the classifiers kept loaded, in bytes.
+   */
+  maxCachedBytes?: number;
+  /**
+   * Maximum estimated memory of the geomodel scores cached by location, in bytes. 0 disables the cache.
+   */
+  maxCachedLocationBytes?: number;
+  /**
+   * Precision the geomodel scores are cached in: `float` (default), `half` with about three
+   * significant digits, or `byte` on a log scale from the highest score of a location down to a
+   * millionth of it, within about 3% of each score. Smaller scores are cached as 0.
+   */
+  locationCachePrecision?: LocationCachePrecision;
+  /**
+   * Maximum size in bytes of the file in the app cache directory that keeps geomodel scores by
+   * location across app sessions, per geomodel. 0 disables the store, which is the default. Limits
+   * too small for a few locations of the geomodel disable the store as well.
+   */
+  maxStoredLocationBytes?: number;
+}
+
+/**
+ * *Android only.*
+ *
+ * Loads the models into the native model cache, so that following predictions with the same
+ * models, taxonomy and interpreter options don't need to load them.
+ */
+export function preloadModels(
+  options: OptionsForPreload,
+): Promise<ResultForModelCache> {
+  if (!supportedVersions.includes(options.version)) {
+    throw new Error('This model version is not supported.');
+  }
+  if (
+    options.locationCachePrecision !== undefined &&
+    !['float', 'half', 'byte'].includes(options.locationCachePrecision)
+  ) {
+    throw new Error('locationCachePrecision must be float, half or byte.');
+  }
+  if (
+    options.maxStoredLocationBytes !== undefined &&
+    (isNaN(options.maxStoredLocationBytes) || options.maxStoredLocationBytes < 0)
+  ) {
+    throw new Error('maxStoredLocationBytes must be a number of at least 0.');
+  }
+  if (Platform.OS !== 'android') {
+    return Promise.resolve({});
+  }
+  return VisionCameraPluginInatVision.preloadModels(options);
+}
+
+/**
+ * *Android only.*
+ *
+ * Unloads the cached models with the given model path, or all cached models.
+ */
+export function unloadModels(
+  options: { modelPath?: string } = {},
+): Promise<ResultForModelCache> {
+  if (Platform.OS !== 'android') {
+    return Promise.resolve({});
+  }
+  return VisionCameraPluginInatVision.unloadModels(options);
+}
+
+export interface ResultForWarmUp extends ResultForModelCache {
+  /**
+   * Seconds each stage took: loading the taxonomy, the vision model and the geomodel,
+   * and the warm-up inferences of both models.
+   */
+  timings?: {
+    taxonomy?: number;
+    visionModel?: number;
+    geomodel?: number;
+    visionWarmUp?: number;
+    geoWarmUp?: number;
+  };
+  warmUpRuns?: number;
+}
+
+interface OptionsForWarmUp extends OptionsForPreload {
+  modelPath: string;
+  /**
+   * Number of dummy inferences per model, 1 by default.
+   */
+  warmUpRuns?: number;
+}
+
+/**
+ * *Android only.*
+ *
+ * Loads the models on a background thread and runs dummy inferences to warm up the runtime.
+ * The frame processor uses the warmed up models when it is called with the same model, taxonomy,
+ * version and interpreter options, so the first frames are not slowed down by model setup.
+ */
+export function warmUpModels(
+  options: OptionsForWarmUp,
+): Promise<ResultForWarmUp> {
+  if (!supportedVersions.includes(options.version)) {
+    throw new Error('This model version is not supported.');
+  }
+  if (
+    options.warmUpRuns !== undefined &&
+    (typeof options.warmUpRuns !== 'number' || options.warmUpRuns < 1)
+  ) {
+    throw new Error('warmUpRuns must be a number of at least 1.');
+  }
+  if (Platform.OS !== 'android') {
+    return Promise.resolve({});
+  }
+  return VisionCameraPluginInatVision.warmUpModels(options);
+}
+
+export interface RegionPackStats {
+  /**
+   * Number of loaded region packs.
+   */
+  packs: number;
+  /**
+   * Number of location cells in the loaded region packs.
+   */
+  entries: number;
+  bytes: number;
+}
+
+export interface ResultForRegionPack {
+  packPath?: string;
+  /**
+   * Number of location cells in the written pack.
+   */
+  cells?: number;
+  /**
+   * Size of the written pack file.
+   */
+  bytes?: number;
+  regionPacks?: RegionPackStats;
+  timeElapsed?: number;
+}
+
+interface OptionsForRegionPack {
+  // Required
+  taxonomyPath: string;
+  geomodelPath: string;
+  /**
+   * Region to prepare, in degrees. Every H3 cell the region overlaps is scored. Regions across the
+   * antimeridian (west above east) are not supported, prepare them as two packs.
+   */
+  boundingBox: BoundingBox;
+  /**
+   * File the region pack is written to.
+   */
+  packPath: string;
+  // Optional
+  geoInterpreterOptions?: InterpreterOptions;
+}
+
+/**
+ * *Android only.*
+ *
+ * Runs the geomodel for every location cell of a region on a background thread and writes the
+ * scores, quantized to 8 bits, to a region pack file, which is loaded right away. Geomodel predictions
+ * for locations in a loaded region pack don't run the geomodel, e.g. for field work offline.
+ */
+export function prepareRegionPack(
+  options: OptionsForRegionPack,
+): Promise<ResultForRegionPack> {
+  const boundingBox = options.boundingBox;
+  if (
+    !boundingBox ||
+    ![
+      boundingBox.north,
+      boundingBox.south,
+      boundingBox.east,
+      boundingBox.west,
+    ].every((value) => typeof value === 'number' && !isNaN(value)) ||
+    boundingBox.north < boundingBox.south ||
+    Math.abs(boundingBox.north) > 90 ||
+    Math.abs(boundingBox.south) > 90
+  ) {
+    throw new Error(
+      'boundingBox must have north, south, east and west in degrees with north not below south.',
+    );
+  }
+  if (
+    boundingBox.west > boundingBox.east ||
+    Math.abs(boundingBox.west) > 180 ||
+    Math.abs(boundingBox.east) > 180
+  ) {
+    // The corners of a box across the antimeridian enclose the rest of the world instead
+    throw new Error(
+      'boundingBox must have west not above east, between -180 and 180. Prepare a region across the antimeridian as two packs.',
+    );
+  }
+  if (Platform.OS !== 'android') {
+    return Promise.resolve({});
+  }
+  return VisionCameraPluginInatVision.prepareRegionPack({
+    ...options,
+    locations: lookUpRegion(boundingBox),
+  });
+}
+
+/**
+ * *Android only.*
+ *
+ * Loads a region pack written by `prepareRegionPack`, e.g. after the app was restarted.
+ */
+export function loadRegionPack(options: {
+  packPath: string;
+}): Promise<ResultForRegionPack> {
+  if (Platform.OS !== 'android') {
+    return Promise.resolve({});
+  }
+  return VisionCameraPluginInatVision.loadRegionPack(options);
+}
+
+/**
+ * *Android only.*
+ *
+ * Unloads the region pack with the given path, or all region packs.
+ */
+export function unloadRegionPacks(
+  options: { packPath?: string } = {},
+): Promise<ResultForRegionPack> {
+  if (Platform.OS !== 'android') {
+    return Promise.resolve({});
+  }
+  return VisionCameraPluginInatVision.unloadRegionPacks(options);
+}
@@ -35,7 +35,23 @@ jest.mock('react-native', () => ({
           predictions: [],
         }),
       ),
+      getPredictionsForImages: jest.fn(() =>
+        Promise.resolve({
+          results: [],
+        }),
+      ),
       getPredictionsForLocation: jest.fn(),
+      getPredictionsForLocations: jest.fn(() =>
+        Promise.resolve({
+          results: [],
+        }),
+      ),
+      preloadModels: jest.fn(() => Promise.resolve({ cache: {} })),
+      unloadModels: jest.fn(() => Promise.resolve({ cache: {} })),
+      warmUpModels: jest.fn(() => Promise.resolve({ timings: {} })),
+      prepareRegionPack: jest.fn(() => Promise.resolve({ cells: 0 })),
+      loadRegionPack: jest.fn(() => Promise.resolve({ regionPacks: {} })),
+      unloadRegionPacks: jest.fn(() => Promise.resolve({ regionPacks: {} })),
     },
   },
 }));
@@ -1,4 +1,4 @@
-import { cellToLatLng, latLngToCell } from 'h3-js';
+import { cellToLatLng, latLngToCell, polygonToCells } from 'h3-js';
 
 import type { Location } from '.';
 
@@ -15,9 +15,20 @@ export interface LocationLookup {
   elevation: number;
 }
 
+export interface BoundingBox {
+  north: number;
+  south: number;
+  east: number;
+  west: number;
+}
+
 export function lookUpLocation(location: Location): LocationLookup {
   // # lookup the H3 cell this lat lng occurs in
   const h3Index = latLngToCell(location.latitude, location.longitude, 4);
+  return lookUpCell(h3Index);
+}
+
+function lookUpCell(h3Index: string): LocationLookup {
   const h3CellCentroid = cellToLatLng(h3Index);
   // Every h3 cell string starts with "84" which we can remove from lookup table and here
   // Every h3 cell string ends with a stretch of f's which we can remove from lookup table and here
@@ -33,3 +44,22 @@ export function lookUpLocation(location: Location): LocationLookup {
   };
   return locationLookup;
 }
+
+/**
+ * Centroids and elevations of the H3 cells a bounding box overlaps, i.e. the cells with their centroid
+ * in the box and the cells of its corners.
+ */
+export function lookUpRegion(boundingBox: BoundingBox): LocationLookup[] {
+  const { north, south, east, west } = boundingBox;
+  const corners: [number, number][] = [
+    [north, west],
+    [north, east],
+    [south, east],
+    [south, west],
+  ];
+  const h3Indexes = new Set(polygonToCells(corners, 4));
+  corners.forEach(([latitude, longitude]) =>
+    h3Indexes.add(latLngToCell(latitude, longitude, 4)),
+  );
+  return Array.from(h3Indexes).map(lookUpCell);
+}